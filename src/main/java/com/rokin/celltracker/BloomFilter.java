@@ -0,0 +1,86 @@
+package com.rokin.celltracker;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bloom filter of strings. Bit positions come from two halves of a 64-bit FNV-1a hash combined
+ * as h1 + i * h2; thread safe.
+ */
+public class BloomFilter {
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final long[] bits;
+  private final long bitCount;
+  private final int hashCount;
+
+  /**
+   * Size a filter.
+   *
+   * @param expectedInsertions
+   *          number of values the false positive rate holds for
+   * @param falsePositiveRate
+   *          wanted false positive rate, between 0 and 1 exclusive
+   */
+  public BloomFilter(long expectedInsertions, double falsePositiveRate) {
+    long n = Math.max(1, expectedInsertions);
+    long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+    this.bits = new long[(int) Math.max(1, (m + 63) / 64)];
+    this.bitCount = bits.length * 64L;
+    this.hashCount = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+  }
+
+  /**
+   * Add a value.
+   *
+   * @param value
+   *          value
+   */
+  public synchronized void put(String value) {
+    long hash = hash(value);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 1; i <= hashCount; i++) {
+      long bit = index(h1 + i * h2);
+      bits[(int) (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  /**
+   * Check whether a value may have been added. False means it was not.
+   *
+   * @param value
+   *          value
+   * @return
+   */
+  public synchronized boolean mightContain(String value) {
+    long hash = hash(value);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    for (int i = 1; i <= hashCount; i++) {
+      long bit = index(h1 + i * h2);
+      if ((bits[(int) (bit >>> 6)] & 1L << bit) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private long index(int combined) {
+    return (combined & 0x7fffffffL) % bitCount;
+  }
+
+  private static long hash(String value) {
+    long hash = FNV_OFFSET;
+    for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+      hash ^= b & 0xff;
+      hash *= FNV_PRIME;
+    }
+    // spread the low bits, FNV-1a mixes its last bytes poorly
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,25 @@
+package com.rokin.celltracker;
+
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@ConfigurationProperties(prefix = "push.broadcast")
+@Component
+@Data
+public class BroadcastSettings {
+  /**
+   * emails or cell nos of the clients allowed to broadcast, nobody by default.
+   */
+  private List<String> senders = new ArrayList<>();
+  /**
+   * max number of recipients per second over all running broadcasts.
+   */
+  private int recipientsPerSecond = 5000;
+  /**
+   * number of broadcasts running at the same time.
+   */
+  private int threads = 2;
+}
@@ -1,12 +1,22 @@
 package com.rokin.celltracker;
 
+import com.rokin.celltracker.repository.LocationPartitionSchemaIntegrator;
 import de.bytefish.fcmjava.client.FcmClient;
 import de.bytefish.fcmjava.http.client.IFcmClient;
+import java.util.Collections;
+import org.hibernate.jpa.boot.internal.EntityManagerFactoryBuilderImpl;
+import org.hibernate.jpa.boot.spi.IntegratorProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.data.jpa.EntityManagerFactoryDependsOnPostProcessor;
 import org.springframework.context.annotation.Bean;
+import org.springframework.core.env.Environment;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class CelltrackerApplication {
 
   public static void main(String[] args) {
@@ -17,4 +27,38 @@ public class CelltrackerApplication {
   public IFcmClient fcmClient(FcmSettings settings) {
     return new FcmClient(settings);
   }
+
+  /**
+   * Let location partitions be created before the schema is generated.
+   * 
+   * @return
+   */
+  @Bean
+  public static EntityManagerFactoryDependsOnPostProcessor locationPartitionDependency() {
+    return new EntityManagerFactoryDependsOnPostProcessor("locationPartitionManager");
+  }
+
+  /**
+   * Adapt the generated schema to the partitioned location history when partitioning is enabled.
+   * 
+   * @param environment
+   *          environment
+   * @return
+   */
+  @Bean
+  public static BeanPostProcessor locationPartitionSchema(Environment environment) {
+    return new BeanPostProcessor() {
+      @Override
+      public Object postProcessBeforeInitialization(Object bean, String beanName) {
+        if (bean instanceof LocalContainerEntityManagerFactoryBean && environment
+            .getProperty("location.partitioning.enabled", Boolean.class, false)) {
+          ((LocalContainerEntityManagerFactoryBean) bean).getJpaPropertyMap().put(
+              EntityManagerFactoryBuilderImpl.INTEGRATOR_PROVIDER,
+              (IntegratorProvider) () -> Collections
+                  .singletonList(new LocationPartitionSchemaIntegrator()));
+        }
+        return bean;
+      }
+    };
+  }
 }
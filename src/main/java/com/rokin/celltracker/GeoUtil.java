@@ -0,0 +1,31 @@
+package com.rokin.celltracker;
+
+public class GeoUtil {
+
+  private static final double EARTH_RADIUS_METERS = 6371008.8;
+
+  private GeoUtil() {
+
+  }
+
+  /**
+   * Great-circle distance between two points.
+   * 
+   * @param lat1
+   *          latitude of first point in degrees
+   * @param lon1
+   *          longitude of first point in degrees
+   * @param lat2
+   *          latitude of second point in degrees
+   * @param lon2
+   *          longitude of second point in degrees
+   * @return distance in meters
+   */
+  public static double distance(double lat1, double lon1, double lat2, double lon2) {
+    double dLat = Math.toRadians(lat2 - lat1);
+    double dLon = Math.toRadians(lon2 - lon1);
+    double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) + Math.cos(Math.toRadians(lat1))
+        * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+    return 2 * EARTH_RADIUS_METERS * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+  }
+}
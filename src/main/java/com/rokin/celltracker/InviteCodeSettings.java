@@ -0,0 +1,31 @@
+package com.rokin.celltracker;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@ConfigurationProperties(prefix = "circle.invite-code")
+@Component
+@Data
+public class InviteCodeSettings {
+  /**
+   * number of characters of a circle invite code.
+   */
+  private int length = 6;
+  /**
+   * number of unused codes kept ready.
+   */
+  private int poolSize = 1000;
+  /**
+   * the pool is refilled in the background once it holds fewer codes.
+   */
+  private int refillBelow = 250;
+  /**
+   * number of codes the live code filter is sized for.
+   */
+  private long expectedCodes = 1000000;
+  /**
+   * false positive rate of the live code filter at the expected number of codes.
+   */
+  private double falsePositiveRate = 0.01;
+}
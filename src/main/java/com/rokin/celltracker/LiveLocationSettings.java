@@ -0,0 +1,32 @@
+package com.rokin.celltracker;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@ConfigurationProperties(prefix = "circle.live")
+@Component
+@Data
+public class LiveLocationSettings {
+  /**
+   * max number of members with an undelivered position per subscriber, the oldest is dropped.
+   */
+  private int bufferSize = 256;
+  /**
+   * a comment is sent to subscribers that were sent nothing for this long.
+   */
+  private long heartbeatIntervalMs = 15000;
+  /**
+   * a subscriber whose connection took nothing for this long is evicted.
+   */
+  private long idleTimeoutMs = 60000;
+  /**
+   * a subscriber stuck in one send for this long is evicted, checked on every heartbeat.
+   */
+  private long sendTimeoutMs = 10000;
+  /**
+   * max lifetime of a subscription, event source clients reconnect on their own.
+   */
+  private long timeoutMs = 1800000;
+  private int senderThreads = 4;
+}
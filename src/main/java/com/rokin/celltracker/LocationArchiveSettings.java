@@ -0,0 +1,23 @@
+package com.rokin.celltracker;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@ConfigurationProperties(prefix = "location.archive")
+@Component
+@Data
+public class LocationArchiveSettings {
+  /**
+   * roll old device infos into compressed per client, per day archive blocks.
+   */
+  private boolean enabled = false;
+  /**
+   * device infos older than this many whole days are archived.
+   */
+  private int ageDays = 21;
+  /**
+   * max number of device infos archived in one transaction.
+   */
+  private int pageSize = 5000;
+}
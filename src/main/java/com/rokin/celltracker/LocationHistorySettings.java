@@ -0,0 +1,28 @@
+package com.rokin.celltracker;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@ConfigurationProperties(prefix = "location.history")
+@Component
+@Data
+public class LocationHistorySettings {
+  /**
+   * page size of paginated history when none is asked for.
+   */
+  private int defaultPageSize = 200;
+  /**
+   * larger requested page sizes are capped to this.
+   */
+  private int maxPageSize = 1000;
+  /**
+   * max number of streamed responses written at once, further ones wait for a writer.
+   */
+  private int streamWriterThreads = 16;
+  /**
+   * max number of streamed responses waiting for a writer, further ones are written by the
+   * request thread.
+   */
+  private int streamWriterQueueCapacity = 64;
+}
@@ -0,0 +1,70 @@
+package com.rokin.celltracker;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@ConfigurationProperties(prefix = "location.partitioning")
+@Component
+@Data
+public class LocationPartitionSettings {
+
+  public enum Interval {
+    DAY, WEEK, MONTH;
+
+    /**
+     * Get start of the interval containing a date.
+     * 
+     * @param date
+     *          date
+     * @return
+     */
+    public LocalDate floor(LocalDate date) {
+      switch (this) {
+        case DAY:
+          return date;
+        case WEEK:
+          return date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+        default:
+          return date.withDayOfMonth(1);
+      }
+    }
+
+    /**
+     * Move an interval start by a number of intervals.
+     * 
+     * @param start
+     *          interval start
+     * @param intervals
+     *          intervals to move, may be negative
+     * @return
+     */
+    public LocalDate plus(LocalDate start, long intervals) {
+      switch (this) {
+        case DAY:
+          return start.plusDays(intervals);
+        case WEEK:
+          return start.plusWeeks(intervals);
+        default:
+          return start.plusMonths(intervals);
+      }
+    }
+  }
+
+  /**
+   * store location history in time-range partitions of client_device_info.
+   */
+  private boolean enabled = false;
+  private Interval interval = Interval.MONTH;
+  /**
+   * number of future partitions created ahead of the current one.
+   */
+  private int precreate = 2;
+  /**
+   * number of past partitions kept besides the current one, older ones are dropped. 0 keeps all.
+   */
+  private int retention = 0;
+}
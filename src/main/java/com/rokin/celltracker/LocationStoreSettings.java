@@ -0,0 +1,40 @@
+package com.rokin.celltracker;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@ConfigurationProperties(prefix = "location.store")
+@Component
+@Data
+public class LocationStoreSettings {
+
+  public enum Type {
+    JPA, MEMORY, MMAP
+  }
+
+  /**
+   * backend location fixes are stored in.
+   */
+  private Type type = Type.JPA;
+  /**
+   * settings of the memory-mapped backend.
+   */
+  private Mmap mmap = new Mmap();
+
+  @Data
+  public static class Mmap {
+    /**
+     * directory of the segment files.
+     */
+    private String directory = "data/locations";
+    /**
+     * size of a new segment file in bytes.
+     */
+    private int segmentSize = 64 * 1024 * 1024;
+    /**
+     * force appended records to disk before returning.
+     */
+    private boolean forceOnAppend = false;
+  }
+}
@@ -0,0 +1,32 @@
+package com.rokin.celltracker;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@ConfigurationProperties(prefix = "location.write-behind")
+@Component
+@Data
+public class LocationWriteBehindSettings {
+  /**
+   * accept fixes into an in-memory queue and persist them in group commits.
+   */
+  private boolean enabled = false;
+  /**
+   * max number of queued fixes before new fixes are rejected with 429.
+   */
+  private int queueCapacity = 10000;
+  /**
+   * max number of fixes written in one group commit.
+   */
+  private int batchSize = 500;
+  /**
+   * durability window: max time an accepted fix may wait in the queue before it is written.
+   */
+  private long maxDelayMs = 1000;
+  private int writerThreads = 2;
+  /**
+   * max time to drain the queue on shutdown.
+   */
+  private long shutdownTimeoutMs = 30000;
+}
@@ -0,0 +1,41 @@
+package com.rokin.celltracker;
+
+import com.rokin.celltracker.domain.Message.MessageType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@ConfigurationProperties(prefix = "push.outbox")
+@Component
+@Data
+public class MessageOutboxSettings {
+  /**
+   * interval at which the outbox is checked for due messages, new messages are picked up at once.
+   */
+  private long pollIntervalMs = 1000;
+  /**
+   * max number of messages claimed in one transaction.
+   */
+  private int batchSize = 100;
+  /**
+   * a claimed message is claimable again after this time, must exceed the push send timeout.
+   */
+  private long leaseMs = 60000;
+  /**
+   * delay before the first retry, doubled for every further attempt.
+   */
+  private long initialBackoffMs = 1000;
+  private long maxBackoffMs = 300000;
+  /**
+   * max number of delivery attempts, after which a message is given up.
+   */
+  private int maxAttempts = 10;
+  /**
+   * message types that are never given up.
+   */
+  private List<MessageType> retriedForeverTypes = new ArrayList<>(Arrays.asList(
+      MessageType.HELPALERT));
+}
@@ -0,0 +1,54 @@
+package com.rokin.celltracker;
+
+import com.rokin.celltracker.domain.Message.MessageType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@ConfigurationProperties(prefix = "push")
+@Component
+@Data
+public class PushSettings {
+  /**
+   * number of threads sending to FCM.
+   */
+  private int threads = 8;
+  /**
+   * max number of messages waiting for a sender thread before new ones are rejected.
+   */
+  private int queueCapacity = 1000;
+  /**
+   * a message not sent within this time of being queued is failed.
+   */
+  private long sendTimeoutMs = 10000;
+  /**
+   * max number of registration ids per FCM request, larger recipient lists are split.
+   */
+  private int maxRecipientsPerRequest = 1000;
+  /**
+   * messages of a coalesced type to the same recipients within this window share one request,
+   * 0 turns coalescing off. Coalesced requests carry a messages array, which only apps that
+   * understand it can read.
+   */
+  private long coalesceWindowMs = 0;
+  /**
+   * a coalesced request is sent early once it holds this many messages.
+   */
+  private int maxCoalescedMessages = 10;
+  /**
+   * message types that may wait for the coalesce window, all others are sent right away.
+   */
+  private List<MessageType> coalescedTypes = new ArrayList<>(Arrays.asList(
+      MessageType.LOCATIONQUERY, MessageType.REACHEDHOME, MessageType.REACHEDOFFICE));
+  /**
+   * interval at which canonical and dead registration ids reported by FCM are written back.
+   */
+  private long tokenFlushIntervalMs = 5000;
+  /**
+   * max time to finish queued messages on shutdown.
+   */
+  private long shutdownTimeoutMs = 10000;
+}
@@ -17,6 +17,10 @@ public class RandomUtil {
 
   }
 
+  private static class SecureRandomHolder {
+    private static final SecureRandom RANDOM = createSecureRandom();
+  }
+
   /**
    * Creates a new secure random number generator. The following secure random algorithm names are
    * tried:
@@ -42,7 +46,6 @@ public class RandomUtil {
       throw new IllegalStateException(
           "no secure random algorithm found. (tried " + Arrays.asList(secureRndNames) + ")");
     }
-    secureRnd.setSeed(System.currentTimeMillis());
     return secureRnd;
   }
 
@@ -59,7 +62,8 @@ public class RandomUtil {
   }
 
   /**
-   * Generates a secure random word with the given length.
+   * Generates a secure random word with the given length. All calls share one self-seeded
+   * generator.
    * 
    * @param len
    *          Amount of random characters to generate
@@ -68,7 +72,7 @@ public class RandomUtil {
    * @return random Word containing letters and numbers.
    */
   public static String createWord(int len, char[] alphabet) {
-    SecureRandom random = createSecureRandom();
+    SecureRandom random = SecureRandomHolder.RANDOM;
     if (alphabet == null) {
       alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz1234567890".toCharArray();
     }
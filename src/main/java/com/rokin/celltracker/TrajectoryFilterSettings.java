@@ -0,0 +1,39 @@
+package com.rokin.celltracker;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@ConfigurationProperties(prefix = "location.filter")
+@Component
+@Data
+public class TrajectoryFilterSettings {
+
+  public enum Mode {
+    /**
+     * keep every fix.
+     */
+    NONE,
+    /**
+     * drop fixes that did not move further than the min distance or their own accuracy.
+     */
+    DISTANCE,
+    /**
+     * DISTANCE, and also drop fixes that lie within tolerance of the position predicted from the
+     * last two kept fixes, so straight runs at constant speed are reduced to their end points.
+     */
+    DEAD_RECKONING
+  }
+
+  private Mode mode = Mode.NONE;
+  private double minDistanceMeters = 10;
+  /**
+   * fixes with a worse (larger) accuracy are dropped.
+   */
+  private double maxAccuracyMeters = 100;
+  private double toleranceMeters = 25;
+  /**
+   * a fix is always kept once this much time has passed since the last kept fix.
+   */
+  private long maxIntervalMs = 5 * 60 * 1000L;
+}
@@ -0,0 +1,49 @@
+package com.rokin.celltracker;
+
+import com.rokin.celltracker.codec.LocationFixHttpMessageConverter;
+import java.util.List;
+import java.util.concurrent.ThreadPoolExecutor;
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+@Configuration
+@RequiredArgsConstructor
+public class WebMvcConfig implements WebMvcConfigurer {
+
+  private final LocationHistorySettings locationHistorySettings;
+
+  /**
+   * Write streamed and reactive responses from a bounded pool instead of a new thread each. When
+   * the writers and their queue are full, the request thread writes the stream itself, which
+   * holds back new requests at the connector instead of queueing them without bound.
+   */
+  @Override
+  public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+    configurer.setTaskExecutor(streamWriterExecutor());
+  }
+
+  @Bean
+  public ThreadPoolTaskExecutor streamWriterExecutor() {
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(locationHistorySettings.getStreamWriterThreads());
+    executor.setMaxPoolSize(locationHistorySettings.getStreamWriterThreads());
+    executor.setQueueCapacity(locationHistorySettings.getStreamWriterQueueCapacity());
+    executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+    executor.setThreadNamePrefix("stream-writer-");
+    return executor;
+  }
+
+  /**
+   * Add the binary location fix converter after the JSON converters, so JSON stays the default
+   * and the binary encoding is only used when asked for by content type or accept header.
+   */
+  @Override
+  public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+    converters.add(new LocationFixHttpMessageConverter());
+  }
+}
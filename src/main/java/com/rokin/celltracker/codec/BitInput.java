@@ -0,0 +1,34 @@
+package com.rokin.celltracker.codec;
+
+import java.io.EOFException;
+
+/**
+ * Most significant bit first bit reader.
+ */
+class BitInput {
+
+  private final byte[] bytes;
+  private long position;
+
+  BitInput(byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+  boolean readBit() throws EOFException {
+    int index = (int) (position >>> 3);
+    if (index >= bytes.length) {
+      throw new EOFException();
+    }
+    int bit = (bytes[index] >>> (7 - (position & 7))) & 1;
+    position++;
+    return bit != 0;
+  }
+
+  long readBits(int bits) throws EOFException {
+    long value = 0;
+    for (int i = 0; i < bits; i++) {
+      value = (value << 1) | (readBit() ? 1 : 0);
+    }
+    return value;
+  }
+}
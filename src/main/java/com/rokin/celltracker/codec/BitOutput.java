@@ -0,0 +1,37 @@
+package com.rokin.celltracker.codec;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Most significant bit first bit writer.
+ */
+class BitOutput {
+
+  private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+  private int current;
+  private int used;
+
+  void writeBit(boolean bit) {
+    current = (current << 1) | (bit ? 1 : 0);
+    if (++used == 8) {
+      out.write(current);
+      current = 0;
+      used = 0;
+    }
+  }
+
+  void writeBits(long value, int bits) {
+    for (int i = bits - 1; i >= 0; i--) {
+      writeBit(((value >>> i) & 1) != 0);
+    }
+  }
+
+  byte[] toByteArray() {
+    if (used > 0) {
+      out.write(current << (8 - used));
+      current = 0;
+      used = 0;
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,301 @@
+package com.rokin.celltracker.codec;
+
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Lossless columnar encoding of archived location fixes, after Gorilla (Pelkonen et al., VLDB
+ * 2015).
+ *
+ * <p>
+ * Fixes are stored column by column in one bit stream. Every column starts with a presence bit
+ * map that collapses to a single bit when no value is missing. Timestamps are delta-of-delta
+ * encoded, ids and battery levels delta encoded, both with variable width buckets. Doubles are
+ * XORed with the previous value of the column and only the meaningful bits are written, reusing
+ * the previous leading/trailing zero window when it fits. Providers go through a string table.
+ * </p>
+ */
+public class LocationArchiveCodec {
+
+  private static final int VERSION = 1;
+
+  private LocationArchiveCodec() {
+
+  }
+
+  /**
+   * Encode fixes.
+   *
+   * @param fixes
+   *          fixes ordered by timestamp
+   * @return encoded block
+   */
+  public static byte[] encode(List<ClientDeviceInfo> fixes) {
+    BitOutput out = new BitOutput();
+    out.writeBits(VERSION, 8);
+    out.writeBits(fixes.size(), 32);
+    writeLongs(out, fixes, ClientDeviceInfo::getId, false);
+    writeLongs(out, fixes, ClientDeviceInfo::getTimestamp, true);
+    writeDoubles(out, fixes, ClientDeviceInfo::getLat);
+    writeDoubles(out, fixes, ClientDeviceInfo::getLon);
+    writeDoubles(out, fixes, ClientDeviceInfo::getAltitude);
+    writeDoubles(out, fixes, ClientDeviceInfo::getAccuracy);
+    writeDoubles(out, fixes, ClientDeviceInfo::getSpeed);
+    writeDoubles(out, fixes, ClientDeviceInfo::getBearing);
+    writeLongs(out, fixes, fix -> fix.getBattery() == null ? null : (long) fix.getBattery(), false);
+    writeProviders(out, fixes);
+    return out.toByteArray();
+  }
+
+  /**
+   * Decode fixes.
+   *
+   * @param block
+   *          encoded block
+   * @return fixes, without client
+   * @throws IOException
+   *           on malformed input
+   */
+  public static List<ClientDeviceInfo> decode(byte[] block) throws IOException {
+    BitInput in = new BitInput(block);
+    int version = (int) in.readBits(8);
+    if (version != VERSION) {
+      throw new IOException("unsupported location archive version " + version);
+    }
+    int count = (int) in.readBits(32);
+    List<ClientDeviceInfo> fixes = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      fixes.add(new ClientDeviceInfo());
+    }
+    readLongs(in, fixes, ClientDeviceInfo::setId, false);
+    readLongs(in, fixes, ClientDeviceInfo::setTimestamp, true);
+    readDoubles(in, fixes, ClientDeviceInfo::setLat);
+    readDoubles(in, fixes, ClientDeviceInfo::setLon);
+    readDoubles(in, fixes, ClientDeviceInfo::setAltitude);
+    readDoubles(in, fixes, ClientDeviceInfo::setAccuracy);
+    readDoubles(in, fixes, ClientDeviceInfo::setSpeed);
+    readDoubles(in, fixes, ClientDeviceInfo::setBearing);
+    readLongs(in, fixes, (fix, battery) -> fix.setBattery(battery.intValue()), false);
+    readProviders(in, fixes);
+    return fixes;
+  }
+
+  private static <T> List<T> writeColumn(BitOutput out, List<ClientDeviceInfo> fixes,
+      Function<ClientDeviceInfo, T> getter) {
+    List<T> values = new ArrayList<>(fixes.size());
+    for (ClientDeviceInfo fix : fixes) {
+      values.add(getter.apply(fix));
+    }
+    boolean complete = !values.contains(null);
+    out.writeBit(complete);
+    if (!complete) {
+      for (T value : values) {
+        out.writeBit(value != null);
+      }
+      values.removeIf(value -> value == null);
+    }
+    return values;
+  }
+
+  private static List<ClientDeviceInfo> readColumn(BitInput in, List<ClientDeviceInfo> fixes)
+      throws IOException {
+    if (in.readBit()) {
+      return fixes;
+    }
+    List<ClientDeviceInfo> present = new ArrayList<>();
+    for (ClientDeviceInfo fix : fixes) {
+      if (in.readBit()) {
+        present.add(fix);
+      }
+    }
+    return present;
+  }
+
+  private static void writeLongs(BitOutput out, List<ClientDeviceInfo> fixes,
+      Function<ClientDeviceInfo, Long> getter, boolean deltaOfDelta) {
+    long previous = 0;
+    long previousDelta = 0;
+    boolean first = true;
+    for (Long value : writeColumn(out, fixes, getter)) {
+      if (first) {
+        out.writeBits(value, 64);
+        first = false;
+      } else {
+        long delta = value - previous;
+        writeBucketed(out, deltaOfDelta ? delta - previousDelta : delta);
+        previousDelta = delta;
+      }
+      previous = value;
+    }
+  }
+
+  private static void readLongs(BitInput in, List<ClientDeviceInfo> fixes,
+      BiConsumer<ClientDeviceInfo, Long> setter, boolean deltaOfDelta) throws IOException {
+    long previous = 0;
+    long previousDelta = 0;
+    boolean first = true;
+    for (ClientDeviceInfo fix : readColumn(in, fixes)) {
+      long value;
+      if (first) {
+        value = in.readBits(64);
+        first = false;
+      } else {
+        long delta = readBucketed(in) + (deltaOfDelta ? previousDelta : 0);
+        value = previous + delta;
+        previousDelta = delta;
+      }
+      setter.accept(fix, value);
+      previous = value;
+    }
+  }
+
+  private static void writeDoubles(BitOutput out, List<ClientDeviceInfo> fixes,
+      Function<ClientDeviceInfo, Double> getter) {
+    long previous = 0;
+    int previousLeading = -1;
+    int previousTrailing = 0;
+    boolean first = true;
+    for (Double value : writeColumn(out, fixes, getter)) {
+      long bits = Double.doubleToRawLongBits(value);
+      if (first) {
+        out.writeBits(bits, 64);
+        first = false;
+      } else {
+        long xor = bits ^ previous;
+        if (xor == 0) {
+          out.writeBit(false);
+        } else {
+          out.writeBit(true);
+          int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+          int trailing = Long.numberOfTrailingZeros(xor);
+          if (previousLeading >= 0 && leading >= previousLeading
+              && trailing >= previousTrailing) {
+            out.writeBit(false);
+            out.writeBits(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+          } else {
+            int significant = 64 - leading - trailing;
+            out.writeBit(true);
+            out.writeBits(leading, 5);
+            out.writeBits(significant - 1, 6);
+            out.writeBits(xor >>> trailing, significant);
+            previousLeading = leading;
+            previousTrailing = trailing;
+          }
+        }
+      }
+      previous = bits;
+    }
+  }
+
+  private static void readDoubles(BitInput in, List<ClientDeviceInfo> fixes,
+      BiConsumer<ClientDeviceInfo, Double> setter) throws IOException {
+    long previous = 0;
+    int previousLeading = 0;
+    int previousTrailing = 0;
+    boolean first = true;
+    for (ClientDeviceInfo fix : readColumn(in, fixes)) {
+      long bits;
+      if (first) {
+        bits = in.readBits(64);
+        first = false;
+      } else if (!in.readBit()) {
+        bits = previous;
+      } else {
+        if (in.readBit()) {
+          previousLeading = (int) in.readBits(5);
+          previousTrailing = 64 - previousLeading - ((int) in.readBits(6) + 1);
+        }
+        int significant = 64 - previousLeading - previousTrailing;
+        bits = previous ^ (in.readBits(significant) << previousTrailing);
+      }
+      setter.accept(fix, Double.longBitsToDouble(bits));
+      previous = bits;
+    }
+  }
+
+  private static void writeProviders(BitOutput out, List<ClientDeviceInfo> fixes) {
+    List<String> table = new ArrayList<>();
+    List<String> values = writeColumn(out, fixes, ClientDeviceInfo::getProvider);
+    for (String value : values) {
+      if (!table.contains(value)) {
+        table.add(value);
+      }
+    }
+    writeBucketed(out, table.size());
+    for (String provider : table) {
+      byte[] bytes = provider.getBytes(StandardCharsets.UTF_8);
+      writeBucketed(out, bytes.length);
+      for (byte b : bytes) {
+        out.writeBits(b, 8);
+      }
+    }
+    for (String value : values) {
+      writeBucketed(out, table.indexOf(value));
+    }
+  }
+
+  private static void readProviders(BitInput in, List<ClientDeviceInfo> fixes)
+      throws IOException {
+    List<ClientDeviceInfo> present = readColumn(in, fixes);
+    List<String> table = new ArrayList<>();
+    long size = readBucketed(in);
+    for (long i = 0; i < size; i++) {
+      byte[] bytes = new byte[(int) readBucketed(in)];
+      for (int j = 0; j < bytes.length; j++) {
+        bytes[j] = (byte) in.readBits(8);
+      }
+      table.add(new String(bytes, StandardCharsets.UTF_8));
+    }
+    for (ClientDeviceInfo fix : present) {
+      long index = readBucketed(in);
+      if (index < 0 || index >= table.size()) {
+        throw new IOException("unknown provider index " + index);
+      }
+      fix.setProvider(table.get((int) index));
+    }
+  }
+
+  private static void writeBucketed(BitOutput out, long value) {
+    long zigzag = (value << 1) ^ (value >> 63);
+    if (zigzag == 0) {
+      out.writeBit(false);
+    } else if (zigzag < 1L << 7) {
+      out.writeBits(0b10, 2);
+      out.writeBits(zigzag, 7);
+    } else if (zigzag < 1L << 9) {
+      out.writeBits(0b110, 3);
+      out.writeBits(zigzag, 9);
+    } else if (zigzag < 1L << 12) {
+      out.writeBits(0b1110, 4);
+      out.writeBits(zigzag, 12);
+    } else if (zigzag >>> 32 == 0) {
+      out.writeBits(0b11110, 5);
+      out.writeBits(zigzag, 32);
+    } else {
+      out.writeBits(0b11111, 5);
+      out.writeBits(zigzag, 64);
+    }
+  }
+
+  private static long readBucketed(BitInput in) throws IOException {
+    int bits;
+    if (!in.readBit()) {
+      return 0;
+    } else if (!in.readBit()) {
+      bits = 7;
+    } else if (!in.readBit()) {
+      bits = 9;
+    } else if (!in.readBit()) {
+      bits = 12;
+    } else {
+      bits = in.readBit() ? 64 : 32;
+    }
+    long zigzag = in.readBits(bits);
+    return (zigzag >>> 1) ^ -(zigzag & 1);
+  }
+}
@@ -0,0 +1,235 @@
+package com.rokin.celltracker.codec;
+
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary encoding of location fixes.
+ *
+ * <p>
+ * Layout: a version byte, the fix count as varint, then per fix a presence bit mask followed by
+ * the present fields. Id, timestamp, lat and lon are delta encoded against the previous fix as
+ * zigzag varints, lat/lon as fixed point 1e-7 degrees. Altitude, accuracy and bearing are sent in
+ * tenths, speed in hundredths. Provider names go through a per message string table, so a
+ * repeated provider costs one byte.
+ * </p>
+ */
+public class LocationFixCodec {
+
+  public static final String MEDIA_TYPE_VALUE = "application/x-celltracker-fix";
+
+  private static final int VERSION = 1;
+  private static final double COORDINATE_SCALE = 1e7;
+  private static final int MAX_PROVIDER_LENGTH = 255;
+
+  private static final int HAS_ID = 1;
+  private static final int HAS_TIMESTAMP = 1 << 1;
+  private static final int HAS_POSITION = 1 << 2;
+  private static final int HAS_ALTITUDE = 1 << 3;
+  private static final int HAS_ACCURACY = 1 << 4;
+  private static final int HAS_SPEED = 1 << 5;
+  private static final int HAS_BEARING = 1 << 6;
+  private static final int HAS_BATTERY = 1 << 7;
+  private static final int HAS_PROVIDER = 1 << 8;
+
+  private LocationFixCodec() {
+
+  }
+
+  /**
+   * Encode fixes.
+   *
+   * @param fixes
+   *          fixes
+   * @param out
+   *          target stream
+   * @throws IOException
+   *           on write failure
+   */
+  public static void encode(List<ClientDeviceInfo> fixes, OutputStream out) throws IOException {
+    out.write(VERSION);
+    writeVarLong(out, fixes.size());
+    List<String> providers = new ArrayList<>();
+    long id = 0;
+    long timestamp = 0;
+    long lat = 0;
+    long lon = 0;
+    for (ClientDeviceInfo fix : fixes) {
+      int mask = (fix.getId() != null ? HAS_ID : 0)
+          | (fix.getTimestamp() != null ? HAS_TIMESTAMP : 0)
+          | (fix.getLat() != null && fix.getLon() != null ? HAS_POSITION : 0)
+          | (fix.getAltitude() != null ? HAS_ALTITUDE : 0)
+          | (fix.getAccuracy() != null ? HAS_ACCURACY : 0)
+          | (fix.getSpeed() != null ? HAS_SPEED : 0)
+          | (fix.getBearing() != null ? HAS_BEARING : 0)
+          | (fix.getBattery() != null ? HAS_BATTERY : 0)
+          | (fix.getProvider() != null ? HAS_PROVIDER : 0);
+      writeVarLong(out, mask);
+      if ((mask & HAS_ID) != 0) {
+        writeSignedVarLong(out, fix.getId() - id);
+        id = fix.getId();
+      }
+      if ((mask & HAS_TIMESTAMP) != 0) {
+        writeSignedVarLong(out, fix.getTimestamp() - timestamp);
+        timestamp = fix.getTimestamp();
+      }
+      if ((mask & HAS_POSITION) != 0) {
+        long fixLat = Math.round(fix.getLat() * COORDINATE_SCALE);
+        long fixLon = Math.round(fix.getLon() * COORDINATE_SCALE);
+        writeSignedVarLong(out, fixLat - lat);
+        writeSignedVarLong(out, fixLon - lon);
+        lat = fixLat;
+        lon = fixLon;
+      }
+      if ((mask & HAS_ALTITUDE) != 0) {
+        writeSignedVarLong(out, Math.round(fix.getAltitude() * 10));
+      }
+      if ((mask & HAS_ACCURACY) != 0) {
+        writeSignedVarLong(out, Math.round(fix.getAccuracy() * 10));
+      }
+      if ((mask & HAS_SPEED) != 0) {
+        writeSignedVarLong(out, Math.round(fix.getSpeed() * 100));
+      }
+      if ((mask & HAS_BEARING) != 0) {
+        writeSignedVarLong(out, Math.round(fix.getBearing() * 10));
+      }
+      if ((mask & HAS_BATTERY) != 0) {
+        writeSignedVarLong(out, fix.getBattery());
+      }
+      if ((mask & HAS_PROVIDER) != 0) {
+        int index = providers.indexOf(fix.getProvider());
+        if (index < 0) {
+          writeVarLong(out, providers.size());
+          byte[] bytes = fix.getProvider().getBytes(StandardCharsets.UTF_8);
+          writeVarLong(out, bytes.length);
+          out.write(bytes);
+          providers.add(fix.getProvider());
+        } else {
+          writeVarLong(out, index);
+        }
+      }
+    }
+  }
+
+  /**
+   * Decode fixes.
+   *
+   * @param in
+   *          source stream
+   * @return fixes
+   * @throws IOException
+   *           on read failure or malformed input
+   */
+  public static List<ClientDeviceInfo> decode(InputStream in) throws IOException {
+    int version = in.read();
+    if (version != VERSION) {
+      throw new IOException("unsupported location fix encoding version " + version);
+    }
+    long count = readVarLong(in);
+    List<ClientDeviceInfo> fixes = new ArrayList<>((int) Math.min(count, 1024));
+    List<String> providers = new ArrayList<>();
+    long id = 0;
+    long timestamp = 0;
+    long lat = 0;
+    long lon = 0;
+    for (long i = 0; i < count; i++) {
+      int mask = (int) readVarLong(in);
+      ClientDeviceInfo fix = new ClientDeviceInfo();
+      if ((mask & HAS_ID) != 0) {
+        id += readSignedVarLong(in);
+        fix.setId(id);
+      }
+      if ((mask & HAS_TIMESTAMP) != 0) {
+        timestamp += readSignedVarLong(in);
+        fix.setTimestamp(timestamp);
+      }
+      if ((mask & HAS_POSITION) != 0) {
+        lat += readSignedVarLong(in);
+        lon += readSignedVarLong(in);
+        fix.setLat(lat / COORDINATE_SCALE);
+        fix.setLon(lon / COORDINATE_SCALE);
+      }
+      if ((mask & HAS_ALTITUDE) != 0) {
+        fix.setAltitude(readSignedVarLong(in) / 10.0);
+      }
+      if ((mask & HAS_ACCURACY) != 0) {
+        fix.setAccuracy(readSignedVarLong(in) / 10.0);
+      }
+      if ((mask & HAS_SPEED) != 0) {
+        fix.setSpeed(readSignedVarLong(in) / 100.0);
+      }
+      if ((mask & HAS_BEARING) != 0) {
+        fix.setBearing(readSignedVarLong(in) / 10.0);
+      }
+      if ((mask & HAS_BATTERY) != 0) {
+        fix.setBattery((int) readSignedVarLong(in));
+      }
+      if ((mask & HAS_PROVIDER) != 0) {
+        long index = readVarLong(in);
+        if (index == providers.size()) {
+          long length = readVarLong(in);
+          if (length < 0 || length > MAX_PROVIDER_LENGTH) {
+            throw new IOException("invalid provider length " + length);
+          }
+          byte[] bytes = new byte[(int) length];
+          readFully(in, bytes);
+          providers.add(new String(bytes, StandardCharsets.UTF_8));
+        } else if (index < 0 || index > providers.size()) {
+          throw new IOException("unknown provider index " + index);
+        }
+        fix.setProvider(providers.get((int) index));
+      }
+      fixes.add(fix);
+    }
+    return fixes;
+  }
+
+  static void writeVarLong(OutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  static void writeSignedVarLong(OutputStream out, long value) throws IOException {
+    writeVarLong(out, (value << 1) ^ (value >> 63));
+  }
+
+  static long readVarLong(InputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.read();
+      if (b < 0) {
+        throw new EOFException();
+      }
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("malformed varint");
+  }
+
+  static long readSignedVarLong(InputStream in) throws IOException {
+    long value = readVarLong(in);
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static void readFully(InputStream in, byte[] bytes) throws IOException {
+    int offset = 0;
+    while (offset < bytes.length) {
+      int read = in.read(bytes, offset, bytes.length - offset);
+      if (read < 0) {
+        throw new EOFException();
+      }
+      offset += read;
+    }
+  }
+}
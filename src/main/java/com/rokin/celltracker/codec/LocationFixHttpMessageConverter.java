@@ -0,0 +1,89 @@
+package com.rokin.celltracker.codec;
+
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import java.io.IOException;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collections;
+import java.util.List;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractGenericHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+
+/**
+ * Reads and writes a {@link ClientDeviceInfo} or a list of them with {@link LocationFixCodec}
+ * when the {@value LocationFixCodec#MEDIA_TYPE_VALUE} media type is negotiated.
+ */
+public class LocationFixHttpMessageConverter extends AbstractGenericHttpMessageConverter<Object> {
+
+  public static final MediaType MEDIA_TYPE = MediaType.valueOf(LocationFixCodec.MEDIA_TYPE_VALUE);
+
+  public LocationFixHttpMessageConverter() {
+    super(MEDIA_TYPE);
+  }
+
+  @Override
+  protected boolean supports(Class<?> clazz) {
+    return ClientDeviceInfo.class.equals(clazz);
+  }
+
+  @Override
+  public boolean canRead(Type type, Class<?> contextClass, MediaType mediaType) {
+    return isFixType(type) && canRead(mediaType);
+  }
+
+  @Override
+  public boolean canWrite(Type type, Class<?> clazz, MediaType mediaType) {
+    return (type == null ? ClientDeviceInfo.class.equals(clazz) : isFixType(type))
+        && canWrite(mediaType);
+  }
+
+  @Override
+  public Object read(Type type, Class<?> contextClass, HttpInputMessage inputMessage)
+      throws IOException {
+    List<ClientDeviceInfo> fixes = LocationFixCodec.decode(inputMessage.getBody());
+    if (ClientDeviceInfo.class.equals(type)) {
+      if (fixes.size() != 1) {
+        throw new HttpMessageNotReadableException("expected one fix but got " + fixes.size());
+      }
+      return fixes.get(0);
+    }
+    return fixes;
+  }
+
+  @Override
+  protected Object readInternal(Class<? extends Object> clazz, HttpInputMessage inputMessage)
+      throws IOException {
+    return read(clazz, null, inputMessage);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  protected void writeInternal(Object body, Type type, HttpOutputMessage outputMessage)
+      throws IOException {
+    if (body instanceof ClientDeviceInfo) {
+      LocationFixCodec.encode(Collections.singletonList((ClientDeviceInfo) body),
+          outputMessage.getBody());
+    } else if (body instanceof List) {
+      LocationFixCodec.encode((List<ClientDeviceInfo>) body, outputMessage.getBody());
+    } else {
+      throw new HttpMessageNotWritableException("cannot encode " + body.getClass());
+    }
+  }
+
+  private boolean isFixType(Type type) {
+    if (ClientDeviceInfo.class.equals(type)) {
+      return true;
+    }
+    if (type instanceof ParameterizedType) {
+      ParameterizedType parameterizedType = (ParameterizedType) type;
+      return parameterizedType.getRawType() instanceof Class
+          && List.class.isAssignableFrom((Class<?>) parameterizedType.getRawType())
+          && ClientDeviceInfo.class.equals(parameterizedType.getActualTypeArguments()[0]);
+    }
+    return false;
+  }
+}
@@ -1,16 +1,29 @@
 package com.rokin.celltracker.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.rokin.celltracker.domain.Circle;
 import com.rokin.celltracker.domain.Client;
 import com.rokin.celltracker.domain.ClientDeviceInfo;
+import com.rokin.celltracker.domain.ClientLocationRollup.Resolution;
 import com.rokin.celltracker.domain.Message;
 import com.rokin.celltracker.dto.CircleInfo;
+import com.rokin.celltracker.dto.LocationHistoryPage;
+import com.rokin.celltracker.dto.MemberLocation;
 import com.rokin.celltracker.service.CircleService;
+import com.rokin.celltracker.service.LocationHistoryService;
+import io.reactivex.Flowable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.security.Principal;
 import java.util.List;
 import javax.annotation.Resource;
 import javax.validation.Valid;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.DeleteMapping;
@@ -22,14 +35,23 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 @RestController
 @RequestMapping("/api/circles")
 @PreAuthorize("hasAuthority('CLIENT')")
 public class CircleController {
 
+  public static final String NDJSON_VALUE = "application/x-ndjson";
+  private static final int NDJSON_FLUSH_INTERVAL = 500;
+
   @Resource
   CircleService circleService;
+  @Resource
+  LocationHistoryService locationHistoryService;
+  @Resource
+  ObjectMapper objectMapper;
 
   /**
    * Add circle.
@@ -88,14 +110,154 @@ public class CircleController {
     return circleService.getCircleMemebers(principal.getName(), circleId);
   }
 
+  /**
+   * Stream circle members as JSON lines, loading further members only as fast as the client reads
+   * them.
+   * 
+   * @param circleId
+   *          circle id
+   * @param principal
+   *          user session info
+   * @return
+   */
+  @GetMapping(value = "/{circleId}/members/stream",
+      produces = MediaType.APPLICATION_STREAM_JSON_VALUE)
+  public Flowable<Client> flowCircleMemebers(
+      @PathVariable(value = "circleId", required = true) String circleId, Principal principal) {
+    return circleService.flowCircleMemebers(principal.getName(), circleId);
+  }
+
+  @GetMapping(value = "/{circleId}/locations")
+  public List<MemberLocation> getCircleLocations(
+      @PathVariable(value = "circleId", required = true) String circleId, Principal principal) {
+    return circleService.getCircleLocations(principal.getName(), circleId);
+  }
+
+  @GetMapping(value = "/{circleId}/locations/stream",
+      produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  public SseEmitter streamCircleLocations(
+      @PathVariable(value = "circleId", required = true) String circleId, Principal principal) {
+    return circleService.subscribeCircleLocations(principal.getName(), circleId);
+  }
+
   @GetMapping(value = "/{circleId}/members/{memberId}/locationhistory")
   public List<ClientDeviceInfo> getCircleMemberLocationHistory(
       @PathVariable(value = "circleId", required = true) String circleId,
       @PathVariable(value = "memberId", required = true) Long memeberId,
       @RequestParam(value = "fromtime", required = true) Long fromTime,
-      @RequestParam(value = "totime", required = true) Long toTime, Principal principal) {
+      @RequestParam(value = "totime", required = true) Long toTime,
+      @RequestParam(value = "resolution", required = false) Resolution resolution,
+      @RequestParam(value = "maxpoints", required = false) Integer maxPoints,
+      Principal principal) {
     return circleService.getCircleMemberLocationHistory(principal.getName(), circleId, memeberId,
-        fromTime, toTime);
+        fromTime, toTime, resolution, maxPoints);
+  }
+
+  /**
+   * Get member location history page by page. Pages are seeked by (timestamp, id), pass the
+   * returned next cursor to get the following page.
+   * 
+   * @param circleId
+   *          circle id
+   * @param memeberId
+   *          of circle member
+   * @param fromTime
+   *          from time, inclusive
+   * @param toTime
+   *          to time, inclusive
+   * @param cursor
+   *          next cursor of the previous page
+   * @param pageSize
+   *          page size, capped to the configured max
+   * @param principal
+   *          user session info
+   * @return
+   */
+  @GetMapping(value = "/{circleId}/members/{memberId}/locationhistory/page")
+  public LocationHistoryPage getCircleMemberLocationHistoryPage(
+      @PathVariable(value = "circleId", required = true) String circleId,
+      @PathVariable(value = "memberId", required = true) Long memeberId,
+      @RequestParam(value = "fromtime", required = true) Long fromTime,
+      @RequestParam(value = "totime", required = true) Long toTime,
+      @RequestParam(value = "cursor", required = false) String cursor,
+      @RequestParam(value = "pagesize", required = false) Integer pageSize, Principal principal) {
+    return circleService.getCircleMemberLocationHistoryPage(principal.getName(), circleId,
+        memeberId, fromTime, toTime, cursor, pageSize);
+  }
+
+  /**
+   * Stream member location history as newline delimited JSON, one device info per line, without
+   * holding the range in memory.
+   * 
+   * @param circleId
+   *          circle id
+   * @param memeberId
+   *          of circle member
+   * @param fromTime
+   *          from time, inclusive
+   * @param toTime
+   *          to time, inclusive
+   * @param principal
+   *          user session info
+   * @return
+   */
+  @GetMapping(value = "/{circleId}/members/{memberId}/locationhistory", produces = NDJSON_VALUE)
+  public ResponseEntity<StreamingResponseBody> streamCircleMemberLocationHistory(
+      @PathVariable(value = "circleId", required = true) String circleId,
+      @PathVariable(value = "memberId", required = true) Long memeberId,
+      @RequestParam(value = "fromtime", required = true) Long fromTime,
+      @RequestParam(value = "totime", required = true) Long toTime, Principal principal) {
+    circleService.checkCircleMember(principal.getName(), circleId, memeberId);
+    return ResponseEntity.ok().contentType(MediaType.valueOf(NDJSON_VALUE)).body(out -> {
+      ObjectWriter writer = objectMapper.writerFor(ClientDeviceInfo.class)
+          .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE)
+          .without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      try (SequenceWriter lines = writer.withRootValueSeparator("\n").writeValues(out)) {
+        int[] count = { 0 };
+        locationHistoryService.streamHistory(memeberId, fromTime, toTime, fix -> {
+          try {
+            lines.write(fix);
+            if (++count[0] % NDJSON_FLUSH_INTERVAL == 0) {
+              lines.flush();
+            }
+          } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+          }
+        });
+      }
+      out.write('\n');
+    });
+  }
+
+  /**
+   * Stream member location history with backpressure, one JSON array of device infos per line
+   * and page. The next page is read only once the client took the previous one, so a slow reader
+   * holds at most one page on the server.
+   * 
+   * @param circleId
+   *          circle id
+   * @param memeberId
+   *          of circle member
+   * @param fromTime
+   *          from time, inclusive
+   * @param toTime
+   *          to time, inclusive
+   * @param pageSize
+   *          page size, capped to the configured max
+   * @param principal
+   *          user session info
+   * @return
+   */
+  @GetMapping(value = "/{circleId}/members/{memberId}/locationhistory/stream",
+      produces = MediaType.APPLICATION_STREAM_JSON_VALUE)
+  public Flowable<List<ClientDeviceInfo>> flowCircleMemberLocationHistory(
+      @PathVariable(value = "circleId", required = true) String circleId,
+      @PathVariable(value = "memberId", required = true) Long memeberId,
+      @RequestParam(value = "fromtime", required = true) Long fromTime,
+      @RequestParam(value = "totime", required = true) Long toTime,
+      @RequestParam(value = "pagesize", required = false) Integer pageSize, Principal principal) {
+    return circleService.flowCircleMemberLocationHistory(principal.getName(), circleId,
+        memeberId, fromTime, toTime, pageSize);
   }
 
   /**
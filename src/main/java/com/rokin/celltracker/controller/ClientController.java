@@ -3,7 +3,10 @@ package com.rokin.celltracker.controller;
 import com.rokin.celltracker.domain.Client;
 import com.rokin.celltracker.domain.ClientDeviceInfo;
 import com.rokin.celltracker.domain.ClientFavoritePlace;
+import com.rokin.celltracker.dto.Dashboard;
 import com.rokin.celltracker.service.ClientService;
+import com.rokin.celltracker.service.DashboardService;
+import com.rokin.celltracker.service.LocationWriteBehindService;
 import java.security.Principal;
 import java.util.List;
 import javax.validation.Valid;
@@ -22,6 +25,7 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
 
 @RequiredArgsConstructor
@@ -31,6 +35,8 @@ import org.springframework.web.multipart.MultipartFile;
 public class ClientController {
 
   private final ClientService clientService;
+  private final LocationWriteBehindService locationWriteBehindService;
+  private final DashboardService dashboardService;
 
   /**
    * Add client.
@@ -60,12 +66,30 @@ public class ClientController {
 
   @GetMapping(value = "/details")
   public Client getClient(Principal principal) {
-    return clientService.getClientByUserName(principal.getName());
+    return clientService.getClientDetails(principal.getName());
+  }
+
+  /**
+   * Get dashboard, or not modified when the tag the client holds is still current.
+   * 
+   * @param principal
+   *          principal
+   * @param request
+   *          request
+   * @return
+   */
+  @GetMapping(value = "/dashboard")
+  public ResponseEntity<Dashboard> getDashboard(Principal principal, WebRequest request) {
+    String tag = dashboardService.getTag(principal.getName());
+    if (request.checkNotModified(tag)) {
+      return null;
+    }
+    return ResponseEntity.ok().eTag(tag).body(dashboardService.getDashboard(principal.getName()));
   }
 
   @GetMapping(value = "/{id}")
   public Client getClient(@PathVariable(value = "id", required = true) Long id) {
-    return clientService.getClient(id);
+    return clientService.getClientDetails(id);
   }
 
   /**
@@ -84,8 +108,10 @@ public class ClientController {
   @PutMapping(value = "/{id}")
   public Client updateClient(@PathVariable(value = "id", required = true) Long id,
       @Valid Client client, @RequestParam("file") MultipartFile uploadFile, Principal principal) {
-    if (id == client.getId()) {
-      return clientService.updateClient(principal.getName(), client, uploadFile);
+    if (id.equals(client.getId())) {
+      clientService.updateClient(principal.getName(), client, uploadFile);
+      // after the update committed, so the in-memory latest fix is not written to the row
+      return clientService.getClientDetails(id);
     }
     throw new IllegalArgumentException("client info not valid");
   }
@@ -100,7 +126,14 @@ public class ClientController {
   @PostMapping(value = "/{id}/deviceinfo")
   public Boolean addClientDeviceInfo(@PathVariable(value = "id", required = true) Long id,
       @RequestBody @Valid ClientDeviceInfo clientDeviceInfo, Principal principal) {
-    return clientService.addClientDeviceInfo(principal.getName(), clientDeviceInfo);
+    return locationWriteBehindService.addClientDeviceInfo(principal.getName(), clientDeviceInfo);
+  }
+
+  @PostMapping(value = "/{id}/deviceinfo/batch")
+  public Boolean addClientDeviceInfos(@PathVariable(value = "id", required = true) Long id,
+      @RequestBody @Valid List<ClientDeviceInfo> clientDeviceInfos, Principal principal) {
+    return locationWriteBehindService.addClientDeviceInfos(principal.getName(),
+        clientDeviceInfos);
   }
 
   @PostMapping(value = "/{id}/favoriteplaces")
@@ -1,6 +1,10 @@
 package com.rokin.celltracker.domain;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.Id;
 import javax.persistence.OneToOne;
 import lombok.AllArgsConstructor;
@@ -21,6 +25,10 @@ public class Circle {
   private String code;
   private Long codeUpdateTimestamp;
   private Boolean active;
-  @OneToOne
+  @OneToOne(fetch = FetchType.LAZY)
+  @JsonIgnoreProperties({"roles", "latestDeviceInfo"})
   private Client owner;
+  @JsonIgnore
+  @Column(updatable = false)
+  private Integer memberCount;
 }
@@ -1,6 +1,7 @@
 package com.rokin.celltracker.domain;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import java.util.List;
 import javax.persistence.Column;
 import javax.persistence.ElementCollection;
@@ -25,6 +26,7 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor
 @AllArgsConstructor
 @IdentifiableClient
+@JsonIgnoreProperties({"hibernateLazyInitializer", "handler"})
 public class Client {
   
   public enum Role {
@@ -45,9 +47,9 @@ public class Client {
   private String password;
   private String deviceId;
   private String pushNotificationId;
-  @OneToOne
+  @OneToOne(fetch = FetchType.LAZY)
   private ClientDeviceInfo latestDeviceInfo;
-  @ElementCollection(fetch = FetchType.EAGER)
+  @ElementCollection
   private List<Role> roles;
   @Column(name = "enabled", nullable = false)
   private boolean enabled;
@@ -4,6 +4,7 @@ import java.io.Serializable;
 import javax.persistence.Entity;
 import javax.persistence.EnumType;
 import javax.persistence.Enumerated;
+import javax.persistence.FetchType;
 import javax.persistence.Id;
 import javax.persistence.IdClass;
 import javax.persistence.ManyToOne;
@@ -26,10 +27,10 @@ public class ClientCircle implements Serializable {
 
   private static final long serialVersionUID = 1L;
   @Id
-  @ManyToOne
+  @ManyToOne(fetch = FetchType.LAZY)
   private Client client;
   @Id
-  @ManyToOne
+  @ManyToOne(fetch = FetchType.LAZY)
   private Circle circle;
   @Enumerated(EnumType.STRING)
   private Role role;
@@ -1,11 +1,16 @@
 package com.rokin.celltracker.domain;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.ManyToOne;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
@@ -13,13 +18,18 @@ import lombok.NoArgsConstructor;
 
 @Entity
 @Data
-@Builder
+@Builder(toBuilder = true)
 @NoArgsConstructor
 @AllArgsConstructor
+@Table(indexes = @Index(name = "client_device_info_client_timestamp_id_idx",
+    columnList = "client_id,timestamp,id"))
+@JsonIgnoreProperties({"hibernateLazyInitializer", "handler"})
 public class ClientDeviceInfo {
   
   @Id
-  @GeneratedValue(strategy = GenerationType.AUTO)
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "client_device_info_seq")
+  @SequenceGenerator(name = "client_device_info_seq", sequenceName = "client_device_info_seq",
+      allocationSize = 50)
   private Long id;
   private Double lat;
   private Double lon;
@@ -30,7 +40,7 @@ public class ClientDeviceInfo {
   private String provider;
   private Integer battery;
   private Long timestamp;
-  @ManyToOne
+  @ManyToOne(fetch = FetchType.LAZY)
   @JsonIgnore
   private Client client;
 }
@@ -0,0 +1,36 @@
+package com.rokin.celltracker.domain;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Archived device infos of one client within one UTC day, encoded with
+ * {@link com.rokin.celltracker.codec.LocationArchiveCodec}.
+ */
+@Entity
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Table(indexes = @Index(name = "client_device_info_archive_client_timestamp_idx",
+    columnList = "clientId,fromTimestamp"))
+public class ClientDeviceInfoArchive {
+  @Id
+  @GeneratedValue(strategy = GenerationType.AUTO)
+  private Long id;
+  private Long clientId;
+  private Long fromTimestamp;
+  private Long toTimestamp;
+  private Integer fixCount;
+  @Column(length = Integer.MAX_VALUE)
+  private byte[] data;
+}
@@ -0,0 +1,95 @@
+package com.rokin.celltracker.domain;
+
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * One point of a downsampled history tier: the latest fix of a client within one time bucket
+ * and the number of fixes the bucket covers.
+ */
+@Entity
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Table(uniqueConstraints = @UniqueConstraint(name = "client_location_rollup_bucket_uk",
+    columnNames = { "clientId", "resolution", "bucketStart" }),
+    indexes = @Index(name = "client_location_rollup_client_timestamp_idx",
+        columnList = "clientId,resolution,timestamp"))
+public class ClientLocationRollup {
+
+  public enum Resolution {
+    RAW(0), MINUTE(60000), TEN_MINUTES(600000), HOUR(3600000);
+
+    private final long millis;
+
+    Resolution(long millis) {
+      this.millis = millis;
+    }
+
+    public long getMillis() {
+      return millis;
+    }
+
+    public long bucketStart(long timestamp) {
+      return Math.floorDiv(timestamp, millis) * millis;
+    }
+  }
+
+  @Id
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "client_location_rollup_seq")
+  @SequenceGenerator(name = "client_location_rollup_seq",
+      sequenceName = "client_location_rollup_seq", allocationSize = 50)
+  private Long id;
+  private Long clientId;
+  @Enumerated(EnumType.STRING)
+  private Resolution resolution;
+  private Long bucketStart;
+  private Long timestamp;
+  private Double lat;
+  private Double lon;
+  private Double accuracy;
+  private Integer battery;
+  private Long fixCount;
+
+  /**
+   * Fold another point of the same bucket into this one.
+   * 
+   * @param other
+   *          point of the same bucket
+   * @return this
+   */
+  public ClientLocationRollup merge(ClientLocationRollup other) {
+    if (other.getTimestamp() >= timestamp) {
+      timestamp = other.getTimestamp();
+      lat = other.getLat();
+      lon = other.getLon();
+      accuracy = other.getAccuracy();
+      battery = other.getBattery();
+    }
+    fixCount += other.getFixCount();
+    return this;
+  }
+
+  /**
+   * Get the point as device info.
+   * 
+   * @return
+   */
+  public ClientDeviceInfo toDeviceInfo() {
+    return ClientDeviceInfo.builder().lat(lat).lon(lon).accuracy(accuracy).battery(battery)
+        .timestamp(timestamp).build();
+  }
+}
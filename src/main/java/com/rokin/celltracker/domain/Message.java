@@ -4,7 +4,9 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.OneToOne;
+import javax.persistence.Table;
 import javax.validation.constraints.NotNull;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
@@ -16,6 +18,7 @@ import lombok.NoArgsConstructor;
 @Builder
 @NoArgsConstructor
 @AllArgsConstructor
+@Table(indexes = @Index(name = "message_next_attempt_at_idx", columnList = "nextAttemptAt"))
 public class Message {
 
   public enum MessageType {
@@ -41,4 +44,17 @@ public class Message {
   @NotNull
   private ClientDeviceInfo deviceInfo;
   private Boolean isSent;
+  /**
+   * number of delivery attempts so far.
+   */
+  private Integer attempts;
+  /**
+   * earliest time of the next delivery attempt, null once sent or given up.
+   */
+  private Long nextAttemptAt;
+  private String lastError;
+  /**
+   * id of the last client a broadcast was sent to.
+   */
+  private Long broadcastCursor;
 }
@@ -0,0 +1,15 @@
+package com.rokin.celltracker.dto;
+
+import com.rokin.celltracker.domain.Circle;
+import com.rokin.celltracker.domain.Client;
+import java.util.List;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+
+@Data
+@RequiredArgsConstructor
+public class CircleDashboard {
+  private final Circle circle;
+  private final Integer memberCount;
+  private final List<Client> members;
+}
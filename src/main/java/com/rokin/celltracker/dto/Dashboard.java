@@ -0,0 +1,15 @@
+package com.rokin.celltracker.dto;
+
+import com.rokin.celltracker.domain.Client;
+import com.rokin.celltracker.domain.ClientFavoritePlace;
+import java.util.List;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+
+@Data
+@RequiredArgsConstructor
+public class Dashboard {
+  private final Client client;
+  private final List<CircleDashboard> circles;
+  private final List<ClientFavoritePlace> favoritePlaces;
+}
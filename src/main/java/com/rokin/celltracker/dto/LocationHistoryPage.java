@@ -0,0 +1,16 @@
+package com.rokin.celltracker.dto;
+
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import java.util.List;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+
+@Data
+@RequiredArgsConstructor
+public class LocationHistoryPage {
+  private final List<ClientDeviceInfo> deviceInfos;
+  /**
+   * pass as cursor to get the next page, null on the last page.
+   */
+  private final String nextCursor;
+}
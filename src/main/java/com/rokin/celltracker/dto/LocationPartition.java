@@ -0,0 +1,10 @@
+package com.rokin.celltracker.dto;
+
+import lombok.Data;
+
+@Data
+public class LocationPartition {
+  private final String name;
+  private final Long fromTimestamp;
+  private final Long toTimestamp;
+}
@@ -0,0 +1,21 @@
+package com.rokin.celltracker.dto;
+
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+
+@Data
+@RequiredArgsConstructor
+public class MemberLocation {
+  private final Long memberId;
+  private final Double lat;
+  private final Double lon;
+  private final Double accuracy;
+  private final Integer battery;
+  private final Long timestamp;
+
+  public static MemberLocation of(Long memberId, ClientDeviceInfo deviceInfo) {
+    return new MemberLocation(memberId, deviceInfo.getLat(), deviceInfo.getLon(),
+        deviceInfo.getAccuracy(), deviceInfo.getBattery(), deviceInfo.getTimestamp());
+  }
+}
@@ -0,0 +1,15 @@
+package com.rokin.celltracker.dto;
+
+import java.util.Map;
+import java.util.Set;
+import lombok.Data;
+
+/**
+ * Registration ids FCM reported back for one request: ids to replace by their canonical id and
+ * ids that no longer reach a device.
+ */
+@Data
+public class PushTokenUpdates {
+  private final Map<String, String> canonicalIds;
+  private final Set<String> deadIds;
+}
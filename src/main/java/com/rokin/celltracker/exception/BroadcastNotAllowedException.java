@@ -0,0 +1,13 @@
+package com.rokin.celltracker.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(code = HttpStatus.FORBIDDEN)
+public class BroadcastNotAllowedException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+  
+  public BroadcastNotAllowedException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,13 @@
+package com.rokin.celltracker.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(code = HttpStatus.BAD_REQUEST)
+public class InvalidCursorException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+  
+  public InvalidCursorException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,13 @@
+package com.rokin.celltracker.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.TOO_MANY_REQUESTS)
+public class LocationQueueFullException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public LocationQueueFullException(String message) {
+    super(message);
+  }
+}
@@ -2,17 +2,43 @@ package com.rokin.celltracker.repository;
 
 import com.rokin.celltracker.domain.Circle;
 import com.rokin.celltracker.domain.Client;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
+import javax.persistence.QueryHint;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.PagingAndSortingRepository;
+import org.springframework.data.repository.query.Param;
 
 public interface CircleRepository extends PagingAndSortingRepository<Circle, String> {
   Page<Circle> findAll(Pageable pageabel);
   
+  @EntityGraph(attributePaths = "owner")
   Optional<Circle> findByCode(String code);
+
+  @EntityGraph(attributePaths = "owner")
+  List<Circle> findByIdIn(Collection<String> ids);
   
   Optional<Circle> findByIdAndOwner(String id, Client owner);
-  
-  
+
+  @QueryHints(@QueryHint(name = "org.hibernate.fetchSize", value = "1000"))
+  @Query("select c.code from Circle c where c.code is not null")
+  Stream<String> streamCodes();
+
+  @Modifying
+  @Query("update Circle c set c.memberCount = c.memberCount + :delta"
+      + " where c.id = :circleId and c.memberCount is not null")
+  int addMemberCount(@Param("circleId") String circleId, @Param("delta") int delta);
+
+  @Modifying
+  @Query("update Circle c set c.memberCount = :memberCount"
+      + " where c.id = :circleId and c.memberCount is null")
+  int initMemberCount(@Param("circleId") String circleId,
+      @Param("memberCount") Integer memberCount);
 }
@@ -3,13 +3,18 @@ package com.rokin.celltracker.repository;
 import com.rokin.celltracker.domain.Circle;
 import com.rokin.celltracker.domain.Client;
 import com.rokin.celltracker.domain.ClientCircle;
+import com.rokin.celltracker.domain.ClientCircle.Role;
 import com.rokin.celltracker.domain.ClientCirclePk;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.PagingAndSortingRepository;
+import org.springframework.data.repository.query.Param;
 
 public interface ClientCircleRepository
     extends PagingAndSortingRepository<ClientCircle, ClientCirclePk> {
@@ -20,5 +25,31 @@ public interface ClientCircleRepository
 
   List<ClientCircle> findByCircle(Circle circle);
   
-  List<ClientCircle> findByClient(Client client);
+  @Query("select cc from ClientCircle cc join fetch cc.circle c join fetch c.owner"
+      + " where cc.client = :client")
+  List<ClientCircle> findByClient(@Param("client") Client client);
+
+  @Query("select cc.client.id from ClientCircle cc where cc.circle.id = :circleId"
+      + " and cc.isInCircle = true and cc.circle.active = true")
+  List<Long> findMemberIds(@Param("circleId") String circleId);
+
+  @Query("select cc.circle.id from ClientCircle cc where cc.client.id = :clientId"
+      + " and cc.isInCircle = true and cc.circle.active = true")
+  List<String> findCircleIds(@Param("clientId") Long clientId);
+
+  @Query("select cc.circle.id, count(cc) from ClientCircle cc"
+      + " where cc.circle.id in :circleIds and cc.isInCircle = true group by cc.circle.id")
+  List<Object[]> countMembers(@Param("circleIds") Collection<String> circleIds);
+
+  @Modifying
+  @Query("update ClientCircle cc set cc.isInCircle = true, cc.role = :role,"
+      + " cc.jointimestamp = :jointimestamp where cc.client.id = :clientId"
+      + " and cc.circle.id = :circleId and (cc.isInCircle is null or cc.isInCircle = false)")
+  int rejoin(@Param("clientId") Long clientId, @Param("circleId") String circleId,
+      @Param("role") Role role, @Param("jointimestamp") Long jointimestamp);
+
+  @Modifying
+  @Query("update ClientCircle cc set cc.isInCircle = false where cc.client.id = :clientId"
+      + " and cc.circle.id = :circleId and cc.isInCircle = true")
+  int leave(@Param("clientId") Long clientId, @Param("circleId") String circleId);
 }
@@ -0,0 +1,17 @@
+package com.rokin.celltracker.repository;
+
+import com.rokin.celltracker.domain.ClientDeviceInfoArchive;
+import java.util.List;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.PagingAndSortingRepository;
+import org.springframework.data.repository.query.Param;
+
+public interface ClientDeviceInfoArchiveRepository
+    extends PagingAndSortingRepository<ClientDeviceInfoArchive, Long> {
+  @Query("select a.id from ClientDeviceInfoArchive a where a.clientId = :clientId"
+      + " and a.fromTimestamp <= :toTime and a.toTimestamp >= :fromTime order by a.fromTimestamp")
+  List<Long> findIdsOverlapping(@Param("clientId") Long clientId,
+      @Param("fromTime") Long fromTime, @Param("toTime") Long toTime);
+
+  long deleteByFromTimestampGreaterThanEqualAndToTimestampLessThan(Long fromTime, Long toTime);
+}
@@ -2,12 +2,48 @@ package com.rokin.celltracker.repository;
 
 import com.rokin.celltracker.domain.Client;
 import com.rokin.celltracker.domain.ClientDeviceInfo;
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
+import javax.persistence.QueryHint;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.PagingAndSortingRepository;
+import org.springframework.data.repository.query.Param;
 
 
 public interface ClientDeviceInfoRepository
     extends PagingAndSortingRepository<ClientDeviceInfo, Long> {
   List<ClientDeviceInfo> findByClientAndTimestampGreaterThanEqualAndTimestampLessThanEqual(
       Client client, Long fromTime, Long toTime);  
+
+  @QueryHints(@QueryHint(name = "org.hibernate.fetchSize", value = "500"))
+  @Query("select d from ClientDeviceInfo d where d.client.id = :clientId"
+      + " and d.timestamp >= :afterTimestamp and d.timestamp <= :toTime"
+      + " and (d.timestamp > :afterTimestamp or d.id > :afterId) order by d.timestamp, d.id")
+  Stream<ClientDeviceInfo> streamHistoryAfter(@Param("clientId") Long clientId,
+      @Param("afterTimestamp") Long afterTimestamp, @Param("afterId") Long afterId,
+      @Param("toTime") Long toTime);
+
+  @Query("select d from ClientDeviceInfo d where d.client.id = :clientId"
+      + " and d.timestamp >= :afterTimestamp and d.timestamp <= :toTime"
+      + " and (d.timestamp > :afterTimestamp or d.id > :afterId) order by d.timestamp, d.id")
+  List<ClientDeviceInfo> findHistoryAfter(@Param("clientId") Long clientId,
+      @Param("afterTimestamp") Long afterTimestamp, @Param("afterId") Long afterId,
+      @Param("toTime") Long toTime, Pageable pageable);
+
+  @Query("select distinct d.client.id from ClientDeviceInfo d where d.timestamp < :before")
+  List<Long> findClientIdsWithDeviceInfoBefore(@Param("before") Long before);
+
+  @Query("select d from ClientDeviceInfo d where d.client.id = :clientId and d.timestamp < :before"
+      + " and not exists (select c from Client c where c.latestDeviceInfo = d)"
+      + " and not exists (select m from Message m where m.deviceInfo = d) order by d.timestamp")
+  List<ClientDeviceInfo> findArchivable(@Param("clientId") Long clientId,
+      @Param("before") Long before, Pageable pageable);
+
+  @Modifying
+  @Query("delete from ClientDeviceInfo d where d.id in :ids")
+  int deleteByIdIn(@Param("ids") Collection<Long> ids);
 }
@@ -3,11 +3,14 @@ package com.rokin.celltracker.repository;
 import com.rokin.celltracker.domain.Client;
 import com.rokin.celltracker.domain.ClientFavoritePlace;
 import java.util.List;
+import java.util.Optional;
 import org.springframework.data.repository.PagingAndSortingRepository;
 
 public interface ClientFavouritePlaceRepository
     extends PagingAndSortingRepository<ClientFavoritePlace, Long> {
 
   List<ClientFavoritePlace> findByClient(Client client);
+
+  Optional<ClientFavoritePlace> findByIdAndClient(Long id, Client client);
   
 }
@@ -0,0 +1,27 @@
+package com.rokin.celltracker.repository;
+
+import com.rokin.celltracker.domain.ClientLocationRollup;
+import com.rokin.celltracker.domain.ClientLocationRollup.Resolution;
+import java.util.List;
+import java.util.Optional;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.PagingAndSortingRepository;
+import org.springframework.data.repository.query.Param;
+
+public interface ClientLocationRollupRepository
+    extends PagingAndSortingRepository<ClientLocationRollup, Long> {
+  Optional<ClientLocationRollup> findByClientIdAndResolutionAndBucketStart(Long clientId,
+      Resolution resolution, Long bucketStart);
+
+  List<ClientLocationRollup> findByClientIdAndResolutionAndTimestampBetweenOrderByTimestamp(
+      Long clientId, Resolution resolution, Long fromTime, Long toTime);
+
+  @Query("select count(r), coalesce(sum(r.fixCount), 0) from ClientLocationRollup r"
+      + " where r.clientId = :clientId and r.resolution = :resolution"
+      + " and r.timestamp between :fromTime and :toTime")
+  List<Object[]> countBuckets(@Param("clientId") Long clientId,
+      @Param("resolution") Resolution resolution, @Param("fromTime") Long fromTime,
+      @Param("toTime") Long toTime);
+
+  long deleteByBucketStartGreaterThanEqualAndBucketStartLessThan(Long fromTime, Long toTime);
+}
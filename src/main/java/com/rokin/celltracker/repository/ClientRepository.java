@@ -1,19 +1,72 @@
 package com.rokin.celltracker.repository;
 
 import com.rokin.celltracker.domain.Client;
+import com.rokin.celltracker.domain.ClientDeviceInfo;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
+import javax.persistence.QueryHint;
 
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.PagingAndSortingRepository;
+import org.springframework.data.repository.query.Param;
 
 public interface ClientRepository extends PagingAndSortingRepository<Client, Long> {
   Page<Client> findAll(Pageable pageabel);
 
   Optional<Client> findByEmailOrCellNo(String email, String cellNo);
 
+  @EntityGraph(attributePaths = "roles")
+  Optional<Client> findWithRolesByEmailOrCellNo(String email, String cellNo);
+
+  @EntityGraph(attributePaths = "roles")
+  Optional<Client> findWithRolesById(Long id);
+
+  @Query("select distinct c from Client c left join fetch c.roles where c.id in :ids")
+  List<Client> findWithRolesByIdIn(@Param("ids") Collection<Long> ids);
+
+  @Query(value = "select c.id from Client c", countQuery = "select count(c) from Client c")
+  Page<Long> findIds(Pageable pageable);
+
   Optional<Client> findByEmail(String email);
   
   Optional<Client> findByCellNo(String cellNo);
+
+  @Modifying
+  @Query("update Client c set c.latestDeviceInfo = :deviceInfo where c.id = :clientId")
+  int updateLatestDeviceInfo(@Param("clientId") Long clientId,
+      @Param("deviceInfo") ClientDeviceInfo deviceInfo);
+
+  @Query("select c.id, d.id, d.lat, d.lon, d.altitude, d.accuracy, d.speed, d.bearing,"
+      + " d.provider, d.battery, d.timestamp from Client c join c.latestDeviceInfo d"
+      + " where c.id in :ids")
+  List<Object[]> findLatestDeviceInfos(@Param("ids") Collection<Long> ids);
+
+  @Query("select distinct c.pushNotificationId from Client c where c.id in :ids"
+      + " and c.pushNotificationId is not null and c.pushNotificationId <> ''")
+  List<String> findPushNotificationIds(@Param("ids") Collection<Long> ids);
+
+  @Query("select c.id, c.pushNotificationId from Client c where c.id > :afterId"
+      + " and c.enabled = true and c.pushNotificationId is not null"
+      + " and c.pushNotificationId <> '' order by c.id")
+  List<Object[]> findPushNotificationIdsAfter(@Param("afterId") Long afterId,
+      Pageable pageable);
+
+  @Query("select c.id from Client c where c.pushNotificationId in :tokens")
+  List<Long> findIdsByPushNotificationIdIn(@Param("tokens") Collection<String> tokens);
+
+  @Modifying
+  @Query("update Client c set c.pushNotificationId = null where c.pushNotificationId in :tokens")
+  int clearPushNotificationIds(@Param("tokens") Collection<String> tokens);
+
+  @QueryHints(@QueryHint(name = "org.hibernate.flushMode", value = "COMMIT"))
+  @Query("select d.id from Client c join c.latestDeviceInfo d where c.id = :clientId"
+      + " and not exists (select m from Message m where m.deviceInfo = d)")
+  Optional<Long> findUnsharedLatestDeviceInfoId(@Param("clientId") Long clientId);
 }
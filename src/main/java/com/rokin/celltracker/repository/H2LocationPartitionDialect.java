@@ -0,0 +1,52 @@
+package com.rokin.celltracker.repository;
+
+import com.rokin.celltracker.dto.LocationPartition;
+import java.util.List;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Emulated partitioning for H2, which has no table partitioning. Partition ranges are only
+ * recorded in a bookkeeping table; dropping a partition deletes its time range through the
+ * (client_id, timestamp) index. Keeps the partition lifecycle exercised in tests.
+ */
+@RequiredArgsConstructor
+public class H2LocationPartitionDialect implements LocationPartitionDialect {
+
+  private final JdbcTemplate jdbcTemplate;
+
+  @Override
+  public boolean prepare() {
+    jdbcTemplate.execute("create table if not exists client_device_info_partition ("
+        + "name varchar(255) primary key, from_timestamp bigint not null, "
+        + "to_timestamp bigint not null)");
+    return true;
+  }
+
+  @Override
+  public List<LocationPartition> listPartitions() {
+    return jdbcTemplate.query(
+        "select name, from_timestamp, to_timestamp from client_device_info_partition",
+        (rs, i) -> new LocationPartition(rs.getString(1), rs.getLong(2), rs.getLong(3)));
+  }
+
+  @Override
+  public void createPartition(LocationPartition partition) {
+    jdbcTemplate.update("merge into client_device_info_partition key (name) values (?, ?, ?)",
+        partition.getName(), partition.getFromTimestamp(), partition.getToTimestamp());
+  }
+
+  @Override
+  public void dropPartition(LocationPartition partition) {
+    String range = "(select id from client_device_info where timestamp >= ? and timestamp < ?)";
+    Object[] bounds = { partition.getFromTimestamp(), partition.getToTimestamp() };
+    jdbcTemplate.update("update message set device_info_id = null where device_info_id in " + range,
+        bounds);
+    jdbcTemplate.update("update client set latest_device_info_id = null "
+        + "where latest_device_info_id in " + range, bounds);
+    jdbcTemplate.update("delete from client_device_info where timestamp >= ? and timestamp < ?",
+        bounds);
+    jdbcTemplate.update("delete from client_device_info_partition where name = ?",
+        partition.getName());
+  }
+}
@@ -0,0 +1,41 @@
+package com.rokin.celltracker.repository;
+
+import com.rokin.celltracker.dto.LocationPartition;
+import java.util.List;
+
+/**
+ * Database specific handling of the time-range partitions of client_device_info.
+ */
+public interface LocationPartitionDialect {
+
+  /**
+   * Prepare the database for partition management. Runs before the schema is generated.
+   * 
+   * @return false when the history table cannot be partitioned by this dialect
+   */
+  boolean prepare();
+
+  /**
+   * List existing partitions.
+   * 
+   * @return
+   */
+  List<LocationPartition> listPartitions();
+
+  /**
+   * Create a partition.
+   * 
+   * @param partition
+   *          partition
+   */
+  void createPartition(LocationPartition partition);
+
+  /**
+   * Drop a partition with all its rows. References from messages and latest device info
+   * pointers of clients to the dropped rows are cleared first, the messages themselves are kept.
+   * 
+   * @param partition
+   *          partition
+   */
+  void dropPartition(LocationPartition partition);
+}
@@ -0,0 +1,45 @@
+package com.rokin.celltracker.repository;
+
+import org.hibernate.boot.Metadata;
+import org.hibernate.boot.model.relational.Namespace;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.mapping.Column;
+import org.hibernate.mapping.ForeignKey;
+import org.hibernate.mapping.Table;
+import org.hibernate.service.spi.SessionFactoryServiceRegistry;
+
+/**
+ * Adapts the generated schema to a partitioned client_device_info, registered only while location
+ * partitioning is enabled. Foreign keys into the table are left out, as a partitioned table has
+ * no unique key on id alone and its rows go away with whole partitions, and the referencing
+ * columns become nullable so a dropped partition can clear them.
+ */
+public class LocationPartitionSchemaIntegrator implements Integrator {
+
+  private static final String TABLE = "client_device_info";
+
+  @Override
+  public void integrate(Metadata metadata, SessionFactoryImplementor sessionFactory,
+      SessionFactoryServiceRegistry serviceRegistry) {
+    for (Namespace namespace : metadata.getDatabase().getNamespaces()) {
+      for (Table table : namespace.getTables()) {
+        for (ForeignKey foreignKey : table.getForeignKeys().values()) {
+          if (foreignKey.getReferencedTable() != null
+              && TABLE.equalsIgnoreCase(foreignKey.getReferencedTable().getName())) {
+            foreignKey.disableCreation();
+            for (Column column : foreignKey.getColumns()) {
+              column.setNullable(true);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Override
+  public void disintegrate(SessionFactoryImplementor sessionFactory,
+      SessionFactoryServiceRegistry serviceRegistry) {
+    // nothing registered
+  }
+}
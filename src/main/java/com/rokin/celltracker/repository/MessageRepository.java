@@ -1,8 +1,56 @@
 package com.rokin.celltracker.repository;
 
 import com.rokin.celltracker.domain.Message;
+import java.util.Collection;
+import java.util.List;
+import javax.persistence.LockModeType;
+import javax.persistence.QueryHint;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.PagingAndSortingRepository;
+import org.springframework.data.repository.query.Param;
 
 public interface MessageRepository extends PagingAndSortingRepository<Message, Long> {
 
+  /**
+   * Lock due messages, skipping rows locked by another instance where the dialect supports it.
+   */
+  @Lock(LockModeType.PESSIMISTIC_WRITE)
+  @QueryHints(@QueryHint(name = "javax.persistence.lock.timeout", value = "-2"))
+  @Query("select m from Message m where m.isSent = false and m.nextAttemptAt <= :now"
+      + " order by m.nextAttemptAt")
+  List<Message> findDue(@Param("now") long now, Pageable pageable);
+
+  @Modifying
+  @Query("update Message m set m.attempts = m.attempts + 1, m.nextAttemptAt = :leaseUntil"
+      + " where m.id in :ids")
+  int claim(@Param("ids") Collection<Long> ids, @Param("leaseUntil") long leaseUntil);
+
+  @Modifying
+  @Query("update Message m set m.isSent = true, m.nextAttemptAt = null, m.lastError = null"
+      + " where m.id in :ids")
+  int markSent(@Param("ids") Collection<Long> ids);
+
+  @Modifying
+  @Query("update Message m set m.broadcastCursor = :cursor, m.nextAttemptAt = :leaseUntil"
+      + " where m.id = :id and m.isSent = false")
+  int checkpointBroadcast(@Param("id") Long id, @Param("cursor") Long cursor,
+      @Param("leaseUntil") long leaseUntil);
+
+  @Modifying
+  @Query("update Message m set m.nextAttemptAt = :nextAttemptAt, m.lastError = :lastError"
+      + " where m.id = :id and m.isSent = false")
+  int markFailed(@Param("id") Long id, @Param("nextAttemptAt") Long nextAttemptAt,
+      @Param("lastError") String lastError);
+
+  /**
+   * Hand claimed messages back without counting the claim as an attempt.
+   */
+  @Modifying
+  @Query("update Message m set m.attempts = m.attempts - 1, m.nextAttemptAt = :nextAttemptAt"
+      + " where m.id in :ids and m.isSent = false")
+  int release(@Param("ids") Collection<Long> ids, @Param("nextAttemptAt") long nextAttemptAt);
 }
@@ -0,0 +1,87 @@
+package com.rokin.celltracker.repository;
+
+import com.rokin.celltracker.dto.LocationPartition;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Native declarative range partitioning on the timestamp column, PostgreSQL 11 or later. The
+ * parent table is created here before Hibernate sees it, with the primary key widened to
+ * (id, timestamp) as partitioned tables require. Rows outside every range partition land in a
+ * default partition. Retention detaches and drops whole partitions.
+ */
+@RequiredArgsConstructor
+public class PostgresLocationPartitionDialect implements LocationPartitionDialect {
+
+  private static final String TABLE = "client_device_info";
+  private static final Pattern BOUNDS = Pattern
+      .compile("FROM \\('?(-?\\d+)'?\\) TO \\('?(-?\\d+)'?\\)");
+
+  private final JdbcTemplate jdbcTemplate;
+
+  private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+  @Override
+  public boolean prepare() {
+    // a message outlives the fix it was sent with, see LocationPartitionSchemaIntegrator
+    jdbcTemplate.execute("alter table if exists message alter column device_info_id drop not null");
+    String kind = jdbcTemplate.query(
+        "select c.relkind from pg_class c where c.relname = ? and pg_table_is_visible(c.oid)",
+        rs -> rs.next() ? rs.getString(1) : null, TABLE);
+    if (kind == null) {
+      jdbcTemplate.execute("create table " + TABLE + " (id int8 not null, accuracy float8, "
+          + "altitude float8, battery int4, bearing float8, lat float8, lon float8, "
+          + "provider varchar(255), speed float8, timestamp int8 not null, client_id int8, "
+          + "primary key (id, timestamp)) partition by range (timestamp)");
+      jdbcTemplate.execute("create table " + TABLE + "_default partition of " + TABLE
+          + " default");
+      log.info("created partitioned table {}", TABLE);
+      return true;
+    }
+    if (!"p".equals(kind)) {
+      log.error("{} exists and is not partitioned, migrate it to a partitioned table to enable"
+          + " location partitioning", TABLE);
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public List<LocationPartition> listPartitions() {
+    List<LocationPartition> partitions = new ArrayList<>();
+    jdbcTemplate.query("select c.relname, pg_get_expr(c.relpartbound, c.oid) from pg_inherits i "
+        + "join pg_class c on c.oid = i.inhrelid join pg_class p on p.oid = i.inhparent "
+        + "where p.relname = ?", rs -> {
+          Matcher matcher = BOUNDS.matcher(rs.getString(2));
+          if (matcher.find()) {
+            partitions.add(new LocationPartition(rs.getString(1), Long.valueOf(matcher.group(1)),
+                Long.valueOf(matcher.group(2))));
+          }
+        }, TABLE);
+    return partitions;
+  }
+
+  @Override
+  public void createPartition(LocationPartition partition) {
+    jdbcTemplate.execute("create table if not exists " + partition.getName() + " partition of "
+        + TABLE + " for values from (" + partition.getFromTimestamp() + ") to ("
+        + partition.getToTimestamp() + ")");
+  }
+
+  @Override
+  public void dropPartition(LocationPartition partition) {
+    String name = partition.getName();
+    jdbcTemplate.update("update message set device_info_id = null where device_info_id in "
+        + "(select id from " + name + ")");
+    jdbcTemplate.update("update client set latest_device_info_id = null "
+        + "where latest_device_info_id in (select id from " + name + ")");
+    jdbcTemplate.execute("alter table " + TABLE + " detach partition " + name);
+    jdbcTemplate.execute("drop table " + name);
+  }
+}
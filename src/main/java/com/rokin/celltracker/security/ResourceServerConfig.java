@@ -28,7 +28,9 @@ public class ResourceServerConfig extends ResourceServerConfigurerAdapter {
   @Override
   public void configure(HttpSecurity http) throws Exception {
     http.requestMatchers().and().authorizeRequests()
-        .antMatchers("/actuator/**", "/api-docs/**").permitAll()
+        .antMatchers("/actuator/health", "/actuator/info", "/api-docs/**").permitAll()
+        // metrics carry queue depths, JVM details and request uris with client ids
+        .antMatchers("/actuator/**").authenticated()
         .antMatchers(HttpMethod.POST, "/api/clients").permitAll()
         .antMatchers("/api/**").authenticated();
   }
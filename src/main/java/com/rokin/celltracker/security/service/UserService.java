@@ -21,7 +21,7 @@ public class UserService implements UserDetailsService {
 
   @Override
   public UserDetails loadUserByUsername(String username) {
-    Optional<Client> client = clientRepository.findByEmailOrCellNo(username, username);
+    Optional<Client> client = clientRepository.findWithRolesByEmailOrCellNo(username, username);
     List<SimpleGrantedAuthority> roles = client.isPresent()
         ? client.get().getRoles().stream().map(r -> new SimpleGrantedAuthority(r.toString()))
             .collect(Collectors.toList())
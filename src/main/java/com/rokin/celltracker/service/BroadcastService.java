@@ -0,0 +1,169 @@
+package com.rokin.celltracker.service;
+
+import com.rokin.celltracker.BroadcastSettings;
+import com.rokin.celltracker.MessageOutboxSettings;
+import com.rokin.celltracker.PushSettings;
+import com.rokin.celltracker.domain.Message;
+import com.rokin.celltracker.repository.ClientRepository;
+import com.rokin.celltracker.repository.MessageRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Sends broadcast messages to every enabled client with a registration id. Recipients are read
+ * in keyset pages by client id, one page per FCM request, so no more than one page is held at a
+ * time. A global rate limit paces recipients over all running broadcasts. After every sent page
+ * the last client id is stored on the message and its outbox lease renewed, so a broadcast
+ * interrupted by a failure or a restart is claimed again and resumes after the last sent page.
+ */
+@Service
+@RequiredArgsConstructor
+public class BroadcastService {
+
+  private final BroadcastSettings settings;
+  private final PushSettings pushSettings;
+  private final MessageOutboxSettings outboxSettings;
+  private final PushService pushService;
+  private final ClientRepository clientRepo;
+  private final MessageRepository messageRepo;
+  private final TransactionTemplate transactionTemplate;
+  private final MeterRegistry meterRegistry;
+
+  private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+  private final Object pace = new Object();
+  // earliest time the next recipients may be sent, guarded by pace
+  private long nextPermitAt;
+  private ExecutorService broadcaster;
+  private Counter recipientsCounter;
+
+  /**
+   * Start the broadcast threads.
+   */
+  @PostConstruct
+  public void start() {
+    broadcaster = Executors.newFixedThreadPool(settings.getThreads(),
+        new CustomizableThreadFactory("broadcast-"));
+    recipientsCounter = meterRegistry.counter("push.broadcast.recipients");
+    nextPermitAt = System.nanoTime();
+  }
+
+  /**
+   * Stop running broadcasts, they resume from their last page once claimed again.
+   */
+  @PreDestroy
+  public void stop() {
+    broadcaster.shutdownNow();
+  }
+
+  /**
+   * Check whether a client may broadcast.
+   *
+   * @param email
+   *          client email
+   * @param cellNo
+   *          client cell no
+   * @return
+   */
+  public boolean isAllowed(String email, String cellNo) {
+    return settings.getSenders().contains(email) || settings.getSenders().contains(cellNo);
+  }
+
+  /**
+   * Send claimed broadcast message, continuing after its last sent page.
+   *
+   * @param message
+   *          broadcast message
+   * @return completes when every page is sent, fails with the first failed page
+   */
+  public CompletableFuture<Message> broadcast(Message message) {
+    CompletableFuture<Message> delivery = new CompletableFuture<>();
+    try {
+      broadcaster.execute(() -> {
+        try {
+          run(message);
+          delivery.complete(message);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          delivery.completeExceptionally(ex);
+        } catch (ExecutionException ex) {
+          delivery.completeExceptionally(ex.getCause());
+        } catch (RuntimeException ex) {
+          delivery.completeExceptionally(ex);
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      delivery.completeExceptionally(ex);
+    }
+    return delivery;
+  }
+
+  private void run(Message message) throws InterruptedException, ExecutionException {
+    int pageSize = Math.max(1, Math.min(pushSettings.getMaxRecipientsPerRequest(),
+        settings.getRecipientsPerSecond()));
+    long cursor = message.getBroadcastCursor() != null ? message.getBroadcastCursor() : 0L;
+    if (cursor > 0) {
+      log.info("resuming broadcast {} after client {}", message.getId(), cursor);
+    }
+    while (true) {
+      List<Object[]> page = clientRepo.findPushNotificationIdsAfter(cursor,
+          PageRequest.of(0, pageSize));
+      if (page.isEmpty()) {
+        return;
+      }
+      List<String> registrationIds = new ArrayList<>(page.size());
+      for (Object[] row : page) {
+        if (!row[0].equals(message.getFromClientId())) {
+          registrationIds.add((String) row[1]);
+        }
+      }
+      acquire(registrationIds.size());
+      pushService.sendMessage(message, registrationIds).get();
+      recipientsCounter.increment(registrationIds.size());
+      cursor = (Long) page.get(page.size() - 1)[0];
+      checkpoint(message, cursor);
+    }
+  }
+
+  private void checkpoint(Message message, long cursor) {
+    long leaseUntil = System.currentTimeMillis() + outboxSettings.getLeaseMs();
+    transactionTemplate.execute(status -> messageRepo.checkpointBroadcast(message.getId(),
+        cursor, leaseUntil));
+    message.setBroadcastCursor(cursor);
+    message.setNextAttemptAt(leaseUntil);
+  }
+
+  /**
+   * Wait until the given number of recipients fits the global rate.
+   */
+  private void acquire(int recipients) throws InterruptedException {
+    long waitNanos;
+    synchronized (pace) {
+      long now = System.nanoTime();
+      long startAt = now - nextPermitAt > 0 ? now : nextPermitAt;
+      nextPermitAt = startAt + TimeUnit.SECONDS.toNanos(recipients)
+          / Math.max(1, settings.getRecipientsPerSecond());
+      waitNanos = startAt - now;
+    }
+    if (waitNanos > 0) {
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package com.rokin.celltracker.service;
+
+import com.rokin.celltracker.repository.ClientCircleRepository;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Active members of circles and active circles of clients, kept in memory for authorization and
+ * fan-out checks. Both directions are loaded lazily and changed by join, leave and circle updates
+ * once their transaction commits. A load that raced with a change is used for the call that made
+ * it but not kept, so a member who left never stays cached. Empty loads are not kept either, so
+ * lookups of unknown or deleted circles cannot grow the index.
+ */
+@Service
+@RequiredArgsConstructor
+public class CircleMembershipIndex {
+
+  private final ClientCircleRepository clientCircleRepo;
+
+  private final Map<String, Set<Long>> membersByCircle = new ConcurrentHashMap<>();
+  private final Map<Long, Set<String>> circlesByClient = new ConcurrentHashMap<>();
+  private long version;
+
+  /**
+   * Check whether a client is an active member of an active circle.
+   *
+   * @param circleId
+   *          circle id
+   * @param clientId
+   *          client id
+   * @return
+   */
+  public boolean isMember(String circleId, Long clientId) {
+    return getMembers(circleId).contains(clientId);
+  }
+
+  /**
+   * Get active members of a circle, none if the circle is deleted.
+   *
+   * @param circleId
+   *          circle id
+   * @return
+   */
+  public Set<Long> getMembers(String circleId) {
+    return Collections.unmodifiableSet(
+        get(membersByCircle, circleId, clientCircleRepo::findMemberIds));
+  }
+
+  /**
+   * Get active circles of a client.
+   *
+   * @param clientId
+   *          client id
+   * @return
+   */
+  public Set<String> getCircles(Long clientId) {
+    return Collections.unmodifiableSet(
+        get(circlesByClient, clientId, clientCircleRepo::findCircleIds));
+  }
+
+  /**
+   * Record that a client joined a circle, effective when the current transaction commits.
+   *
+   * @param circleId
+   *          circle id
+   * @param clientId
+   *          client id
+   */
+  public void joined(String circleId, Long clientId) {
+    afterCommit(() -> apply(circleId, clientId, true));
+  }
+
+  /**
+   * Record that a client left a circle, effective when the current transaction commits.
+   *
+   * @param circleId
+   *          circle id
+   * @param clientId
+   *          client id
+   */
+  public void left(String circleId, Long clientId) {
+    afterCommit(() -> apply(circleId, clientId, false));
+  }
+
+  /**
+   * Forget a circle that was updated or deleted, effective when the current transaction commits.
+   *
+   * @param circleId
+   *          circle id
+   */
+  public void circleChanged(String circleId) {
+    afterCommit(() -> evict(circleId));
+  }
+
+  private <K, V> Set<V> get(Map<K, Set<V>> index, K key, Function<K, List<V>> loader) {
+    Set<V> values = index.get(key);
+    if (values != null) {
+      return values;
+    }
+    long loadVersion = currentVersion();
+    Set<V> loaded = ConcurrentHashMap.newKeySet();
+    loaded.addAll(loader.apply(key));
+    synchronized (this) {
+      if (version == loadVersion && !loaded.isEmpty()) {
+        values = index.putIfAbsent(key, loaded);
+      }
+    }
+    return values != null ? values : loaded;
+  }
+
+  private synchronized long currentVersion() {
+    return version;
+  }
+
+  private synchronized void apply(String circleId, Long clientId, boolean member) {
+    version++;
+    Set<Long> members = membersByCircle.get(circleId);
+    Set<String> circles = circlesByClient.get(clientId);
+    if (member) {
+      if (members != null) {
+        members.add(clientId);
+      }
+      if (circles != null) {
+        circles.add(circleId);
+      }
+    } else {
+      if (members != null) {
+        members.remove(clientId);
+      }
+      if (circles != null) {
+        circles.remove(circleId);
+      }
+    }
+  }
+
+  private synchronized void evict(String circleId) {
+    version++;
+    membersByCircle.remove(circleId);
+    // a reactivated circle is missing from sets that do not mention it, so drop them all
+    circlesByClient.clear();
+  }
+
+  private void afterCommit(Runnable change) {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      change.run();
+      return;
+    }
+    TransactionSynchronizationManager.registerSynchronization(
+        new TransactionSynchronizationAdapter() {
+          @Override
+          public void afterCommit() {
+            change.run();
+          }
+        });
+  }
+}
@@ -1,6 +1,5 @@
 package com.rokin.celltracker.service;
 
-import com.rokin.celltracker.RandomUtil;
 import com.rokin.celltracker.domain.Circle;
 import com.rokin.celltracker.domain.Circle.CircleBuilder;
 import com.rokin.celltracker.domain.Client;
@@ -8,8 +7,13 @@ import com.rokin.celltracker.domain.ClientCircle;
 import com.rokin.celltracker.domain.ClientCircle.Role;
 import com.rokin.celltracker.domain.ClientCirclePk;
 import com.rokin.celltracker.domain.ClientDeviceInfo;
+import com.rokin.celltracker.domain.ClientLocationRollup.Resolution;
 import com.rokin.celltracker.domain.Message;
+import com.rokin.celltracker.domain.Message.MessageScope;
 import com.rokin.celltracker.dto.CircleInfo;
+import com.rokin.celltracker.dto.LocationHistoryPage;
+import com.rokin.celltracker.dto.MemberLocation;
+import com.rokin.celltracker.exception.BroadcastNotAllowedException;
 import com.rokin.celltracker.exception.CircleAlreadyExistsException;
 import com.rokin.celltracker.exception.CircleCodeNotFoundEception;
 import com.rokin.celltracker.exception.CircleNotFoundException;
@@ -17,27 +21,38 @@ import com.rokin.celltracker.exception.MemberNotFoundException;
 import com.rokin.celltracker.exception.UserNotFoundException;
 import com.rokin.celltracker.repository.CircleRepository;
 import com.rokin.celltracker.repository.ClientCircleRepository;
-import com.rokin.celltracker.repository.ClientDeviceInfoRepository;
-import com.rokin.celltracker.repository.MessageRepository;
-import java.util.Arrays;
+import com.rokin.celltracker.store.LocationStore;
+import io.reactivex.Flowable;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
+import javax.transaction.Transactional;
 import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 @Service
 @RequiredArgsConstructor
 public class CircleService {
 
   private static final Long CIRCLECODEEXPIRYTIME = 5 * 24 * 60 * 60 * 1000L;
+  private static final int MEMBER_PAGE_SIZE = 100;
 
   private final ClientService clientService;
-  private final PushService pushService;
+  private final MessageOutbox messageOutbox;
+  private final BroadcastService broadcastService;
   private final CircleRepository circleRepo;
   private final ClientCircleRepository clientCircleRepo;
-  private final MessageRepository messageRepo;
-  private final ClientDeviceInfoRepository clientDeviceInfoRepo;
+  private final LocationHistoryService locationHistoryService;
+  private final LatestLocationStore latestLocationStore;
+  private final LiveLocationService liveLocationService;
+  private final LocationStore locationStore;
+  private final CircleMembershipIndex circleMembershipIndex;
+  private final InviteCodeService inviteCodeService;
+  private final VersionCounters versionCounters;
 
   /**
    * Add circle.
@@ -57,16 +72,16 @@ public class CircleService {
     Boolean circleExists = circleRepo.existsById(circleName + "_" + clientId);
     if (!circleExists) {
       CircleBuilder builder = Circle.builder().id(circleName + "_" + clientId).name(circleName);
-      String generatedCode = "";
-      do {
-        generatedCode = RandomUtil.createWord(6);
-      } while (circleRepo.findByCode(generatedCode).isPresent());
-      builder.code(generatedCode).codeUpdateTimestamp(System.currentTimeMillis()).owner(client)
-          .active(true);
-      Circle circle = circleRepo.save(builder.build());
+      builder.code(inviteCodeService.nextCode()).codeUpdateTimestamp(System.currentTimeMillis())
+          .owner(client).active(true).memberCount(1);
+      // ids are assigned, so save merges; keep the built circle, it holds the loaded owner
+      Circle circle = builder.build();
+      circleRepo.save(circle);
       ClientCircle clientCircle = ClientCircle.builder().circle(circle).client(client)
           .role(Role.OWNER).isInCircle(true).jointimestamp(System.currentTimeMillis()).build();
       clientCircleRepo.save(clientCircle);
+      circleMembershipIndex.joined(circle.getId(), clientId);
+      versionCounters.circleChanged(circle.getId());
       return circle;
     }
     throw new CircleAlreadyExistsException(circleName);
@@ -86,24 +101,44 @@ public class CircleService {
     Optional<Circle> circleOpt = circleRepo.findByIdAndOwner(circle.getId(), client);
     if (circleOpt.isPresent()) {
       circle.setCodeUpdateTimestamp(System.currentTimeMillis());
-      return circleRepo.save(circle);
+      circle.setOwner(client);
+      circleRepo.save(circle);
+      circleMembershipIndex.circleChanged(circle.getId());
+      versionCounters.circleChanged(circle.getId());
+      return circle;
     }
     throw new CircleNotFoundException(circle.getId());
   }
 
   /**
-   * Get circles.
+   * Get circles. Member counts come from the circle counters; circles without one are counted
+   * in a single grouped query and get their counter initialized.
    * 
    * @param username
    *          of client
    * @return
    */
+  @Transactional
   public List<CircleInfo> getCircles(String username) {
     Client client = clientService.getClientByUserName(username);
     List<ClientCircle> clientCircles = clientCircleRepo.findByClient(client);
     List<Circle> circles = clientCircles.stream().map(ClientCircle::getCircle)
         .collect(Collectors.toList());
-    return circles.stream().map(c -> new CircleInfo(c, clientCircleRepo.findByCircle(c).size()))
+    List<String> uncounted = circles.stream().filter(c -> c.getMemberCount() == null)
+        .map(Circle::getId).collect(Collectors.toList());
+    if (!uncounted.isEmpty()) {
+      Map<String, Integer> counts = new HashMap<>();
+      for (Object[] row : clientCircleRepo.countMembers(uncounted)) {
+        counts.put((String) row[0], ((Long) row[1]).intValue());
+      }
+      for (Circle circle : circles) {
+        if (circle.getMemberCount() == null) {
+          circle.setMemberCount(counts.getOrDefault(circle.getId(), 0));
+          circleRepo.initMemberCount(circle.getId(), circle.getMemberCount());
+        }
+      }
+    }
+    return circles.stream().map(c -> new CircleInfo(c, c.getMemberCount()))
         .collect(Collectors.toList());
   }
 
@@ -124,6 +159,8 @@ public class CircleService {
       c.setCodeUpdateTimestamp(System.currentTimeMillis());
       c.setActive(false);
       circleRepo.save(c);
+      circleMembershipIndex.circleChanged(circleId);
+      versionCounters.circleChanged(circleId);
       return true;
     }
     return false;
@@ -140,17 +177,81 @@ public class CircleService {
    */
   public List<Client> getCircleMemebers(String username, String circleId) {
     Client client = clientService.getClientByUserName(username);
-    Circle circle = Circle.builder().id(circleId).build();
-    List<ClientCircle> clientCircles = clientCircleRepo.findByCircle(circle);
-    Boolean isMember = clientCircles.stream()
-        .anyMatch(cc -> cc.getClient().getId() == client.getId() && cc.getIsInCircle());
-    if (isMember) {
-      return clientCircles.stream().map(ClientCircle::getClient)
-          .filter(c -> c.getId() != client.getId()).collect(Collectors.toList());
+    Set<Long> members = circleMembershipIndex.getMembers(circleId);
+    if (members.contains(client.getId())) {
+      return clientService.getClientDetails(members.stream()
+          .filter(id -> !id.equals(client.getId())).collect(Collectors.toList()));
     }
     throw new CircleNotFoundException(circleId);
   }
 
+  /**
+   * Get members of a circle as a flow that loads the next members only once the subscriber asked
+   * for them.
+   * 
+   * @param username
+   *          client email or cell no
+   * @param circleId
+   *          circle id
+   * @return
+   */
+  public Flowable<Client> flowCircleMemebers(String username, String circleId) {
+    Client client = clientService.getClientByUserName(username);
+    Set<Long> members = circleMembershipIndex.getMembers(circleId);
+    if (members.contains(client.getId())) {
+      List<Long> memberIds = members.stream().filter(id -> !id.equals(client.getId())).sorted()
+          .collect(Collectors.toList());
+      return Flowable.fromIterable(memberIds).buffer(MEMBER_PAGE_SIZE)
+          .concatMapIterable(clientService::getClientDetails, 1);
+    }
+    throw new CircleNotFoundException(circleId);
+  }
+
+  /**
+   * Get latest locations of the other members of a circle, ordered by member id. Members
+   * without a known location are left out.
+   * 
+   * @param username
+   *          client email or cell no
+   * @param circleId
+   *          circle id
+   * @return
+   */
+  public List<MemberLocation> getCircleLocations(String username, String circleId) {
+    return getCircleLocations(clientService.getClientByUserName(username), circleId);
+  }
+
+  /**
+   * Subscribe to locations of the other members of a circle. The latest known locations are
+   * sent first, then every new one as it is ingested.
+   * 
+   * @param username
+   *          client email or cell no
+   * @param circleId
+   *          circle id
+   * @return
+   */
+  public SseEmitter subscribeCircleLocations(String username, String circleId) {
+    Client client = clientService.getClientByUserName(username);
+    if (!circleMembershipIndex.isMember(circleId, client.getId())) {
+      throw new CircleNotFoundException(circleId);
+    }
+    return liveLocationService.subscribe(circleId, client.getId(),
+        () -> getCircleLocations(client, circleId));
+  }
+
+  private List<MemberLocation> getCircleLocations(Client client, String circleId) {
+    Set<Long> members = circleMembershipIndex.getMembers(circleId);
+    if (!members.contains(client.getId())) {
+      throw new CircleNotFoundException(circleId);
+    }
+    List<Long> memberIds = members.stream().filter(id -> !id.equals(client.getId())).sorted()
+        .collect(Collectors.toList());
+    Map<Long, ClientDeviceInfo> latest = latestLocationStore.getAll(memberIds);
+    return memberIds.stream().filter(latest::containsKey)
+        .map(id -> MemberLocation.of(id, latest.get(id))).collect(Collectors.toList());
+  }
+
   /**
    * Get member location history.
    * 
@@ -164,23 +265,82 @@ public class CircleService {
    *          of location history
    * @param toTime
    *          of location history
+   * @param resolution
+   *          of location history, null to pick one by max points
+   * @param maxPoints
+   *          point budget, null for all raw fixes
    * @return
    */
   public List<ClientDeviceInfo> getCircleMemberLocationHistory(String username, String circleId,
-      Long memeberId, Long fromTime, Long toTime) {
+      Long memeberId, Long fromTime, Long toTime, Resolution resolution, Integer maxPoints) {
+    checkCircleMember(username, circleId, memeberId);
+    return locationHistoryService.getHistory(memeberId, fromTime, toTime, resolution, maxPoints);
+  }
+
+  /**
+   * Get member location history as a flow of pages read on demand.
+   * 
+   * @param username
+   *          client email or cell no
+   * @param circleId
+   *          circle id
+   * @param memeberId
+   *          of circle member
+   * @param fromTime
+   *          from time, inclusive
+   * @param toTime
+   *          to time, inclusive
+   * @param pageSize
+   *          page size, null for the default
+   * @return
+   */
+  public Flowable<List<ClientDeviceInfo>> flowCircleMemberLocationHistory(String username,
+      String circleId, Long memeberId, Long fromTime, Long toTime, Integer pageSize) {
+    checkCircleMember(username, circleId, memeberId);
+    return locationHistoryService.flowHistoryPages(memeberId, fromTime, toTime, pageSize);
+  }
+
+  /**
+   * Get one page of member location history.
+   * 
+   * @param username
+   *          client email or cell no
+   * @param circleId
+   *          circle id
+   * @param memeberId
+   *          of circle member
+   * @param fromTime
+   *          from time, inclusive
+   * @param toTime
+   *          to time, inclusive
+   * @param cursor
+   *          next cursor of the previous page, null for the first page
+   * @param pageSize
+   *          page size, null for the default
+   * @return
+   */
+  public LocationHistoryPage getCircleMemberLocationHistoryPage(String username, String circleId,
+      Long memeberId, Long fromTime, Long toTime, String cursor, Integer pageSize) {
+    checkCircleMember(username, circleId, memeberId);
+    return locationHistoryService.getHistoryPage(memeberId, fromTime, toTime, cursor, pageSize);
+  }
+
+  /**
+   * Check that client and member are both in a circle.
+   * 
+   * @param username
+   *          client email or cell no
+   * @param circleId
+   *          circle id
+   * @param memeberId
+   *          of circle member
+   */
+  public void checkCircleMember(String username, String circleId, Long memeberId) {
     Client client = clientService.getClientByUserName(username);
-    Client member = Client.builder().id(memeberId).build();
-    Circle circle = Circle.builder().id(circleId).build();
-    List<ClientCircle> clientCircles = clientCircleRepo.findByCircle(circle);
-    Boolean isBuddy = clientCircles.stream()
-        .anyMatch(cc -> cc.getClient().getId().equals(client.getId()) && cc.getIsInCircle())
-        && clientCircles.stream()
-            .anyMatch(cc -> cc.getClient().getId().equals(memeberId) && cc.getIsInCircle());
-    if (isBuddy) {
-      return clientDeviceInfoRepo.findByClientAndTimestampGreaterThanEqualAndTimestampLessThanEqual(
-          member, fromTime, toTime);
+    Set<Long> members = circleMembershipIndex.getMembers(circleId);
+    if (!members.contains(client.getId()) || !members.contains(memeberId)) {
+      throw new MemberNotFoundException(String.valueOf(memeberId));
     }
-    throw new MemberNotFoundException(String.valueOf(memeberId));
   }
 
   /**
@@ -192,16 +352,29 @@ public class CircleService {
    *          circle code
    * @return
    */
+  @Transactional
   public Circle joinCircle(String username, String circleCode) {
     Client client = clientService.getClientByUserName(username);
-    Optional<Circle> circleOpt = circleRepo.findByCode(circleCode);
+    Optional<Circle> circleOpt = circleRepo.findByCode(circleCode)
+        .filter(c -> Boolean.TRUE.equals(c.getActive()));
     if (circleOpt.isPresent()) {
       Circle circle = circleOpt.get();
       Role clientRole = circle.getOwner().getId().equals(client.getId()) ? Role.OWNER : Role.MEMBER;
-      ClientCircle clientCircle = ClientCircle.builder().circle(circle).client(client)
-          .role(clientRole).isInCircle(true).jointimestamp(System.currentTimeMillis()).build();
-      ;
-      clientCircleRepo.save(clientCircle);
+      long now = System.currentTimeMillis();
+      boolean joined;
+      if (clientCircleRepo.existsById(new ClientCirclePk(client.getId(), circle.getId()))) {
+        joined = clientCircleRepo.rejoin(client.getId(), circle.getId(), clientRole, now) > 0;
+      } else {
+        ClientCircle clientCircle = ClientCircle.builder().circle(circle).client(client)
+            .role(clientRole).isInCircle(true).jointimestamp(now).build();
+        clientCircleRepo.save(clientCircle);
+        joined = true;
+      }
+      if (joined) {
+        circleRepo.addMemberCount(circle.getId(), 1);
+        circleMembershipIndex.joined(circle.getId(), client.getId());
+        versionCounters.circleChanged(circle.getId());
+      }
       return circle;
     }
     throw new CircleCodeNotFoundEception(circleCode);
@@ -216,17 +389,19 @@ public class CircleService {
    *          circle id
    * @return
    */
+  @Transactional
   public Boolean leaveCircle(String username, String circleId) {
     Client client = clientService.getClientByUserName(username);
     Optional<Circle> circleOpt = circleRepo.findById(circleId);
     if (circleOpt.isPresent()) {
       Circle circle = circleOpt.get();
       ClientCirclePk pk = new ClientCirclePk(client.getId(), circle.getId());
-      Optional<ClientCircle> clientCircleOpt = clientCircleRepo.findById(pk);
-      if (clientCircleOpt.isPresent()) {
-        ClientCircle clientCircle = clientCircleOpt.get();
-        clientCircle.setIsInCircle(false);
-        clientCircleRepo.save(clientCircle);
+      if (clientCircleRepo.existsById(pk)) {
+        if (clientCircleRepo.leave(client.getId(), circle.getId()) > 0) {
+          circleRepo.addMemberCount(circle.getId(), -1);
+          circleMembershipIndex.left(circle.getId(), client.getId());
+          versionCounters.circleChanged(circle.getId());
+        }
         return true;
       }
     }
@@ -248,12 +423,9 @@ public class CircleService {
     if (circle.isPresent()) {
       if (System.currentTimeMillis()
           - circle.get().getCodeUpdateTimestamp() > CIRCLECODEEXPIRYTIME) {
-        String generatedCode = "";
-        do {
-          generatedCode = RandomUtil.createWord(6);
-        } while (circleRepo.findByCode(generatedCode).isPresent());
-        circle.get().setCode(generatedCode);
+        circle.get().setCode(inviteCodeService.nextCode());
         circleRepo.save(circle.get());
+        versionCounters.circleChanged(circleId);
       }
       return circle.get().getCode();
     }
@@ -261,7 +433,8 @@ public class CircleService {
   }
 
   /**
-   * Send message.
+   * Send message. The message is saved to the outbox and delivered in the background. Only
+   * configured senders may broadcast.
    * 
    * @param fromClientUserName
    *          client email or cell no
@@ -271,53 +444,44 @@ public class CircleService {
   public void sendMessage(String fromClientUserName, Message message) {
     Client fromClient = clientService.getClientByUserName(fromClientUserName);
     message.setFromClientId(fromClient.getId());
-    message.setIsSent(false);
-    clientService.updateClientDeviceInfo(fromClient.getId(), message.getDeviceInfo());
-    message = messageRepo.save(message);
+    if (message.getMessageScope() == MessageScope.BROADCAST) {
+      if (!broadcastService.isAllowed(fromClient.getEmail(), fromClient.getCellNo())) {
+        throw new BroadcastNotAllowedException(fromClientUserName);
+      }
+      message.setToCircleId(null);
+      message.setToClientId(null);
+      clientService.updateClientDeviceInfo(fromClient, message.getDeviceInfo());
+      message.setDeviceInfo(locationStore.pin(message.getDeviceInfo()));
+      messageOutbox.enqueue(message);
+      return;
+    }
     Optional<Circle> circleOpt = circleRepo.findById(message.getToCircleId());
     switch (message.getMessageScope()) {
       case UNICAST:
         if (circleOpt.isPresent()) {
-          Circle circle = circleOpt.get();
-          Client toClient = clientService.getClient(message.getToClientId());
-          Optional<ClientCircle> fromClientCircle = clientCircleRepo
-              .findByClientAndCircleAndIsInCircle(fromClient, circle, true);
-          Optional<ClientCircle> toClientCircle = clientCircleRepo
-              .findByClientAndCircleAndIsInCircle(toClient, circle, true);
-          if (fromClientCircle.isPresent() && toClientCircle.isPresent()) {
-            List<String> regIdList = Arrays.asList(toClient.getPushNotificationId());
-            pushService.sendMessage(message, regIdList).thenAccept(msg -> {
-              msg.setIsSent(true);
-              messageRepo.save(msg);
-            });
-            return;
+          Set<Long> members = circleMembershipIndex.getMembers(circleOpt.get().getId());
+          if (members.contains(fromClient.getId())
+              && members.contains(message.getToClientId())) {
+            break;
           }
           throw new MemberNotFoundException(String.valueOf(message.getToClientId()));
         }
         throw new CircleNotFoundException(message.getToCircleId());
       case CIRCLE:
         if (circleOpt.isPresent()) {
-          Circle circle = circleOpt.get();
-          Optional<ClientCircle> fromClientCircle = clientCircleRepo
-              .findByClientAndCircleAndIsInCircle(fromClient, circle, true);
-          if (fromClientCircle.isPresent()) {
-            List<ClientCircle> clientCircleList = clientCircleRepo.findByCircle(circle);
-            List<String> regIdList = clientCircleList.stream()
-                .filter(
-                    cc -> cc.getIsInCircle() && !cc.getClient().getId().equals(fromClient.getId()))
-                .map(cc -> cc.getClient().getPushNotificationId()).collect(Collectors.toList());
-            pushService.sendMessage(message, regIdList).thenAccept(msg -> {
-              msg.setIsSent(true);
-              messageRepo.save(msg);
-            });
-            return;
+          Set<Long> members = circleMembershipIndex.getMembers(circleOpt.get().getId());
+          if (members.contains(fromClient.getId())) {
+            break;
           }
           throw new MemberNotFoundException(fromClientUserName);
         }
         throw new CircleNotFoundException(message.getToCircleId());
       default:
-        break;
+        throw new IllegalArgumentException("unknown scope " + message.getMessageScope());
     }
+    clientService.updateClientDeviceInfo(fromClient, message.getDeviceInfo());
+    message.setDeviceInfo(locationStore.pin(message.getDeviceInfo()));
+    messageOutbox.enqueue(message);
   }
 
 }
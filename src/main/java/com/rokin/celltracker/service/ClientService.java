@@ -9,12 +9,19 @@ import com.rokin.celltracker.exception.FavoritePlaceNotFoundException;
 import com.rokin.celltracker.exception.UserAlreadyExistsException;
 import com.rokin.celltracker.exception.UserMismatchException;
 import com.rokin.celltracker.exception.UserNotFoundException;
-import com.rokin.celltracker.repository.ClientDeviceInfoRepository;
 import com.rokin.celltracker.repository.ClientFavouritePlaceRepository;
 import com.rokin.celltracker.repository.ClientRepository;
+import com.rokin.celltracker.store.LocationStore;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.transaction.Transactional;
 import javax.validation.Valid;
 import lombok.RequiredArgsConstructor;
@@ -30,9 +37,17 @@ public class ClientService {
 
   private final ClientRepository clientRepo;
   private final ImageUploader imageUploader;
-  private final ClientDeviceInfoRepository clientDeviceInfoRepo;
+  private final LocationStore locationStore;
   private final ClientFavouritePlaceRepository clientFavouritePlaceRepo;
   private final PasswordEncoder passwordEncoder;
+  private final LatestLocationStore latestLocationStore;
+  private final TrajectoryFilter trajectoryFilter;
+  private final LocationTierStore locationTierStore;
+  private final LiveLocationService liveLocationService;
+  private final VersionCounters versionCounters;
+
+  // client id by email and by cell no, so conditional requests resolve the principal in memory
+  private final Map<String, Long> clientIds = new ConcurrentHashMap<>();
 
   /**
    * Add client.
@@ -61,7 +76,8 @@ public class ClientService {
       ClientDeviceInfo cdi = client.getLatestDeviceInfo();
       client.setLatestDeviceInfo(null);
       Client newClient = clientRepo.save(client);
-      updateClientDeviceInfo(newClient.getId(), cdi);
+      updateClientDeviceInfo(newClient, cdi);
+      newClient.setLatestDeviceInfo(locationStore.pinLatest(newClient, cdi));
       return newClient;
     }
     throw new UserAlreadyExistsException(
@@ -69,7 +85,9 @@ public class ClientService {
   }
 
   /**
-   * Update client.
+   * Update client. The returned client is managed until the transaction ends, so it carries the
+   * stored latest device info; load it with {@link #getClientDetails(Long)} afterwards for the
+   * in-memory one.
    * 
    * @param client
    *          clent
@@ -80,7 +98,7 @@ public class ClientService {
   @Transactional
   public Client updateClient(String username, Client client, MultipartFile uploadfile) {
     Client c = getClientByUserName(username);
-    if (c.getId() == client.getId()) {
+    if (c.getId().equals(client.getId())) {
       client.setTimestamp(System.currentTimeMillis());
       if (uploadfile != null) {
         List<FileInfo> fileInfoList = imageUploader.saveUploadedFiles(Arrays.asList(uploadfile));
@@ -89,6 +107,9 @@ public class ClientService {
         }
       }
       updateClientDeviceInfo(client.getId(), client.getLatestDeviceInfo());
+      client.setLatestDeviceInfo(locationStore.pinLatest(client, client.getLatestDeviceInfo()));
+      forgetClientId(client.getId());
+      versionCounters.clientChanged(client.getId());
       return clientRepo.save(client);
     }
     throw new UserMismatchException(String.valueOf(client.getId()));
@@ -102,22 +123,111 @@ public class ClientService {
    */
   public Boolean deleteClient(String username, Long clientId) {
     Client client = getClientByUserName(username);
-    if (clientId == client.getId()) {
+    if (client.getId().equals(clientId)) {
       client.setEnabled(false);
       client.setTimestamp(System.currentTimeMillis());
       clientRepo.save(client);
+      forgetClientId(clientId);
+      versionCounters.clientChanged(clientId);
       return true;
     }
     throw new UserMismatchException(String.valueOf(clientId));
   }
 
+  /**
+   * Get a page of clients. The page is selected on ids alone, so roles can be fetched along
+   * with the clients of the page without paging the joined rows.
+   * 
+   * @param pageable
+   *          page
+   * @return
+   */
   public Page<Client> getClients(Pageable pageable) {
-    return clientRepo.findAll(pageable);
+    Page<Long> ids = clientRepo.findIds(pageable);
+    Map<Long, Client> clients = new HashMap<>();
+    for (Client client : getClientDetails(ids.getContent())) {
+      clients.put(client.getId(), client);
+    }
+    return ids.map(clients::get);
   }
 
+  /**
+   * Add client device information reported by the device. A fix the trajectory filter finds
+   * redundant still becomes the latest device info, it is only left out of the history.
+   * 
+   * @param username
+   *          client email or cell no
+   * @param clientDeviceInfo
+   *          client device info
+   */
   public Boolean addClientDeviceInfo(String username, ClientDeviceInfo clientDeviceInfo) {
     Client client = getClientByUserName(username);
-    return updateClientDeviceInfo(client.getId(), clientDeviceInfo);
+    if (clientDeviceInfo != null) {
+      clientDeviceInfo.setTimestamp(System.currentTimeMillis());
+      if (!trajectoryFilter.accept(client.getId(), clientDeviceInfo)) {
+        clientDeviceInfo.setClient(client);
+        latestLocationStore.move(client, clientDeviceInfo);
+        latestChanged(client);
+        return true;
+      }
+    }
+    return updateClientDeviceInfo(client, clientDeviceInfo);
+  }
+
+  @Transactional
+  public Boolean addClientDeviceInfos(String username, List<ClientDeviceInfo> clientDeviceInfos) {
+    Client client = getClientByUserName(username);
+    return updateClientDeviceInfos(client, clientDeviceInfos);
+  }
+
+  /**
+   * Update client device information with a batch of buffered fixes. Fixes pass the trajectory
+   * filter, the kept ones are inserted with JDBC batching and the latest device info is moved
+   * once, to the newest fix of the batch even when the filter dropped it.
+   * 
+   * @param client
+   *          client
+   * @param clientDeviceInfos
+   *          client device info list
+   */
+  public Boolean updateClientDeviceInfos(Client client, List<ClientDeviceInfo> clientDeviceInfos) {
+    if (clientDeviceInfos != null && !clientDeviceInfos.isEmpty()) {
+      long now = System.currentTimeMillis();
+      for (ClientDeviceInfo clientDeviceInfo : clientDeviceInfos) {
+        clientDeviceInfo.setId(null);
+        clientDeviceInfo.setClient(client);
+        if (clientDeviceInfo.getTimestamp() == null || clientDeviceInfo.getTimestamp() > now) {
+          clientDeviceInfo.setTimestamp(now);
+        }
+      }
+      List<ClientDeviceInfo> kept = trajectoryFilter.filter(client.getId(), clientDeviceInfos);
+      if (!kept.isEmpty()) {
+        List<ClientDeviceInfo> stored = locationStore.append(client, kept);
+        latestLocationStore.update(client, stored.get(stored.size() - 1));
+        locationTierStore.record(client.getId(), stored);
+      }
+      ClientDeviceInfo newest = Collections.max(clientDeviceInfos,
+          Comparator.comparing(ClientDeviceInfo::getTimestamp));
+      if (kept.isEmpty() || kept.get(kept.size() - 1) != newest) {
+        latestLocationStore.move(client, newest);
+      }
+      latestChanged(client);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Update device information of many clients in one transaction.
+   * 
+   * @param clientDeviceInfos
+   *          client device info list by client id
+   */
+  @Transactional
+  public void updateClientsDeviceInfos(Map<Long, List<ClientDeviceInfo>> clientDeviceInfos) {
+    for (Client client : clientRepo.findAllById(clientDeviceInfos.keySet())) {
+      updateClientDeviceInfos(client, clientDeviceInfos.get(client.getId()));
+    }
   }
 
   /**
@@ -130,26 +240,107 @@ public class ClientService {
    */
   public Boolean updateClientDeviceInfo(Long clientId, ClientDeviceInfo clientDeviceInfo) {
     if (clientDeviceInfo != null) {
-      Client client = getClient(clientId);
+      return updateClientDeviceInfo(getClient(clientId), clientDeviceInfo);
+    }
+    return false;
+  }
+
+  /**
+   * Update client device information. Only the in-memory latest device info is moved, the client
+   * row is written back by {@link LatestLocationStore#flush()}.
+   * 
+   * @param client
+   *          client
+   * @param clientDeviceInfo
+   *          client device info
+   */
+  public Boolean updateClientDeviceInfo(Client client, ClientDeviceInfo clientDeviceInfo) {
+    if (clientDeviceInfo != null) {
       clientDeviceInfo.setClient(client);
       clientDeviceInfo.setTimestamp(System.currentTimeMillis());
-      ClientDeviceInfo cdi = clientDeviceInfoRepo.save(clientDeviceInfo);
-      client.setLatestDeviceInfo(cdi);
-      clientRepo.save(client);
+      List<ClientDeviceInfo> stored = locationStore.append(client,
+          Collections.singletonList(clientDeviceInfo));
+      latestLocationStore.update(client, stored.get(0));
+      latestChanged(client);
+      locationTierStore.record(client.getId(), stored);
       return true;
     }
     return false;
   }
 
+  private void latestChanged(Client client) {
+    liveLocationService.publish(client.getId(), latestLocationStore.get(client));
+    versionCounters.clientChanged(client.getId());
+  }
+
   public Client getClient(Long id) {
     return clientRepo.findById(id).orElseThrow(() -> new UserNotFoundException(String.valueOf(id)));
   }
 
+  public Client getClientDetails(Long id) {
+    return latestLocationStore.applyTo(clientRepo.findWithRolesById(id)
+        .orElseThrow(() -> new UserNotFoundException(String.valueOf(id))));
+  }
+
+  /**
+   * Get clients with their latest device info.
+   * 
+   * @param ids
+   *          client ids
+   * @return
+   */
+  public List<Client> getClientDetails(Collection<Long> ids) {
+    List<Client> clients = new ArrayList<>(ids.size());
+    if (ids.isEmpty()) {
+      return clients;
+    }
+    for (Client client : clientRepo.findWithRolesByIdIn(ids)) {
+      clients.add(latestLocationStore.applyTo(client));
+    }
+    return clients;
+  }
+
+  /**
+   * Get push notification ids of clients.
+   * 
+   * @param ids
+   *          client ids
+   * @return
+   */
+  public List<String> getPushNotificationIds(Collection<Long> ids) {
+    return ids.isEmpty() ? new ArrayList<>() : clientRepo.findPushNotificationIds(ids);
+  }
+
+  public Client getClientDetails(String username) {
+    return latestLocationStore.applyTo(clientRepo.findWithRolesByEmailOrCellNo(username, username)
+        .orElseThrow(() -> new UserNotFoundException(username)));
+  }
+
   public Client getClientByUserName(String username) {
     return clientRepo.findByEmailOrCellNo(username, username)
         .orElseThrow(() -> new UserNotFoundException(username));
   }
 
+  /**
+   * Get client id by email or cell no, looking the client up only the first time.
+   * 
+   * @param username
+   *          client email or cell no
+   * @return
+   */
+  public Long getClientIdByUserName(String username) {
+    Long id = clientIds.get(username);
+    if (id == null) {
+      id = getClientByUserName(username).getId();
+      clientIds.put(username, id);
+    }
+    return id;
+  }
+
+  private void forgetClientId(Long clientId) {
+    clientIds.values().removeIf(clientId::equals);
+  }
+
   public Client getClientByEmail(String email) {
     return clientRepo.findByEmail(email).orElseThrow(() -> new UserNotFoundException(email));
   }
@@ -173,6 +364,7 @@ public class ClientService {
     clientFavoritePlace.setClient(client);
     clientFavoritePlace.setActive(true);
     clientFavoritePlace.setTimestamp(System.currentTimeMillis());
+    versionCounters.clientChanged(client.getId());
     return clientFavouritePlaceRepo.save(clientFavoritePlace);
   }
 
@@ -190,6 +382,7 @@ public class ClientService {
     Client client = getClientByUserName(username);
     clientFavoritePlace.setClient(client);
     clientFavoritePlace.setTimestamp(System.currentTimeMillis());
+    versionCounters.clientChanged(client.getId());
     return clientFavouritePlaceRepo.save(clientFavoritePlace);
   }
 
@@ -202,19 +395,24 @@ public class ClientService {
    */
   public Boolean deleteClientFavoritePlace(String username, Long fovoritePlaceId) {
     Client client = getClientByUserName(username);
-    Optional<ClientFavoritePlace> cfp = clientFavouritePlaceRepo.findById(fovoritePlaceId);
-    if (cfp.isPresent() && cfp.get().getClient().getId() == client.getId()) {
+    Optional<ClientFavoritePlace> cfp = clientFavouritePlaceRepo.findByIdAndClient(fovoritePlaceId,
+        client);
+    if (cfp.isPresent()) {
       cfp.get().setClient(client);
       cfp.get().setActive(false);
       cfp.get().setTimestamp(System.currentTimeMillis());
       clientFavouritePlaceRepo.save(cfp.get());
+      versionCounters.clientChanged(client.getId());
       return true;
     }
     throw new FavoritePlaceNotFoundException(String.valueOf(fovoritePlaceId));
   }
 
   public List<ClientFavoritePlace> getClientFavoritePlaces(String username) {
-    Client client = getClientByUserName(username);
+    return getClientFavoritePlaces(getClientByUserName(username));
+  }
+
+  public List<ClientFavoritePlace> getClientFavoritePlaces(Client client) {
     return clientFavouritePlaceRepo.findByClient(client);
   }
 
@@ -0,0 +1,108 @@
+package com.rokin.celltracker.service;
+
+import com.rokin.celltracker.domain.Circle;
+import com.rokin.celltracker.domain.Client;
+import com.rokin.celltracker.dto.CircleDashboard;
+import com.rokin.celltracker.dto.Dashboard;
+import com.rokin.celltracker.repository.CircleRepository;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+
+/**
+ * Home screen of a client in one response: the client, its active circles with their members and
+ * latest positions, and its favorite places. The tag of a dashboard is computed from the
+ * membership index and the version counters alone, so an unchanged dashboard is confirmed
+ * without touching the database. Tags are only valid on a single node, see
+ * {@link VersionCounters}.
+ */
+@Service
+@RequiredArgsConstructor
+public class DashboardService {
+
+  private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+  private final ClientService clientService;
+  private final CircleRepository circleRepo;
+  private final CircleMembershipIndex circleMembershipIndex;
+  private final VersionCounters versionCounters;
+
+  /**
+   * Get dashboard tag, changing whenever anything shown on the dashboard changes.
+   *
+   * @param username
+   *          client email or cell no
+   * @return
+   */
+  public String getTag(String username) {
+    Long clientId = clientService.getClientIdByUserName(username);
+    long hash = mix(versionCounters.getEpoch(), clientId);
+    hash = mix(hash, versionCounters.getClientVersion(clientId));
+    for (String circleId : new TreeSet<>(circleMembershipIndex.getCircles(clientId))) {
+      hash = mix(hash, circleId.hashCode());
+      hash = mix(hash, versionCounters.getCircleVersion(circleId));
+      for (Long memberId : new TreeSet<>(circleMembershipIndex.getMembers(circleId))) {
+        hash = mix(hash, memberId);
+        hash = mix(hash, versionCounters.getClientVersion(memberId));
+      }
+    }
+    return Long.toHexString(hash);
+  }
+
+  /**
+   * Get dashboard. Circles and all their members are loaded with one query each.
+   *
+   * @param username
+   *          client email or cell no
+   * @return
+   */
+  public Dashboard getDashboard(String username) {
+    Client client = clientService.getClientDetails(clientService.getClientIdByUserName(username));
+    SortedSet<String> circleIds = new TreeSet<>(circleMembershipIndex.getCircles(client.getId()));
+    Map<String, Set<Long>> membersByCircle = new HashMap<>();
+    Set<Long> memberIds = new HashSet<>();
+    for (String circleId : circleIds) {
+      Set<Long> members = new TreeSet<>(circleMembershipIndex.getMembers(circleId));
+      members.remove(client.getId());
+      membersByCircle.put(circleId, members);
+      memberIds.addAll(members);
+    }
+    Map<Long, Client> members = new HashMap<>();
+    if (!memberIds.isEmpty()) {
+      clientService.getClientDetails(memberIds).forEach(member -> members.put(member.getId(),
+          member));
+    }
+    Map<String, Circle> circles = new HashMap<>();
+    if (!circleIds.isEmpty()) {
+      circleRepo.findByIdIn(circleIds).forEach(circle -> circles.put(circle.getId(), circle));
+    }
+
+    List<CircleDashboard> circleDashboards = new ArrayList<>();
+    for (String circleId : circleIds) {
+      Circle circle = circles.get(circleId);
+      if (circle != null) {
+        List<Client> circleMembers = new ArrayList<>();
+        for (Long memberId : membersByCircle.get(circleId)) {
+          if (members.containsKey(memberId)) {
+            circleMembers.add(members.get(memberId));
+          }
+        }
+        circleDashboards.add(new CircleDashboard(circle, circleMembers.size() + 1,
+            circleMembers));
+      }
+    }
+    return new Dashboard(client, circleDashboards, clientService.getClientFavoritePlaces(client));
+  }
+
+  private static long mix(long hash, long value) {
+    long mixed = (hash ^ value) * MULTIPLIER;
+    return mixed ^ (mixed >>> 32);
+  }
+}
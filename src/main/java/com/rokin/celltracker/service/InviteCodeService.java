@@ -0,0 +1,133 @@
+package com.rokin.celltracker.service;
+
+import com.rokin.celltracker.BloomFilter;
+import com.rokin.celltracker.InviteCodeSettings;
+import com.rokin.celltracker.RandomUtil;
+import com.rokin.celltracker.repository.CircleRepository;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Hands out circle invite codes from a pool of pre-generated codes known to be unused. Codes in
+ * use are tracked in a Bloom filter loaded once from the circle table; a candidate the filter
+ * may contain is simply skipped, so neither handing out nor refilling probes the database. The
+ * pool is refilled in the background when it runs low.
+ */
+@Service
+@RequiredArgsConstructor
+public class InviteCodeService {
+
+  private final InviteCodeSettings settings;
+  private final CircleRepository circleRepo;
+  private final PlatformTransactionManager transactionManager;
+
+  private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+  private final Queue<String> pool = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger poolSize = new AtomicInteger();
+  private final AtomicBoolean refilling = new AtomicBoolean();
+  private volatile BloomFilter liveCodes;
+  private ExecutorService refiller;
+
+  /**
+   * Load the live codes and fill the pool in the background.
+   */
+  @PostConstruct
+  public void start() {
+    refiller = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("invite-code-"));
+    refilling.set(true);
+    refiller.execute(() -> {
+      try {
+        liveCodes = loadLiveCodes();
+        fill();
+      } catch (RuntimeException ex) {
+        log.error("loading circle invite codes failed", ex);
+      } finally {
+        refilling.set(false);
+      }
+    });
+  }
+
+  @PreDestroy
+  public void stop() {
+    refiller.shutdownNow();
+  }
+
+  /**
+   * Take an unused invite code.
+   *
+   * @return
+   */
+  public String nextCode() {
+    String code = pool.poll();
+    if (code != null) {
+      if (poolSize.decrementAndGet() < settings.getRefillBelow()) {
+        refill();
+      }
+      return code;
+    }
+    refill();
+    // pool drained or still loading, fall back to probing
+    BloomFilter filter = liveCodes;
+    do {
+      code = RandomUtil.createWord(settings.getLength());
+    } while (filter != null ? filter.mightContain(code)
+        : circleRepo.findByCode(code).isPresent());
+    if (filter != null) {
+      filter.put(code);
+    }
+    return code;
+  }
+
+  private void refill() {
+    if (liveCodes != null && refilling.compareAndSet(false, true)) {
+      refiller.execute(() -> {
+        try {
+          fill();
+        } finally {
+          refilling.set(false);
+        }
+      });
+    }
+  }
+
+  private void fill() {
+    BloomFilter filter = liveCodes;
+    while (poolSize.get() < settings.getPoolSize() && !Thread.currentThread().isInterrupted()) {
+      String code = RandomUtil.createWord(settings.getLength());
+      if (!filter.mightContain(code)) {
+        filter.put(code);
+        pool.add(code);
+        poolSize.incrementAndGet();
+      }
+    }
+  }
+
+  private BloomFilter loadLiveCodes() {
+    BloomFilter filter = new BloomFilter(settings.getExpectedCodes(),
+        settings.getFalsePositiveRate());
+    TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+    transactionTemplate.setReadOnly(true);
+    transactionTemplate.execute(status -> {
+      try (Stream<String> codes = circleRepo.streamCodes()) {
+        codes.forEach(filter::put);
+      }
+      return null;
+    });
+    return filter;
+  }
+}
@@ -0,0 +1,193 @@
+package com.rokin.celltracker.service;
+
+import com.rokin.celltracker.domain.Client;
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import com.rokin.celltracker.dto.LocationPartition;
+import com.rokin.celltracker.repository.ClientRepository;
+import com.rokin.celltracker.store.LocationStore;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import org.hibernate.Hibernate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Latest known device info of every client, kept in memory. Ingest only moves the pointer here;
+ * the {@code Client.latestDeviceInfo} column is written back periodically for the clients whose
+ * latest stored fix changed since the last flush. A fix the trajectory filter dropped is the
+ * latest one in memory, but the column keeps pointing at the last stored fix.
+ */
+@Service
+@RequiredArgsConstructor
+public class LatestLocationStore {
+
+  private final ClientRepository clientRepo;
+  private final TransactionTemplate transactionTemplate;
+  private final LocationStore locationStore;
+
+  private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+  private final Map<Long, ClientDeviceInfo> latest = new ConcurrentHashMap<>();
+  // latest stored fix of clients whose client row is behind
+  private final Map<Long, ClientDeviceInfo> unflushed = new ConcurrentHashMap<>();
+
+  /**
+   * Move the latest device info of a client to a stored fix, unless the known one is newer.
+   * 
+   * @param client
+   *          client
+   * @param deviceInfo
+   *          persisted device info
+   */
+  public void update(Client client, ClientDeviceInfo deviceInfo) {
+    move(client, deviceInfo);
+    unflushed.merge(client.getId(), deviceInfo, this::newer);
+  }
+
+  /**
+   * Move the latest device info of a client to a fix that is not stored, unless the known one is
+   * newer. The client row keeps pointing at the last stored fix.
+   * 
+   * @param client
+   *          client
+   * @param deviceInfo
+   *          device info left out of the history
+   */
+  public void move(Client client, ClientDeviceInfo deviceInfo) {
+    warm(client);
+    latest.merge(client.getId(), deviceInfo, this::newer);
+  }
+
+  /**
+   * Get the latest device info of a client.
+   * 
+   * @param client
+   *          loaded client
+   * @return
+   */
+  public ClientDeviceInfo get(Client client) {
+    warm(client);
+    return latest.get(client.getId());
+  }
+
+  /**
+   * Get the latest device infos of clients. Clients not known yet are loaded in one query.
+   * 
+   * @param clientIds
+   *          client ids
+   * @return latest device info by client id, clients without one are left out
+   */
+  public Map<Long, ClientDeviceInfo> getAll(Collection<Long> clientIds) {
+    Map<Long, ClientDeviceInfo> deviceInfos = new HashMap<>();
+    List<Long> missing = new ArrayList<>();
+    for (Long clientId : clientIds) {
+      ClientDeviceInfo deviceInfo = latest.get(clientId);
+      if (deviceInfo != null) {
+        deviceInfos.put(clientId, deviceInfo);
+      } else {
+        missing.add(clientId);
+      }
+    }
+    if (!missing.isEmpty()) {
+      for (Object[] row : clientRepo.findLatestDeviceInfos(missing)) {
+        ClientDeviceInfo deviceInfo = ClientDeviceInfo.builder().id((Long) row[1])
+            .lat((Double) row[2]).lon((Double) row[3]).altitude((Double) row[4])
+            .accuracy((Double) row[5]).speed((Double) row[6]).bearing((Double) row[7])
+            .provider((String) row[8]).battery((Integer) row[9]).timestamp((Long) row[10])
+            .build();
+        Long clientId = (Long) row[0];
+        ClientDeviceInfo known = latest.putIfAbsent(clientId, deviceInfo);
+        deviceInfos.put(clientId, known != null ? known : deviceInfo);
+      }
+    }
+    return deviceInfos;
+  }
+
+  /**
+   * Set the latest known device info on a client that is about to be returned.
+   * 
+   * @param client
+   *          loaded client
+   * @return
+   */
+  public Client applyTo(Client client) {
+    ClientDeviceInfo deviceInfo = get(client);
+    if (deviceInfo != null && deviceInfo != client.getLatestDeviceInfo()) {
+      client.setLatestDeviceInfo(deviceInfo);
+    }
+    return client;
+  }
+
+  /**
+   * Write changed latest device info pointers back to the client table.
+   */
+  @Scheduled(fixedDelayString = "${location.latest.flush-interval-ms:5000}")
+  @PreDestroy
+  public void flush() {
+    if (unflushed.isEmpty()) {
+      return;
+    }
+    Map<Long, ClientDeviceInfo> deviceInfos = new HashMap<>(unflushed);
+    // only the copied fix, a newer one merged in meanwhile waits for the next flush
+    deviceInfos.forEach((clientId, deviceInfo) -> unflushed.computeIfPresent(clientId,
+        (id, current) -> current == deviceInfo ? null : current));
+    try {
+      transactionTemplate.execute(status -> {
+        deviceInfos.forEach((clientId, deviceInfo) -> clientRepo.updateLatestDeviceInfo(clientId,
+            locationStore.pinLatest(Client.builder().id(clientId).build(), deviceInfo)));
+        return null;
+      });
+    } catch (RuntimeException ex) {
+      deviceInfos.forEach((clientId, deviceInfo) -> unflushed.merge(clientId, deviceInfo,
+          this::newer));
+      log.error("flushing latest device info of {} clients failed", deviceInfos.size(), ex);
+    }
+  }
+
+  /**
+   * Forget latest device infos whose rows were dropped with a location partition.
+   * 
+   * @param partition
+   *          dropped partition
+   */
+  @EventListener
+  public void onPartitionDropped(LocationPartition partition) {
+    latest.values().removeIf(deviceInfo -> isIn(partition, deviceInfo));
+    unflushed.values().removeIf(deviceInfo -> isIn(partition, deviceInfo));
+  }
+
+  private boolean isIn(LocationPartition partition, ClientDeviceInfo deviceInfo) {
+    return deviceInfo.getTimestamp() != null
+        && deviceInfo.getTimestamp() >= partition.getFromTimestamp()
+        && deviceInfo.getTimestamp() < partition.getToTimestamp();
+  }
+
+  private void warm(Client client) {
+    ClientDeviceInfo deviceInfo = client.getLatestDeviceInfo();
+    if (deviceInfo == null || latest.containsKey(client.getId())) {
+      return;
+    }
+    if (Hibernate.isInitialized(deviceInfo)) {
+      latest.putIfAbsent(client.getId(), deviceInfo);
+    } else {
+      // not fetched with the client, load it without initializing the detached proxy
+      getAll(Collections.singletonList(client.getId()));
+    }
+  }
+
+  private ClientDeviceInfo newer(ClientDeviceInfo current, ClientDeviceInfo next) {
+    return current.getTimestamp() != null && next.getTimestamp() != null
+        && current.getTimestamp() > next.getTimestamp() ? current : next;
+  }
+}
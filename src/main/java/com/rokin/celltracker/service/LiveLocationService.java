@@ -0,0 +1,331 @@
+package com.rokin.celltracker.service;
+
+import com.rokin.celltracker.LiveLocationSettings;
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import com.rokin.celltracker.dto.MemberLocation;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * Pushes new member positions to server-sent event subscribers of a circle. Every subscriber has
+ * a bounded buffer holding the newest undelivered position per member, so a slow connection
+ * skips intermediate fixes instead of queueing them; when more members are pending than the
+ * buffer holds the oldest is dropped. Buffers are written by a small sender pool, at most one
+ * thread per subscriber, which also sends heartbeats. Subscribers that left the circle, whose
+ * connection failed or that could not take anything for the idle timeout are evicted. A
+ * subscriber whose send is stuck past the send timeout is evicted too, its sender thread is
+ * interrupted and replaced by an extra one until the send returns, so one stalled socket does
+ * not hold back the others.
+ */
+@Service
+@RequiredArgsConstructor
+public class LiveLocationService {
+
+  private final LiveLocationSettings settings;
+  private final CircleMembershipIndex circleMembershipIndex;
+
+  private final Map<String, Set<Subscriber>> subscribersByCircle = new ConcurrentHashMap<>();
+  private ThreadPoolExecutor sender;
+
+  @PostConstruct
+  public void start() {
+    sender = new ThreadPoolExecutor(settings.getSenderThreads(), settings.getSenderThreads(), 60,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+        new CustomizableThreadFactory("live-location-"));
+  }
+
+  /**
+   * Close all subscriptions.
+   */
+  @PreDestroy
+  public void stop() {
+    sender.shutdownNow();
+    for (Set<Subscriber> subscribers : subscribersByCircle.values()) {
+      subscribers.forEach(subscriber -> subscriber.emitter.complete());
+    }
+    subscribersByCircle.clear();
+  }
+
+  /**
+   * Subscribe a circle member to positions of the other members. The snapshot is taken after the
+   * subscription is registered, so no fix published in between is missed.
+   *
+   * @param circleId
+   *          circle id
+   * @param clientId
+   *          subscribing member id
+   * @param snapshot
+   *          latest positions of the other members
+   * @return
+   */
+  public SseEmitter subscribe(String circleId, Long clientId,
+      Supplier<List<MemberLocation>> snapshot) {
+    Subscriber subscriber = new Subscriber(circleId, clientId,
+        new SseEmitter(settings.getTimeoutMs()));
+    subscriber.emitter.onCompletion(() -> remove(subscriber));
+    subscriber.emitter.onTimeout(subscriber.emitter::complete);
+    subscribersByCircle.compute(circleId, (id, subscribers) -> {
+      Set<Subscriber> circleSubscribers = subscribers != null ? subscribers
+          : ConcurrentHashMap.newKeySet();
+      circleSubscribers.add(subscriber);
+      return circleSubscribers;
+    });
+    snapshot.get().forEach(subscriber::offer);
+    return subscriber.emitter;
+  }
+
+  /**
+   * Publish the latest position of a client to subscribers of its circles, once the current
+   * transaction commits.
+   *
+   * @param clientId
+   *          client id
+   * @param deviceInfo
+   *          latest device info
+   */
+  public void publish(Long clientId, ClientDeviceInfo deviceInfo) {
+    if (subscribersByCircle.isEmpty() || deviceInfo == null) {
+      return;
+    }
+    MemberLocation location = MemberLocation.of(clientId, deviceInfo);
+    Set<String> circleIds = circleMembershipIndex.getCircles(clientId);
+    afterCommit(() -> {
+      for (String circleId : circleIds) {
+        Set<Subscriber> subscribers = subscribersByCircle.get(circleId);
+        if (subscribers != null) {
+          for (Subscriber subscriber : subscribers) {
+            if (!subscriber.clientId.equals(clientId)) {
+              subscriber.offer(location);
+            }
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Send heartbeats and evict subscribers that left their circle, stopped taking events or are
+   * stuck in a send.
+   */
+  @Scheduled(fixedDelayString = "${circle.live.heartbeat-interval-ms:15000}")
+  public void heartbeat() {
+    long now = System.currentTimeMillis();
+    for (Set<Subscriber> subscribers : subscribersByCircle.values()) {
+      for (Subscriber subscriber : subscribers) {
+        long sendingSince = subscriber.sendingSince;
+        if (sendingSince != 0 && now - sendingSince > settings.getSendTimeoutMs()) {
+          subscriber.stall();
+        } else if (!circleMembershipIndex.isMember(subscriber.circleId, subscriber.clientId)
+            || now - subscriber.lastSent > settings.getIdleTimeoutMs()) {
+          subscriber.evict();
+        } else if (now - subscriber.lastSent >= settings.getHeartbeatIntervalMs()) {
+          subscriber.heartbeat();
+        }
+      }
+    }
+  }
+
+  private void remove(Subscriber subscriber) {
+    subscribersByCircle.computeIfPresent(subscriber.circleId, (id, subscribers) -> {
+      subscribers.remove(subscriber);
+      return subscribers.isEmpty() ? null : subscribers;
+    });
+  }
+
+  private void resizeSender(int delta) {
+    synchronized (sender) {
+      int size = sender.getCorePoolSize() + delta;
+      // keep core <= max at every step
+      if (delta > 0) {
+        sender.setMaximumPoolSize(size);
+        sender.setCorePoolSize(size);
+      } else {
+        sender.setCorePoolSize(size);
+        sender.setMaximumPoolSize(size);
+      }
+    }
+  }
+
+  private void afterCommit(Runnable change) {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      change.run();
+      return;
+    }
+    TransactionSynchronizationManager.registerSynchronization(
+        new TransactionSynchronizationAdapter() {
+          @Override
+          public void afterCommit() {
+            change.run();
+          }
+        });
+  }
+
+  private class Subscriber {
+    private final String circleId;
+    private final Long clientId;
+    private final SseEmitter emitter;
+    // newest undelivered position per member, in arrival order; guarded by this
+    private final LinkedHashMap<Long, MemberLocation> pending = new LinkedHashMap<>();
+    private boolean heartbeatDue;
+    private boolean draining;
+    private boolean closed;
+    // sender thread while a send is in progress, and whether it was given up on
+    private Thread sendingThread;
+    private boolean stalled;
+    private volatile long sendingSince;
+    private volatile long lastSent = System.currentTimeMillis();
+
+    Subscriber(String circleId, Long clientId, SseEmitter emitter) {
+      this.circleId = circleId;
+      this.clientId = clientId;
+      this.emitter = emitter;
+    }
+
+    void offer(MemberLocation location) {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        MemberLocation previous = pending.remove(location.getMemberId());
+        pending.put(location.getMemberId(), isNewer(previous, location) ? previous : location);
+        if (pending.size() > settings.getBufferSize()) {
+          Iterator<MemberLocation> oldest = pending.values().iterator();
+          oldest.next();
+          oldest.remove();
+        }
+      }
+      schedule();
+    }
+
+    void heartbeat() {
+      synchronized (this) {
+        heartbeatDue = true;
+      }
+      schedule();
+    }
+
+    /**
+     * Stop fanning out to this subscriber. The connection is completed right away unless a send
+     * is stuck on it, then by the sender once that send returns.
+     */
+    void evict() {
+      boolean idle;
+      synchronized (this) {
+        closed = true;
+        pending.clear();
+        idle = !draining;
+      }
+      remove(this);
+      if (idle) {
+        emitter.complete();
+      }
+    }
+
+    /**
+     * Give up on a send that is stuck, the sender pool gets a thread in place of the stuck one
+     * until the send returns.
+     */
+    void stall() {
+      synchronized (this) {
+        if (stalled || sendingThread == null) {
+          return;
+        }
+        stalled = true;
+        sendingThread.interrupt();
+      }
+      resizeSender(1);
+      evict();
+    }
+
+    private void schedule() {
+      synchronized (this) {
+        if (draining || closed) {
+          return;
+        }
+        draining = true;
+      }
+      try {
+        sender.execute(this::drain);
+      } catch (RejectedExecutionException ex) {
+        synchronized (this) {
+          draining = false;
+        }
+      }
+    }
+
+    private void drain() {
+      while (true) {
+        List<MemberLocation> locations;
+        boolean sendHeartbeat;
+        synchronized (this) {
+          if (closed || pending.isEmpty() && !heartbeatDue) {
+            draining = false;
+            break;
+          }
+          locations = new ArrayList<>(pending.values());
+          pending.clear();
+          sendHeartbeat = heartbeatDue && locations.isEmpty();
+          heartbeatDue = false;
+          sendingThread = Thread.currentThread();
+        }
+        sendingSince = System.currentTimeMillis();
+        try {
+          if (sendHeartbeat) {
+            emitter.send(SseEmitter.event().comment("heartbeat"));
+          }
+          for (MemberLocation location : locations) {
+            emitter.send(SseEmitter.event().name("location").data(location));
+          }
+          lastSent = System.currentTimeMillis();
+        } catch (IOException | IllegalStateException ex) {
+          evict();
+          break;
+        } finally {
+          sendingSince = 0;
+          synchronized (this) {
+            sendingThread = null;
+          }
+          // drop an interrupt from stall() that arrived after the send returned
+          Thread.interrupted();
+        }
+      }
+      boolean closedWhileSending;
+      boolean wasStalled;
+      synchronized (this) {
+        closedWhileSending = closed;
+        wasStalled = stalled;
+      }
+      if (closedWhileSending) {
+        emitter.complete();
+      }
+      if (wasStalled) {
+        resizeSender(-1);
+      }
+    }
+
+    private boolean isNewer(MemberLocation current, MemberLocation next) {
+      return current != null && current.getTimestamp() != null && next.getTimestamp() != null
+          && current.getTimestamp() > next.getTimestamp();
+    }
+  }
+}
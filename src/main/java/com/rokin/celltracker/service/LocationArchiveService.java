@@ -0,0 +1,136 @@
+package com.rokin.celltracker.service;
+
+import com.rokin.celltracker.LocationArchiveSettings;
+import com.rokin.celltracker.codec.LocationArchiveCodec;
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import com.rokin.celltracker.domain.ClientDeviceInfoArchive;
+import com.rokin.celltracker.dto.LocationPartition;
+import com.rokin.celltracker.repository.ClientDeviceInfoArchiveRepository;
+import com.rokin.celltracker.repository.ClientDeviceInfoRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import javax.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Tiers old device infos into compressed per client, per UTC day archive blocks and deletes the
+ * archived rows. Rows still referenced as a client's latest device info or by a message stay
+ * hot. {@link LocationHistoryService} merges both tiers on read.
+ */
+@Service
+@RequiredArgsConstructor
+public class LocationArchiveService {
+
+  private static final long DAY_MS = TimeUnit.DAYS.toMillis(1);
+
+  private final LocationArchiveSettings settings;
+  private final ClientDeviceInfoRepository clientDeviceInfoRepo;
+  private final ClientDeviceInfoArchiveRepository clientDeviceInfoArchiveRepo;
+  private final LatestLocationStore latestLocationStore;
+  private final TransactionTemplate transactionTemplate;
+  private final MeterRegistry meterRegistry;
+
+  private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+  private Counter archivedCounter;
+  private DistributionSummary blockSizeSummary;
+
+  /**
+   * Register archive metrics.
+   */
+  @PostConstruct
+  public void init() {
+    archivedCounter = meterRegistry.counter("location.archive.archived");
+    blockSizeSummary = meterRegistry.summary("location.archive.block.bytes");
+  }
+
+  /**
+   * Archive device infos older than the configured age.
+   */
+  @Scheduled(cron = "${location.archive.cron:0 30 3 * * *}", zone = "UTC")
+  public void archive() {
+    if (!settings.isEnabled()) {
+      return;
+    }
+    archiveBefore(LocalDate.now(ZoneOffset.UTC).minusDays(settings.getAgeDays())
+        .atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli());
+  }
+
+  /**
+   * Archive device infos older than a time.
+   * 
+   * @param before
+   *          archive device infos with a timestamp before this time
+   * @return number of archived device infos
+   */
+  public long archiveBefore(long before) {
+    // make the latest device info pointers in the client table current
+    latestLocationStore.flush();
+    long archived = 0;
+    for (Long clientId : clientDeviceInfoRepo.findClientIdsWithDeviceInfoBefore(before)) {
+      int archivedPage;
+      do {
+        archivedPage = transactionTemplate.execute(status -> archivePage(clientId, before));
+        archived += archivedPage;
+      } while (archivedPage == settings.getPageSize());
+    }
+    if (archived > 0) {
+      log.info("archived {} device infos older than {}", archived, before);
+    }
+    return archived;
+  }
+
+  /**
+   * Drop archive blocks of a dropped location partition.
+   * 
+   * @param partition
+   *          dropped partition
+   */
+  @EventListener
+  public void onPartitionDropped(LocationPartition partition) {
+    transactionTemplate.execute(status -> clientDeviceInfoArchiveRepo
+        .deleteByFromTimestampGreaterThanEqualAndToTimestampLessThan(
+            partition.getFromTimestamp(), partition.getToTimestamp()));
+  }
+
+  private int archivePage(Long clientId, long before) {
+    List<ClientDeviceInfo> fixes = clientDeviceInfoRepo.findArchivable(clientId, before,
+        PageRequest.of(0, settings.getPageSize()));
+    if (fixes.isEmpty()) {
+      return 0;
+    }
+    Map<Long, List<ClientDeviceInfo>> days = new LinkedHashMap<>();
+    for (ClientDeviceInfo fix : fixes) {
+      days.computeIfAbsent(Math.floorDiv(fix.getTimestamp(), DAY_MS), day -> new ArrayList<>())
+          .add(fix);
+    }
+    for (List<ClientDeviceInfo> day : days.values()) {
+      byte[] data = LocationArchiveCodec.encode(day);
+      clientDeviceInfoArchiveRepo.save(ClientDeviceInfoArchive.builder().clientId(clientId)
+          .fromTimestamp(day.get(0).getTimestamp())
+          .toTimestamp(day.get(day.size() - 1).getTimestamp()).fixCount(day.size()).data(data)
+          .build());
+      blockSizeSummary.record(data.length);
+    }
+    clientDeviceInfoRepo.deleteByIdIn(
+        fixes.stream().map(ClientDeviceInfo::getId).collect(Collectors.toList()));
+    archivedCounter.increment(fixes.size());
+    return fixes.size();
+  }
+}
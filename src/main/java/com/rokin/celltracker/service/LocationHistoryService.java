@@ -0,0 +1,301 @@
+package com.rokin.celltracker.service;
+
+import com.rokin.celltracker.LocationHistorySettings;
+import com.rokin.celltracker.codec.LocationArchiveCodec;
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import com.rokin.celltracker.domain.ClientDeviceInfoArchive;
+import com.rokin.celltracker.domain.ClientLocationRollup.Resolution;
+import com.rokin.celltracker.dto.LocationHistoryPage;
+import com.rokin.celltracker.exception.InvalidCursorException;
+import com.rokin.celltracker.repository.ClientDeviceInfoArchiveRepository;
+import com.rokin.celltracker.store.LocationStore;
+import io.reactivex.Flowable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Reads location history of a client from the {@link LocationStore} and archive blocks, merged
+ * in timestamp order. Hot fixes are scanned forward-only and archive blocks are decoded one at a
+ * time, so memory stays flat for any range.
+ */
+@Service
+@RequiredArgsConstructor
+public class LocationHistoryService {
+
+  private final LocationStore locationStore;
+  private final ClientDeviceInfoArchiveRepository clientDeviceInfoArchiveRepo;
+  private final PlatformTransactionManager transactionManager;
+  private final EntityManager entityManager;
+  private final LocationHistorySettings settings;
+  private final LocationTierStore locationTierStore;
+
+  private TransactionTemplate readOnlyTransactionTemplate;
+
+  /**
+   * Set up the read-only transaction the history cursor runs in.
+   */
+  @PostConstruct
+  public void init() {
+    readOnlyTransactionTemplate = new TransactionTemplate(transactionManager);
+    readOnlyTransactionTemplate.setReadOnly(true);
+  }
+
+  /**
+   * Get location history.
+   * 
+   * @param clientId
+   *          client id
+   * @param fromTime
+   *          from time, inclusive
+   * @param toTime
+   *          to time, inclusive
+   * @return
+   */
+  public List<ClientDeviceInfo> getHistory(Long clientId, Long fromTime, Long toTime) {
+    List<ClientDeviceInfo> history = new ArrayList<>();
+    streamHistory(clientId, fromTime, toTime, history::add);
+    return history;
+  }
+
+  /**
+   * Get location history at a resolution. Without a resolution the finest one whose point count
+   * stays within the point budget is picked, estimated from the hourly tier; with neither all
+   * raw fixes are returned.
+   * 
+   * @param clientId
+   *          client id
+   * @param fromTime
+   *          from time, inclusive
+   * @param toTime
+   *          to time, inclusive
+   * @param resolution
+   *          resolution, null to pick one
+   * @param maxPoints
+   *          point budget, null for no budget
+   * @return
+   */
+  public List<ClientDeviceInfo> getHistory(Long clientId, Long fromTime, Long toTime,
+      Resolution resolution, Integer maxPoints) {
+    if (resolution == null) {
+      resolution = maxPoints == null ? Resolution.RAW
+          : pickResolution(clientId, fromTime, toTime, maxPoints);
+    }
+    if (resolution == Resolution.RAW) {
+      return getHistory(clientId, fromTime, toTime);
+    }
+    return locationTierStore.getTier(clientId, resolution, fromTime, toTime);
+  }
+
+  private Resolution pickResolution(Long clientId, Long fromTime, Long toTime, int maxPoints) {
+    long[] hours = locationTierStore.countHours(clientId, fromTime, toTime);
+    if (hours[1] <= maxPoints) {
+      return Resolution.RAW;
+    }
+    for (Resolution resolution : LocationTierStore.TIERS) {
+      long bucketsPerHour = Resolution.HOUR.getMillis() / resolution.getMillis();
+      if (Math.min(hours[1], hours[0] * bucketsPerHour) <= maxPoints) {
+        return resolution;
+      }
+    }
+    return Resolution.HOUR;
+  }
+
+  /**
+   * Hand location history to a consumer in timestamp order without collecting it.
+   * 
+   * @param clientId
+   *          client id
+   * @param fromTime
+   *          from time, inclusive
+   * @param toTime
+   *          to time, inclusive
+   * @param consumer
+   *          receives detached device infos
+   */
+  public void streamHistory(Long clientId, Long fromTime, Long toTime,
+      Consumer<ClientDeviceInfo> consumer) {
+    readOnlyTransactionTemplate.execute(status -> {
+      scan(clientId, fromTime, Long.MIN_VALUE, toTime, Integer.MAX_VALUE, fix -> {
+        consumer.accept(fix);
+        return true;
+      });
+      return null;
+    });
+  }
+
+  /**
+   * Get location history as a flow of pages. A page is read only once the subscriber asked for
+   * it, and no transaction or cursor is held between pages.
+   * 
+   * @param clientId
+   *          client id
+   * @param fromTime
+   *          from time, inclusive
+   * @param toTime
+   *          to time, inclusive
+   * @param pageSize
+   *          requested page size, capped to the configured max
+   * @return
+   */
+  public Flowable<List<ClientDeviceInfo>> flowHistoryPages(Long clientId, Long fromTime,
+      Long toTime, Integer pageSize) {
+    return Flowable.<List<ClientDeviceInfo>, String[]>generate(() -> new String[1],
+        (cursor, pages) -> {
+          LocationHistoryPage page = getHistoryPage(clientId, fromTime, toTime, cursor[0],
+              pageSize);
+          pages.onNext(page.getDeviceInfos());
+          if (page.getNextCursor() == null) {
+            pages.onComplete();
+          }
+          cursor[0] = page.getNextCursor();
+        }).filter(deviceInfos -> !deviceInfos.isEmpty());
+  }
+
+  /**
+   * Get one page of location history, seeking past the cursor on (timestamp, id).
+   * 
+   * @param clientId
+   *          client id
+   * @param fromTime
+   *          from time, inclusive
+   * @param toTime
+   *          to time, inclusive
+   * @param cursor
+   *          next cursor of the previous page, null for the first page
+   * @param pageSize
+   *          requested page size, capped to the configured max
+   * @return
+   */
+  public LocationHistoryPage getHistoryPage(Long clientId, Long fromTime, Long toTime,
+      String cursor, Integer pageSize) {
+    int size = pageSize == null ? settings.getDefaultPageSize()
+        : Math.max(1, Math.min(pageSize, settings.getMaxPageSize()));
+    long[] after = cursor == null ? new long[] { fromTime, Long.MIN_VALUE } : decodeCursor(cursor);
+    return readOnlyTransactionTemplate.execute(status -> {
+      List<ClientDeviceInfo> deviceInfos = new ArrayList<>(size + 1);
+      scan(clientId, after[0], after[1], toTime, size + 1, fix -> {
+        if (fix.getTimestamp() > after[0] || (fix.getId() != null && fix.getId() > after[1])) {
+          deviceInfos.add(fix);
+        }
+        return deviceInfos.size() <= size;
+      });
+      if (deviceInfos.size() <= size) {
+        return new LocationHistoryPage(deviceInfos, null);
+      }
+      deviceInfos.remove(size);
+      return new LocationHistoryPage(deviceInfos, encodeCursor(deviceInfos.get(size - 1)));
+    });
+  }
+
+  private void scan(Long clientId, Long afterTimestamp, Long afterId, Long toTime, int limit,
+      Predicate<ClientDeviceInfo> sink) {
+    ArchivedFixes archived = new ArchivedFixes(
+        clientDeviceInfoArchiveRepo.findIdsOverlapping(clientId, afterTimestamp, toTime),
+        afterTimestamp, toTime);
+    boolean[] more = { true };
+    locationStore.scan(clientId, afterTimestamp, afterId, toTime, limit, hot -> {
+      while (more[0] && archived.peek() != null
+          && LocationStore.ORDER.compare(archived.peek(), hot) < 0) {
+        more[0] = sink.test(archived.next());
+      }
+      more[0] = more[0] && sink.test(hot);
+      return more[0];
+    });
+    while (more[0] && archived.peek() != null) {
+      more[0] = sink.test(archived.next());
+    }
+  }
+
+  private static String encodeCursor(ClientDeviceInfo last) {
+    String position = last.getTimestamp() + ":"
+        + (last.getId() == null ? Long.MIN_VALUE : last.getId());
+    return Base64.getUrlEncoder().withoutPadding()
+        .encodeToString(position.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private static long[] decodeCursor(String cursor) {
+    try {
+      String[] position = new String(Base64.getUrlDecoder().decode(cursor),
+          StandardCharsets.US_ASCII).split(":");
+      return new long[] { Long.parseLong(position[0]), Long.parseLong(position[1]) };
+    } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+      throw new InvalidCursorException(cursor);
+    }
+  }
+
+  /**
+   * Fixes of archive blocks in timestamp order. A block is decoded once the next fix could come
+   * from it; blocks normally do not overlap, so one block is held at a time.
+   */
+  private class ArchivedFixes {
+    private final Iterator<Long> blockIds;
+    private final Long fromTime;
+    private final Long toTime;
+    private final PriorityQueue<ClientDeviceInfo> buffer = new PriorityQueue<>(
+        LocationStore.ORDER);
+    private ClientDeviceInfoArchive nextBlock;
+
+    ArchivedFixes(List<Long> blockIds, Long fromTime, Long toTime) {
+      this.blockIds = blockIds.iterator();
+      this.fromTime = fromTime;
+      this.toTime = toTime;
+      this.nextBlock = loadNextBlock();
+    }
+
+    ClientDeviceInfo peek() {
+      fill();
+      return buffer.peek();
+    }
+
+    ClientDeviceInfo next() {
+      fill();
+      return buffer.poll();
+    }
+
+    private void fill() {
+      while (nextBlock != null && (buffer.isEmpty()
+          || nextBlock.getFromTimestamp() <= buffer.peek().getTimestamp())) {
+        for (ClientDeviceInfo fix : decode(nextBlock)) {
+          if (fix.getTimestamp() >= fromTime && fix.getTimestamp() <= toTime) {
+            buffer.add(fix);
+          }
+        }
+        nextBlock = loadNextBlock();
+      }
+    }
+
+    private ClientDeviceInfoArchive loadNextBlock() {
+      while (blockIds.hasNext()) {
+        ClientDeviceInfoArchive block = clientDeviceInfoArchiveRepo.findById(blockIds.next())
+            .orElse(null);
+        if (block != null) {
+          entityManager.detach(block);
+          return block;
+        }
+      }
+      return null;
+    }
+  }
+
+  private List<ClientDeviceInfo> decode(ClientDeviceInfoArchive archive) {
+    try {
+      return LocationArchiveCodec.decode(archive.getData());
+    } catch (IOException ex) {
+      throw new UncheckedIOException("corrupt location archive " + archive.getId(), ex);
+    }
+  }
+}
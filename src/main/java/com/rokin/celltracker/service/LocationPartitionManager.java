@@ -0,0 +1,140 @@
+package com.rokin.celltracker.service;
+
+import com.rokin.celltracker.LocationPartitionSettings;
+import com.rokin.celltracker.LocationPartitionSettings.Interval;
+import com.rokin.celltracker.dto.LocationPartition;
+import com.rokin.celltracker.repository.H2LocationPartitionDialect;
+import com.rokin.celltracker.repository.LocationPartitionDialect;
+import com.rokin.celltracker.repository.PostgresLocationPartitionDialect;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Set;
+import java.util.stream.Collectors;
+import javax.annotation.PostConstruct;
+import javax.sql.DataSource;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Keeps client_device_info split into time-range partitions when partitioning is enabled. The
+ * current partition and the configured number of future ones always exist, partitions past the
+ * retention window are dropped whole instead of deleting rows. Runs before the entity manager
+ * factory so the partitioned table exists before schema generation, hence plain JDBC only.
+ * A {@link LocationPartition} event is published for every dropped partition.
+ */
+@Service
+@RequiredArgsConstructor
+public class LocationPartitionManager {
+
+  private static final String PREFIX = "client_device_info_p";
+  private static final DateTimeFormatter SUFFIX = DateTimeFormatter.BASIC_ISO_DATE;
+
+  private final LocationPartitionSettings settings;
+  private final DataSource dataSource;
+  private final JdbcTemplate jdbcTemplate;
+  private final ApplicationEventPublisher eventPublisher;
+
+  private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+  private LocationPartitionDialect dialect;
+  private TransactionTemplate transactionTemplate;
+
+  /**
+   * Prepare the history table and create upcoming partitions when partitioning is enabled.
+   */
+  @PostConstruct
+  public void start() {
+    if (!settings.isEnabled()) {
+      return;
+    }
+    String database = jdbcTemplate.execute((ConnectionCallback<String>) connection -> connection
+        .getMetaData().getDatabaseProductName());
+    LocationPartitionDialect candidate;
+    if ("PostgreSQL".equals(database)) {
+      candidate = new PostgresLocationPartitionDialect(jdbcTemplate);
+    } else if ("H2".equals(database)) {
+      candidate = new H2LocationPartitionDialect(jdbcTemplate);
+    } else {
+      log.error("location partitioning is not supported on {}", database);
+      return;
+    }
+    if (candidate.prepare()) {
+      dialect = candidate;
+      transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+      createPartitions(today());
+    }
+  }
+
+  /**
+   * Create upcoming partitions and drop expired ones.
+   */
+  @Scheduled(cron = "${location.partitioning.maintenance-cron:0 0 3 * * *}", zone = "UTC")
+  public void maintain() {
+    maintain(today());
+  }
+
+  /**
+   * Create upcoming partitions and drop expired ones as of a day.
+   * 
+   * @param today
+   *          current day in UTC
+   */
+  public void maintain(LocalDate today) {
+    if (dialect == null) {
+      return;
+    }
+    createPartitions(today);
+    dropExpiredPartitions(today);
+  }
+
+  private void createPartitions(LocalDate today) {
+    Interval interval = settings.getInterval();
+    Set<String> existing = dialect.listPartitions().stream().map(LocationPartition::getName)
+        .collect(Collectors.toSet());
+    LocalDate start = interval.floor(today);
+    for (int i = 0; i <= settings.getPrecreate(); i++) {
+      LocalDate from = interval.plus(start, i);
+      LocationPartition partition = new LocationPartition(PREFIX + from.format(SUFFIX),
+          toMillis(from), toMillis(interval.plus(from, 1)));
+      if (!existing.contains(partition.getName())) {
+        dialect.createPartition(partition);
+        log.info("created location partition {}", partition.getName());
+      }
+    }
+  }
+
+  private void dropExpiredPartitions(LocalDate today) {
+    if (settings.getRetention() <= 0) {
+      return;
+    }
+    Interval interval = settings.getInterval();
+    long cutoff = toMillis(interval.plus(interval.floor(today), -settings.getRetention()));
+    for (LocationPartition partition : dialect.listPartitions()) {
+      if (partition.getToTimestamp() <= cutoff) {
+        transactionTemplate.execute(status -> {
+          dialect.dropPartition(partition);
+          return null;
+        });
+        log.info("dropped location partition {}", partition.getName());
+        eventPublisher.publishEvent(partition);
+      }
+    }
+  }
+
+  private static LocalDate today() {
+    return LocalDate.now(ZoneOffset.UTC);
+  }
+
+  private static long toMillis(LocalDate date) {
+    return date.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+  }
+}
@@ -0,0 +1,244 @@
+package com.rokin.celltracker.service;
+
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import com.rokin.celltracker.domain.ClientLocationRollup;
+import com.rokin.celltracker.domain.ClientLocationRollup.Resolution;
+import com.rokin.celltracker.dto.LocationPartition;
+import com.rokin.celltracker.repository.ClientLocationRollupRepository;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.PreDestroy;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Incrementally maintained downsampled history tiers, one point per minute, ten minutes and hour.
+ * Ingested fixes are folded into per bucket deltas in memory; the deltas are merged into the
+ * rollup table periodically, so a busy client costs one row write per touched bucket and flush
+ * instead of one per fix. Reads include deltas that are not flushed yet. Deltas are kept per
+ * client, so ingest and reads of different clients do not contend. Buckets of a dropped location
+ * partition are dropped with it, so downsampled history does not outlive the retention.
+ */
+@Service
+@RequiredArgsConstructor
+public class LocationTierStore {
+
+  static final Set<Resolution> TIERS = EnumSet.of(Resolution.MINUTE, Resolution.TEN_MINUTES,
+      Resolution.HOUR);
+
+  private final ClientLocationRollupRepository clientLocationRollupRepo;
+  private final TransactionTemplate transactionTemplate;
+
+  private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+  private final Map<Long, ClientDeltas> pending = new ConcurrentHashMap<>();
+
+  @Data
+  private static class BucketKey {
+    private final Resolution resolution;
+    private final Long bucketStart;
+  }
+
+  /**
+   * Unflushed deltas of one client, guarded by itself.
+   */
+  private static class ClientDeltas {
+    private final Map<BucketKey, ClientLocationRollup> buckets = new HashMap<>();
+    // taken by a flush, a later record starts a new instance
+    private boolean flushing;
+  }
+
+  /**
+   * Fold stored fixes into the tiers.
+   * 
+   * @param clientId
+   *          client id
+   * @param deviceInfos
+   *          stored device infos with timestamps
+   */
+  public void record(Long clientId, List<ClientDeviceInfo> deviceInfos) {
+    Map<BucketKey, ClientLocationRollup> deltas = new HashMap<>();
+    for (ClientDeviceInfo deviceInfo : deviceInfos) {
+      if (deviceInfo.getLat() == null || deviceInfo.getLon() == null) {
+        continue;
+      }
+      for (Resolution resolution : TIERS) {
+        long bucketStart = resolution.bucketStart(deviceInfo.getTimestamp());
+        deltas.merge(new BucketKey(resolution, bucketStart),
+            ClientLocationRollup.builder().clientId(clientId).resolution(resolution)
+                .bucketStart(bucketStart).timestamp(deviceInfo.getTimestamp())
+                .lat(deviceInfo.getLat()).lon(deviceInfo.getLon())
+                .accuracy(deviceInfo.getAccuracy()).battery(deviceInfo.getBattery())
+                .fixCount(1L).build(),
+            ClientLocationRollup::merge);
+      }
+    }
+    if (!deltas.isEmpty()) {
+      merge(clientId, deltas);
+    }
+  }
+
+  /**
+   * Get the points of a tier.
+   * 
+   * @param clientId
+   *          client id
+   * @param resolution
+   *          tier resolution
+   * @param fromTime
+   *          from time, inclusive
+   * @param toTime
+   *          to time, inclusive
+   * @return points ordered by timestamp
+   */
+  public List<ClientDeviceInfo> getTier(Long clientId, Resolution resolution, Long fromTime,
+      Long toTime) {
+    Map<Long, ClientLocationRollup> buckets = new HashMap<>();
+    for (ClientLocationRollup rollup : clientLocationRollupRepo
+        .findByClientIdAndResolutionAndTimestampBetweenOrderByTimestamp(clientId, resolution,
+            fromTime, toTime)) {
+      buckets.put(rollup.getBucketStart(), rollup);
+    }
+    for (ClientLocationRollup delta : pendingOf(clientId, resolution)) {
+      ClientLocationRollup rollup = buckets.get(delta.getBucketStart());
+      buckets.put(delta.getBucketStart(), rollup == null ? delta : copy(rollup).merge(delta));
+    }
+    List<ClientDeviceInfo> points = new ArrayList<>(buckets.size());
+    for (ClientLocationRollup rollup : buckets.values()) {
+      if (rollup.getTimestamp() >= fromTime && rollup.getTimestamp() <= toTime) {
+        points.add(rollup.toDeviceInfo());
+      }
+    }
+    points.sort(Comparator.comparing(ClientDeviceInfo::getTimestamp));
+    return points;
+  }
+
+  /**
+   * Count the hourly buckets and the fixes they cover in a range, used to size the tiers.
+   * 
+   * @param clientId
+   *          client id
+   * @param fromTime
+   *          from time, inclusive
+   * @param toTime
+   *          to time, inclusive
+   * @return bucket count and fix count
+   */
+  public long[] countHours(Long clientId, Long fromTime, Long toTime) {
+    Object[] counts = clientLocationRollupRepo
+        .countBuckets(clientId, Resolution.HOUR, fromTime, toTime).get(0);
+    long buckets = ((Number) counts[0]).longValue();
+    long fixes = ((Number) counts[1]).longValue();
+    for (ClientLocationRollup delta : pendingOf(clientId, Resolution.HOUR)) {
+      if (delta.getTimestamp() >= fromTime && delta.getTimestamp() <= toTime) {
+        buckets++;
+        fixes += delta.getFixCount();
+      }
+    }
+    return new long[] { buckets, fixes };
+  }
+
+  /**
+   * Merge pending deltas into the rollup table.
+   */
+  @Scheduled(fixedDelayString = "${location.history.tier-flush-interval-ms:60000}")
+  @PreDestroy
+  public void flush() {
+    Map<Long, Map<BucketKey, ClientLocationRollup>> deltas = new HashMap<>();
+    for (Long clientId : new ArrayList<>(pending.keySet())) {
+      ClientDeltas clientDeltas = pending.remove(clientId);
+      if (clientDeltas != null) {
+        synchronized (clientDeltas) {
+          clientDeltas.flushing = true;
+          deltas.put(clientId, clientDeltas.buckets);
+        }
+      }
+    }
+    if (deltas.isEmpty()) {
+      return;
+    }
+    try {
+      transactionTemplate.execute(status -> {
+        deltas.forEach((clientId, buckets) -> buckets.forEach((key, delta) -> {
+          ClientLocationRollup rollup = clientLocationRollupRepo
+              .findByClientIdAndResolutionAndBucketStart(clientId, key.getResolution(),
+                  key.getBucketStart())
+              .map(existing -> existing.merge(delta)).orElse(delta);
+          clientLocationRollupRepo.save(rollup);
+        }));
+        return null;
+      });
+    } catch (RuntimeException ex) {
+      deltas.forEach(this::merge);
+      log.error("flushing location tier buckets of {} clients failed", deltas.size(), ex);
+    }
+  }
+
+  /**
+   * Drop rollup buckets and pending deltas of a dropped location partition.
+   * 
+   * @param partition
+   *          dropped partition
+   */
+  @EventListener
+  public void onPartitionDropped(LocationPartition partition) {
+    for (ClientDeltas clientDeltas : pending.values()) {
+      synchronized (clientDeltas) {
+        clientDeltas.buckets.keySet().removeIf(key -> key.getBucketStart() >= partition
+            .getFromTimestamp() && key.getBucketStart() < partition.getToTimestamp());
+      }
+    }
+    transactionTemplate.execute(status -> clientLocationRollupRepo
+        .deleteByBucketStartGreaterThanEqualAndBucketStartLessThan(partition.getFromTimestamp(),
+            partition.getToTimestamp()));
+  }
+
+  private void merge(Long clientId, Map<BucketKey, ClientLocationRollup> deltas) {
+    while (true) {
+      ClientDeltas clientDeltas = pending.computeIfAbsent(clientId, id -> new ClientDeltas());
+      synchronized (clientDeltas) {
+        if (!clientDeltas.flushing) {
+          deltas.forEach((key, delta) -> clientDeltas.buckets.merge(key, delta,
+              ClientLocationRollup::merge));
+          return;
+        }
+      }
+    }
+  }
+
+  private List<ClientLocationRollup> pendingOf(Long clientId, Resolution resolution) {
+    List<ClientLocationRollup> deltas = new ArrayList<>();
+    ClientDeltas clientDeltas = pending.get(clientId);
+    if (clientDeltas == null) {
+      return deltas;
+    }
+    synchronized (clientDeltas) {
+      clientDeltas.buckets.forEach((key, delta) -> {
+        if (key.getResolution() == resolution) {
+          deltas.add(copy(delta));
+        }
+      });
+    }
+    return deltas;
+  }
+
+  private static ClientLocationRollup copy(ClientLocationRollup rollup) {
+    return ClientLocationRollup.builder().clientId(rollup.getClientId())
+        .resolution(rollup.getResolution()).bucketStart(rollup.getBucketStart())
+        .timestamp(rollup.getTimestamp()).lat(rollup.getLat()).lon(rollup.getLon())
+        .accuracy(rollup.getAccuracy()).battery(rollup.getBattery())
+        .fixCount(rollup.getFixCount()).build();
+  }
+}
@@ -0,0 +1,241 @@
+package com.rokin.celltracker.service;
+
+import com.rokin.celltracker.LocationWriteBehindSettings;
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import com.rokin.celltracker.exception.LocationQueueFullException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.Data;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+/**
+ * Optional write-behind front of {@link ClientService} device info ingest. Accepted fixes are
+ * queued in memory and group-committed by writer threads once a batch is full or the oldest fix
+ * reaches the configured durability window. Fixes of one client always go to the same writer so
+ * they are committed in order. A failed group commit is retried client by client, so one bad
+ * client does not cost the fixes of the others.
+ */
+@Service
+@RequiredArgsConstructor
+public class LocationWriteBehindService {
+
+  private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final LocationWriteBehindSettings settings;
+  private final ClientService clientService;
+  private final MeterRegistry meterRegistry;
+
+  private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+  private List<BlockingQueue<PendingDeviceInfo>> queues;
+  private Semaphore capacity;
+  private ExecutorService writers;
+  private volatile boolean running;
+  private Counter acceptedCounter;
+  private Counter rejectedCounter;
+  private Counter writtenCounter;
+  private Counter failedCounter;
+  private DistributionSummary batchSizeSummary;
+  private Timer flushTimer;
+  private Timer lagTimer;
+
+  @Data
+  private static class PendingDeviceInfo {
+    private final Long clientId;
+    private final ClientDeviceInfo deviceInfo;
+    private final long enqueuedAt;
+  }
+
+  /**
+   * Start writer threads when write-behind is enabled.
+   */
+  @PostConstruct
+  public void start() {
+    if (!settings.isEnabled()) {
+      return;
+    }
+    int writerThreads = Math.max(1, settings.getWriterThreads());
+    queues = new ArrayList<>(writerThreads);
+    for (int i = 0; i < writerThreads; i++) {
+      queues.add(new LinkedBlockingQueue<>());
+    }
+    capacity = new Semaphore(settings.getQueueCapacity());
+    meterRegistry.gauge("location.writebehind.queue.depth", queues,
+        qs -> qs.stream().mapToInt(BlockingQueue::size).sum());
+    acceptedCounter = meterRegistry.counter("location.writebehind.accepted");
+    rejectedCounter = meterRegistry.counter("location.writebehind.rejected");
+    writtenCounter = meterRegistry.counter("location.writebehind.written");
+    failedCounter = meterRegistry.counter("location.writebehind.failed");
+    batchSizeSummary = meterRegistry.summary("location.writebehind.batch.size");
+    flushTimer = meterRegistry.timer("location.writebehind.flush");
+    lagTimer = meterRegistry.timer("location.writebehind.lag");
+    running = true;
+    writers = Executors.newFixedThreadPool(writerThreads,
+        new CustomizableThreadFactory("location-writer-"));
+    for (BlockingQueue<PendingDeviceInfo> queue : queues) {
+      writers.execute(() -> write(queue));
+    }
+  }
+
+  /**
+   * Stop accepting fixes and drain the queues before the persistence layer shuts down.
+   */
+  @PreDestroy
+  public void stop() throws InterruptedException {
+    if (writers == null) {
+      return;
+    }
+    running = false;
+    writers.shutdown();
+    if (!writers.awaitTermination(settings.getShutdownTimeoutMs(), TimeUnit.MILLISECONDS)) {
+      writers.shutdownNow();
+      log.error("write-behind drain timed out, {} device infos not written",
+          queues.stream().mapToInt(BlockingQueue::size).sum());
+    }
+  }
+
+  /**
+   * Add client device info.
+   *
+   * @param username
+   *          client email or cell no
+   * @param clientDeviceInfo
+   *          client device info
+   * @return
+   */
+  public Boolean addClientDeviceInfo(String username, ClientDeviceInfo clientDeviceInfo) {
+    if (!settings.isEnabled()) {
+      return clientService.addClientDeviceInfo(username, clientDeviceInfo);
+    }
+    if (clientDeviceInfo == null) {
+      return false;
+    }
+    clientDeviceInfo.setTimestamp(System.currentTimeMillis());
+    return enqueue(clientService.getClientByUserName(username).getId(),
+        Collections.singletonList(clientDeviceInfo));
+  }
+
+  /**
+   * Add a batch of client device infos.
+   *
+   * @param username
+   *          client email or cell no
+   * @param clientDeviceInfos
+   *          client device info list
+   * @return
+   */
+  public Boolean addClientDeviceInfos(String username, List<ClientDeviceInfo> clientDeviceInfos) {
+    if (!settings.isEnabled()) {
+      return clientService.addClientDeviceInfos(username, clientDeviceInfos);
+    }
+    if (clientDeviceInfos == null || clientDeviceInfos.isEmpty()) {
+      return false;
+    }
+    return enqueue(clientService.getClientByUserName(username).getId(), clientDeviceInfos);
+  }
+
+  private Boolean enqueue(Long clientId, List<ClientDeviceInfo> clientDeviceInfos) {
+    if (!running || !capacity.tryAcquire(clientDeviceInfos.size())) {
+      rejectedCounter.increment(clientDeviceInfos.size());
+      throw new LocationQueueFullException(String.valueOf(clientId));
+    }
+    BlockingQueue<PendingDeviceInfo> queue = queues
+        .get(Math.floorMod(clientId.hashCode(), queues.size()));
+    long now = System.nanoTime();
+    for (ClientDeviceInfo clientDeviceInfo : clientDeviceInfos) {
+      queue.add(new PendingDeviceInfo(clientId, clientDeviceInfo, now));
+    }
+    acceptedCounter.increment(clientDeviceInfos.size());
+    return true;
+  }
+
+  private void write(BlockingQueue<PendingDeviceInfo> queue) {
+    long maxDelay = TimeUnit.MILLISECONDS.toNanos(settings.getMaxDelayMs());
+    List<PendingDeviceInfo> batch = new ArrayList<>(settings.getBatchSize());
+    try {
+      while (running || !queue.isEmpty()) {
+        PendingDeviceInfo first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        long deadline = first.getEnqueuedAt() + maxDelay;
+        while (batch.size() < settings.getBatchSize()) {
+          long wait = deadline - System.nanoTime();
+          if (running && wait > 0) {
+            // wait in short slices so stop() does not sit out the durability window
+            PendingDeviceInfo next = queue.poll(Math.min(wait, POLL_NANOS),
+                TimeUnit.NANOSECONDS);
+            if (next != null) {
+              batch.add(next);
+            }
+            continue;
+          }
+          PendingDeviceInfo next = queue.poll();
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+        flush(batch);
+        batch.clear();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void flush(List<PendingDeviceInfo> batch) {
+    Map<Long, List<ClientDeviceInfo>> clientDeviceInfos = new LinkedHashMap<>();
+    for (PendingDeviceInfo pending : batch) {
+      clientDeviceInfos.computeIfAbsent(pending.getClientId(), id -> new ArrayList<>())
+          .add(pending.getDeviceInfo());
+    }
+    long start = System.nanoTime();
+    try {
+      clientService.updateClientsDeviceInfos(clientDeviceInfos);
+      writtenCounter.increment(batch.size());
+    } catch (RuntimeException ex) {
+      log.warn("group commit of {} device infos failed, writing them client by client",
+          batch.size(), ex);
+      clientDeviceInfos.forEach(this::flushClient);
+    } finally {
+      long end = System.nanoTime();
+      capacity.release(batch.size());
+      batchSizeSummary.record(batch.size());
+      flushTimer.record(end - start, TimeUnit.NANOSECONDS);
+      lagTimer.record(end - batch.get(0).getEnqueuedAt(), TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private void flushClient(Long clientId, List<ClientDeviceInfo> deviceInfos) {
+    try {
+      clientService.updateClientsDeviceInfos(Collections.singletonMap(clientId, deviceInfos));
+      writtenCounter.increment(deviceInfos.size());
+    } catch (RuntimeException ex) {
+      failedCounter.increment(deviceInfos.size());
+      log.error("lost {} device infos of client {} from {} to {}", deviceInfos.size(), clientId,
+          deviceInfos.get(0).getTimestamp(), deviceInfos.get(deviceInfos.size() - 1).getTimestamp(),
+          ex);
+    }
+  }
+}
@@ -0,0 +1,332 @@
+package com.rokin.celltracker.service;
+
+import com.rokin.celltracker.MessageOutboxSettings;
+import com.rokin.celltracker.domain.Message;
+import com.rokin.celltracker.domain.Message.MessageScope;
+import com.rokin.celltracker.domain.Message.MessageType;
+import com.rokin.celltracker.repository.MessageRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * The message table is the outbox of push delivery. A message is saved due at once and the
+ * request returns; the outbox thread claims due messages in batches, hands them to the push
+ * service and marks the sent ones in one update. The next batch is only claimed once the previous
+ * one settled, so a backlog is fed to the push queue at the pace it is sent; a message the push
+ * queue rejects is handed back without using up an attempt and ends the poll. Broadcasts run for
+ * long and extend their own lease, so each is recorded when it finishes and is not part of the
+ * batch that claimed it. A claim moves the message's next attempt a lease into the future, so a
+ * message whose instance dies mid-delivery is claimed again once the lease runs out, and claiming
+ * locks rows with SKIP LOCKED so several instances share the outbox. A failed message is retried
+ * with exponential backoff until it runs out of attempts; help alerts are retried until they are
+ * sent.
+ */
+@Service
+@RequiredArgsConstructor
+public class MessageOutbox {
+
+  private static final int MAX_ERROR_LENGTH = 255;
+
+  private final MessageOutboxSettings settings;
+  private final MessageRepository messageRepo;
+  private final PushService pushService;
+  private final BroadcastService broadcastService;
+  private final ClientService clientService;
+  private final CircleMembershipIndex circleMembershipIndex;
+  private final PlatformTransactionManager transactionManager;
+  private final MeterRegistry meterRegistry;
+
+  private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+  private final AtomicBoolean pollQueued = new AtomicBoolean();
+  private TransactionTemplate transactionTemplate;
+  private ExecutorService poller;
+  private Counter claimedCounter;
+  private Counter deliveredCounter;
+  private Counter retriedCounter;
+  private Counter givenUpCounter;
+  private Counter rejectedCounter;
+
+  /**
+   * Start the outbox thread.
+   */
+  @PostConstruct
+  public void start() {
+    transactionTemplate = new TransactionTemplate(transactionManager);
+    poller = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("outbox-"));
+    claimedCounter = meterRegistry.counter("outbox.claimed");
+    deliveredCounter = meterRegistry.counter("outbox.delivered");
+    retriedCounter = meterRegistry.counter("outbox.retried");
+    givenUpCounter = meterRegistry.counter("outbox.givenup");
+    rejectedCounter = meterRegistry.counter("outbox.rejected");
+  }
+
+  /**
+   * Stop the outbox thread. Claimed messages not yet recorded are claimed again after the lease.
+   */
+  @PreDestroy
+  public void stop() throws InterruptedException {
+    poller.shutdown();
+    poller.awaitTermination(settings.getLeaseMs(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Save message as due now, it is delivered once the current transaction commits.
+   *
+   * @param message
+   *          message
+   * @return
+   */
+  public Message enqueue(Message message) {
+    message.setIsSent(false);
+    message.setAttempts(0);
+    message.setNextAttemptAt(System.currentTimeMillis());
+    message.setLastError(null);
+    message.setBroadcastCursor(null);
+    Message saved = messageRepo.save(message);
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.registerSynchronization(
+          new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+              wake();
+            }
+          });
+    } else {
+      wake();
+    }
+    return saved;
+  }
+
+  /**
+   * Pick up messages that became due, as a backstop for retries and other instances.
+   */
+  @Scheduled(fixedDelayString = "${push.outbox.poll-interval-ms:1000}")
+  public void wake() {
+    if (pollQueued.compareAndSet(false, true)) {
+      try {
+        poller.execute(this::poll);
+      } catch (RuntimeException ex) {
+        // shutting down
+        pollQueued.set(false);
+      }
+    }
+  }
+
+  private void poll() {
+    pollQueued.set(false);
+    try {
+      List<Message> batch;
+      boolean settled;
+      do {
+        batch = claim();
+        settled = batch.isEmpty() || deliver(batch);
+      } while (settled && batch.size() == settings.getBatchSize());
+    } catch (RuntimeException ex) {
+      log.error("polling the message outbox failed", ex);
+    }
+  }
+
+  private List<Message> claim() {
+    return transactionTemplate.execute(status -> {
+      long now = System.currentTimeMillis();
+      List<Message> due = messageRepo.findDue(now, PageRequest.of(0, settings.getBatchSize()));
+      if (!due.isEmpty()) {
+        long leaseUntil = now + settings.getLeaseMs();
+        messageRepo.claim(due.stream().map(Message::getId).collect(Collectors.toList()),
+            leaseUntil);
+        due.forEach(message -> {
+          message.setAttempts(message.getAttempts() + 1);
+          message.setNextAttemptAt(leaseUntil);
+        });
+        claimedCounter.increment(due.size());
+      }
+      return due;
+    });
+  }
+
+  /**
+   * Deliver a claimed batch and record the outcomes once it settled, waiting for that up to the
+   * lease. A batch still pending then is recorded by whichever thread settles it. Broadcasts are
+   * recorded one by one as they finish.
+   *
+   * @return whether the batch settled and nothing was rejected, so the next one may be claimed
+   */
+  private boolean deliver(List<Message> batch) {
+    Outcomes outcomes = new Outcomes();
+    List<CompletableFuture<Void>> deliveries = new ArrayList<>(batch.size());
+    for (Message message : batch) {
+      if (message.getMessageScope() == MessageScope.BROADCAST) {
+        Outcomes broadcast = new Outcomes();
+        send(message).whenComplete((delivered, ex) -> {
+          broadcast.add(message, ex);
+          record(broadcast);
+        });
+        continue;
+      }
+      deliveries.add(send(message).handle((delivered, ex) -> {
+        outcomes.add(message, ex);
+        return null;
+      }));
+    }
+    if (deliveries.isEmpty()) {
+      return true;
+    }
+    CompletableFuture<Void> settled = CompletableFuture
+        .allOf(deliveries.toArray(new CompletableFuture[0]));
+    try {
+      settled.get(settings.getLeaseMs(), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      settled.thenRun(() -> record(outcomes));
+      return false;
+    } catch (ExecutionException | TimeoutException ex) {
+      log.warn("outbox batch of {} messages not settled within the lease", batch.size());
+      settled.thenRun(() -> record(outcomes));
+      return false;
+    }
+    record(outcomes);
+    return outcomes.rejected.isEmpty();
+  }
+
+  private CompletableFuture<Message> send(Message message) {
+    try {
+      return message.getMessageScope() == MessageScope.BROADCAST
+          ? broadcastService.broadcast(message)
+          : pushService.sendMessage(message, recipients(message));
+    } catch (RuntimeException ex) {
+      CompletableFuture<Message> failed = new CompletableFuture<>();
+      failed.completeExceptionally(ex);
+      return failed;
+    }
+  }
+
+  private List<String> recipients(Message message) {
+    Long fromClientId = message.getFromClientId();
+    List<Long> clientIds;
+    if (message.getMessageScope() == MessageScope.UNICAST) {
+      clientIds = Collections.singletonList(message.getToClientId());
+    } else if (message.getMessageScope() == MessageScope.CIRCLE) {
+      clientIds = circleMembershipIndex.getMembers(message.getToCircleId()).stream()
+          .filter(id -> !id.equals(fromClientId)).collect(Collectors.toList());
+    } else {
+      clientIds = Collections.emptyList();
+    }
+    return clientService.getPushNotificationIds(clientIds);
+  }
+
+  private void record(Outcomes outcomes) {
+    List<Long> sent = new ArrayList<>(outcomes.sent);
+    List<Long> rejected = new ArrayList<>(outcomes.rejected);
+    try {
+      transactionTemplate.execute(status -> {
+        if (!sent.isEmpty()) {
+          messageRepo.markSent(sent);
+        }
+        outcomes.failed.forEach(this::markFailed);
+        if (!rejected.isEmpty()) {
+          messageRepo.release(rejected,
+              System.currentTimeMillis() + settings.getInitialBackoffMs());
+        }
+        return null;
+      });
+      deliveredCounter.increment(sent.size());
+      rejectedCounter.increment(rejected.size());
+    } catch (RuntimeException ex) {
+      log.error("recording outbox deliveries failed, {} messages will be sent again", sent.size(),
+          ex);
+    }
+  }
+
+  private void markFailed(Long id, Failure failure) {
+    int attempts = failure.attempts;
+    String error = String.valueOf(failure.cause);
+    if (error.length() > MAX_ERROR_LENGTH) {
+      error = error.substring(0, MAX_ERROR_LENGTH);
+    }
+    if (attempts >= settings.getMaxAttempts()
+        && !settings.getRetriedForeverTypes().contains(failure.type)) {
+      givenUpCounter.increment();
+      log.error("giving up message {} after {} attempts: {}", id, attempts, error);
+      messageRepo.markFailed(id, null, error);
+      return;
+    }
+    retriedCounter.increment();
+    messageRepo.markFailed(id, System.currentTimeMillis() + backoff(attempts), error);
+  }
+
+  /**
+   * Delay before the attempt following the given number of attempts: doubling from the initial
+   * backoff up to the max backoff, with the upper half jittered so retries spread out.
+   */
+  private long backoff(int attempts) {
+    long delay = settings.getInitialBackoffMs() << Math.min(attempts - 1, 30);
+    if (delay <= 0 || delay > settings.getMaxBackoffMs()) {
+      delay = settings.getMaxBackoffMs();
+    }
+    long half = Math.max(1, delay / 2);
+    return delay - half + ThreadLocalRandom.current().nextLong(half + 1);
+  }
+
+  /**
+   * Outcomes of delivered messages, added to by the threads completing them. Messages are kept by
+   * id, as hashing a detached message would touch its lazy associations.
+   */
+  private static class Outcomes {
+    private final Queue<Long> sent = new ConcurrentLinkedQueue<>();
+    private final Map<Long, Failure> failed = new ConcurrentHashMap<>();
+    // turned away by a full queue, not an attempt
+    private final Queue<Long> rejected = new ConcurrentLinkedQueue<>();
+
+    void add(Message message, Throwable ex) {
+      Throwable cause = ex instanceof CompletionException && ex.getCause() != null
+          ? ex.getCause() : ex;
+      if (cause == null) {
+        sent.add(message.getId());
+      } else if (cause instanceof RejectedExecutionException) {
+        rejected.add(message.getId());
+      } else {
+        failed.put(message.getId(),
+            new Failure(message.getAttempts(), message.getMeassgeType(), cause));
+      }
+    }
+  }
+
+  @RequiredArgsConstructor
+  private static class Failure {
+    private final int attempts;
+    private final MessageType type;
+    private final Throwable cause;
+  }
+}
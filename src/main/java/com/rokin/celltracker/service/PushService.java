@@ -1,80 +1,398 @@
 package com.rokin.celltracker.service;
 
-import com.rokin.celltracker.domain.ClientDeviceInfo;
+import com.rokin.celltracker.PushSettings;
 import com.rokin.celltracker.domain.Message;
-import com.rokin.celltracker.domain.Message.MessageType;
+import com.rokin.celltracker.dto.PushTokenUpdates;
 
 import de.bytefish.fcmjava.http.client.IFcmClient;
+import de.bytefish.fcmjava.model.enums.ErrorCodeEnum;
 import de.bytefish.fcmjava.model.options.FcmMessageOptions;
 import de.bytefish.fcmjava.requests.data.DataMulticastMessage;
 import de.bytefish.fcmjava.requests.data.DataUnicastMessage;
 import de.bytefish.fcmjava.requests.notification.NotificationPayload;
 import de.bytefish.fcmjava.responses.FcmMessageResponse;
 import de.bytefish.fcmjava.responses.FcmMessageResultItem;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CompletableFuture;
-
-import javax.annotation.Resource;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
 
+/**
+ * Sends push messages to FCM on a dedicated pool with a bounded queue, so blocking FCM calls
+ * never take threads from request handling or the common fork-join pool. A message that finds
+ * the queue full is rejected rather than run by the caller, one not sent within the send timeout
+ * of being queued is failed and its sender interrupted. Time spent queued, sending and in total
+ * is recorded per message.
+ *
+ * <p>Recipient lists over the FCM limit are split into chunks sent in parallel. Messages of the
+ * coalesced types wait for the coalesce window and go out together with the other messages to
+ * the same recipients in that window. Canonical and dead registration ids in the FCM results are
+ * published as {@link PushTokenUpdates} to be written back to the clients.
+ */
 @Service
+@RequiredArgsConstructor
 public class PushService {
 
-  @Resource
-  IFcmClient fcmClient;
+  private static final String TITLE = "Cell Tracker notification";
+  private static final String TAG = "CellTracker";
+  private static final Set<ErrorCodeEnum> DEAD_ID_ERRORS = EnumSet
+      .of(ErrorCodeEnum.NotRegistered, ErrorCodeEnum.InvalidRegistration);
+
+  private final IFcmClient fcmClient;
+  private final PushSettings settings;
+  private final MeterRegistry meterRegistry;
+  private final ApplicationEventPublisher eventPublisher;
 
   private final Logger log = LoggerFactory.getLogger(this.getClass());
 
+  // messages waiting for the coalesce window by sorted recipients; guarded by itself
+  private final Map<List<String>, List<PendingMessage>> coalescing = new HashMap<>();
+  private ThreadPoolExecutor sender;
+  private ScheduledThreadPoolExecutor deadlines;
+  private Counter sentCounter;
+  private Counter failedCounter;
+  private Counter rejectedCounter;
+  private Counter timedOutCounter;
+  private Counter coalescedCounter;
+  private Timer queueTimer;
+  private Timer sendTimer;
+  private Timer deliveryTimer;
+  private DistributionSummary flushRequestsSummary;
+  private DistributionSummary flushMessagesSummary;
+
+  private static class PendingMessage {
+    private final Message message;
+    private final Consumer<Message> onSent;
+    private final CompletableFuture<Message> delivery = new CompletableFuture<>();
+
+    PendingMessage(Message message, Consumer<Message> onSent) {
+      this.message = message;
+      this.onSent = onSent;
+    }
+  }
+
+  /**
+   * Start the push pool.
+   */
+  @PostConstruct
+  public void start() {
+    sender = new ThreadPoolExecutor(settings.getThreads(), settings.getThreads(), 0L,
+        TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(settings.getQueueCapacity()),
+        new CustomizableThreadFactory("push-"), new ThreadPoolExecutor.AbortPolicy());
+    deadlines = new ScheduledThreadPoolExecutor(1,
+        new CustomizableThreadFactory("push-deadline-"));
+    deadlines.setRemoveOnCancelPolicy(true);
+    meterRegistry.gauge("push.queue.depth", sender, executor -> executor.getQueue().size());
+    meterRegistry.gauge("push.active", sender, ThreadPoolExecutor::getActiveCount);
+    sentCounter = meterRegistry.counter("push.sent");
+    failedCounter = meterRegistry.counter("push.failed");
+    rejectedCounter = meterRegistry.counter("push.rejected");
+    timedOutCounter = meterRegistry.counter("push.timedout");
+    coalescedCounter = meterRegistry.counter("push.coalesced");
+    queueTimer = meterRegistry.timer("push.queue.wait");
+    sendTimer = meterRegistry.timer("push.send");
+    deliveryTimer = meterRegistry.timer("push.delivery");
+    flushRequestsSummary = meterRegistry.summary("push.flush.requests");
+    flushMessagesSummary = meterRegistry.summary("push.flush.messages");
+  }
+
+  /**
+   * Send coalescing messages right away and finish queued messages, then stop the push pool.
+   */
+  @PreDestroy
+  public void stop() throws InterruptedException {
+    deadlines.shutdownNow();
+    List<Map.Entry<List<String>, List<PendingMessage>>> waiting;
+    synchronized (coalescing) {
+      waiting = new ArrayList<>(coalescing.entrySet());
+      coalescing.clear();
+    }
+    waiting.forEach(batch -> dispatch(batch.getValue(), batch.getKey()));
+    sender.shutdown();
+    if (!sender.awaitTermination(settings.getShutdownTimeoutMs(), TimeUnit.MILLISECONDS)) {
+      log.error("push drain timed out, {} requests not sent", sender.shutdownNow().size());
+    }
+  }
+
   /**
    * Send Push Message.
-   * 
+   *
    * @param msg
    *          push message
    * @param registratiodIds
    *          reg ids of cleitn devices
    */
   public CompletableFuture<Message> sendMessage(Message msg, List<String> registratiodIds) {
-    return CompletableFuture.supplyAsync(() -> {
-      multicastMessage("Cell Tracker notification",
-          "Cell Tracker notification: " + msg.getMeassgeType(), "CellTracker", msg.getMeassgeType(),
-          msg.getMessage(), msg.getFromClientId(), msg.getDeviceInfo(), registratiodIds);
-      return msg;
+    return sendMessage(msg, registratiodIds, sent -> {
     });
   }
 
-  private void multicastMessage(String title, String body, String tag, MessageType meassgeType,
-      String message, Long msgSender, ClientDeviceInfo deviceInfo, List<String> registratiodIds) {
-    if (registratiodIds != null && !registratiodIds.isEmpty()) {
-      FcmMessageOptions options = FcmMessageOptions.builder().setTimeToLive(Duration.ofHours(1))
-          .build();
-      NotificationPayload payload = NotificationPayload.builder().setBody(body).setTitle(title)
-          .setTag(tag).build();
-      Map<String, Object> data = new HashMap<>();
-      data.put("messageType", meassgeType);
-      data.put("message", message);
-      data.put("fromClientId", msgSender);
-      data.put("deviceInfo", deviceInfo);
-      FcmMessageResponse response = null;
-      if (registratiodIds.size() > 1) {
-        DataMulticastMessage dmm = new DataMulticastMessage(options, registratiodIds, data,
-            payload);
-        response = this.fcmClient.send(dmm);
-      } else {
-        DataUnicastMessage dum = new DataUnicastMessage(options, registratiodIds.get(0), data,
-            payload);
-        response = this.fcmClient.send(dum);
+  /**
+   * Send push message on the push pool. The returned future fails with a
+   * {@link RejectedExecutionException} when the queue is full and with a
+   * {@link TimeoutException} when the message was not sent within the send timeout.
+   *
+   * @param msg
+   *          push message
+   * @param registratiodIds
+   *          reg ids of client devices
+   * @param onSent
+   *          run on the push thread once the message is sent to all recipients
+   * @return
+   */
+  public CompletableFuture<Message> sendMessage(Message msg, List<String> registratiodIds,
+      Consumer<Message> onSent) {
+    PendingMessage pending = new PendingMessage(msg, onSent);
+    List<String> recipients = registratiodIds != null
+        ? new ArrayList<>(new TreeSet<>(registratiodIds)) : new ArrayList<>();
+    if (recipients.isEmpty() || settings.getCoalesceWindowMs() <= 0
+        || !settings.getCoalescedTypes().contains(msg.getMeassgeType())) {
+      dispatch(Collections.singletonList(pending), recipients);
+    } else {
+      coalesce(pending, recipients);
+    }
+    return pending.delivery;
+  }
+
+  private void coalesce(PendingMessage pending, List<String> recipients) {
+    List<PendingMessage> full = null;
+    synchronized (coalescing) {
+      List<PendingMessage> batch = coalescing.get(recipients);
+      if (batch == null) {
+        List<PendingMessage> newBatch = new ArrayList<>();
+        coalescing.put(recipients, newBatch);
+        batch = newBatch;
+        try {
+          deadlines.schedule(() -> flushCoalesced(recipients, newBatch),
+              settings.getCoalesceWindowMs(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+          // shutting down, send right away
+          coalescing.remove(recipients);
+          full = batch;
+        }
       }
-      for (FcmMessageResultItem result : response.getResults()) {
-        if (result.getErrorCode() != null) {
-          log.error("Sending to {} failed. Error Code {}\n", result.getCanonicalRegistrationId(),
+      batch.add(pending);
+      if (full == null && batch.size() >= settings.getMaxCoalescedMessages()) {
+        coalescing.remove(recipients);
+        full = batch;
+      }
+    }
+    if (full != null) {
+      dispatch(full, recipients);
+    }
+  }
+
+  private void flushCoalesced(List<String> recipients, List<PendingMessage> batch) {
+    synchronized (coalescing) {
+      if (!coalescing.remove(recipients, batch)) {
+        // already sent because it filled up
+        return;
+      }
+    }
+    dispatch(batch, recipients);
+  }
+
+  /**
+   * Send messages to recipients, one request per chunk of recipients. The messages complete on
+   * the push thread that finishes the last chunk.
+   */
+  private void dispatch(List<PendingMessage> messages, List<String> recipients) {
+    List<List<String>> chunks = new ArrayList<>();
+    int chunkSize = Math.max(1, settings.getMaxRecipientsPerRequest());
+    for (int from = 0; from < recipients.size(); from += chunkSize) {
+      chunks.add(new ArrayList<>(
+          recipients.subList(from, Math.min(recipients.size(), from + chunkSize))));
+    }
+    if (chunks.isEmpty()) {
+      // nothing to send, still complete on a push thread
+      chunks.add(Collections.emptyList());
+    }
+    flushRequestsSummary.record(chunks.size());
+    flushMessagesSummary.record(messages.size());
+    if (messages.size() > 1) {
+      coalescedCounter.increment(messages.size());
+    }
+    log.debug("sending {} messages to {} recipients in {} requests", messages.size(),
+        recipients.size(), chunks.size());
+
+    long queuedAt = System.nanoTime();
+    AtomicInteger remaining = new AtomicInteger(chunks.size());
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    for (List<String> chunk : chunks) {
+      AtomicBoolean done = new AtomicBoolean();
+      Consumer<Throwable> chunkDone = ex -> {
+        if (done.compareAndSet(false, true)) {
+          if (ex != null) {
+            failure.compareAndSet(null, ex);
+          }
+          if (remaining.decrementAndGet() == 0) {
+            complete(messages, failure.get(), queuedAt);
+          }
+        }
+      };
+      Future<?> task;
+      try {
+        task = sender.submit(() -> sendChunk(messages, chunk, queuedAt, done, chunkDone));
+      } catch (RejectedExecutionException ex) {
+        rejectedCounter.increment();
+        log.warn("push queue full, {} messages not sent", messages.size());
+        chunkDone.accept(ex);
+        continue;
+      }
+      try {
+        deadlines.schedule(() -> {
+          if (!done.get()) {
+            timedOutCounter.increment();
+            chunkDone.accept(new TimeoutException(
+                "push not sent within " + settings.getSendTimeoutMs() + " ms"));
+            task.cancel(true);
+          }
+        }, settings.getSendTimeoutMs(), TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException ex) {
+        // shutting down, the drain timeout bounds the send instead
+      }
+    }
+  }
+
+  private void sendChunk(List<PendingMessage> messages, List<String> recipients, long queuedAt,
+      AtomicBoolean done, Consumer<Throwable> chunkDone) {
+    long startedAt = System.nanoTime();
+    queueTimer.record(startedAt - queuedAt, TimeUnit.NANOSECONDS);
+    if (done.get()) {
+      // timed out while queued
+      return;
+    }
+    try {
+      multicastMessage(messages, recipients);
+      sendTimer.record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+      chunkDone.accept(null);
+    } catch (RuntimeException ex) {
+      failedCounter.increment();
+      log.error("sending {} messages to {} recipients failed", messages.size(),
+          recipients.size(), ex);
+      chunkDone.accept(ex);
+    }
+  }
+
+  private void complete(List<PendingMessage> messages, Throwable failure, long queuedAt) {
+    for (PendingMessage pending : messages) {
+      if (failure != null) {
+        pending.delivery.completeExceptionally(failure);
+        continue;
+      }
+      try {
+        sentCounter.increment();
+        pending.onSent.accept(pending.message);
+        pending.delivery.complete(pending.message);
+      } catch (RuntimeException ex) {
+        log.error("completing message {} failed", pending.message.getId(), ex);
+        pending.delivery.completeExceptionally(ex);
+      }
+    }
+    deliveryTimer.record(System.nanoTime() - queuedAt, TimeUnit.NANOSECONDS);
+  }
+
+  private void multicastMessage(List<PendingMessage> messages, List<String> registratiodIds) {
+    if (registratiodIds.isEmpty()) {
+      return;
+    }
+    Map<String, Object> data;
+    String body;
+    if (messages.size() == 1) {
+      Message message = messages.get(0).message;
+      data = messageData(message);
+      body = TITLE + ": " + message.getMeassgeType();
+    } else {
+      List<Map<String, Object>> coalesced = new ArrayList<>(messages.size());
+      messages.forEach(pending -> coalesced.add(messageData(pending.message)));
+      data = new HashMap<>();
+      data.put("messages", coalesced);
+      body = TITLE + ": " + messages.size() + " messages";
+    }
+    FcmMessageOptions options = FcmMessageOptions.builder().setTimeToLive(Duration.ofHours(1))
+        .build();
+    NotificationPayload payload = NotificationPayload.builder().setBody(body).setTitle(TITLE)
+        .setTag(TAG).build();
+    FcmMessageResponse response = null;
+    if (registratiodIds.size() > 1) {
+      DataMulticastMessage dmm = new DataMulticastMessage(options, registratiodIds, data,
+          payload);
+      response = this.fcmClient.send(dmm);
+    } else {
+      DataUnicastMessage dum = new DataUnicastMessage(options, registratiodIds.get(0), data,
+          payload);
+      response = this.fcmClient.send(dum);
+    }
+    publishTokenUpdates(registratiodIds, response.getResults());
+  }
+
+  /**
+   * Map results back to the registration ids they were sent to, FCM returns them in request
+   * order.
+   */
+  private void publishTokenUpdates(List<String> registratiodIds,
+      List<FcmMessageResultItem> results) {
+    if (results == null) {
+      return;
+    }
+    Map<String, String> canonicalIds = new HashMap<>();
+    Set<String> deadIds = new HashSet<>();
+    for (int i = 0; i < results.size() && i < registratiodIds.size(); i++) {
+      FcmMessageResultItem result = results.get(i);
+      String registrationId = registratiodIds.get(i);
+      if (result.getErrorCode() != null) {
+        if (DEAD_ID_ERRORS.contains(result.getErrorCode())) {
+          deadIds.add(registrationId);
+        } else {
+          log.error("Sending to {} failed. Error Code {}\n", registrationId,
               result.getErrorCode());
         }
+      } else if (result.getCanonicalRegistrationId() != null
+          && !result.getCanonicalRegistrationId().equals(registrationId)) {
+        canonicalIds.put(registrationId, result.getCanonicalRegistrationId());
       }
     }
+    if (!canonicalIds.isEmpty() || !deadIds.isEmpty()) {
+      eventPublisher.publishEvent(new PushTokenUpdates(canonicalIds, deadIds));
+    }
+  }
+
+  private Map<String, Object> messageData(Message message) {
+    Map<String, Object> data = new HashMap<>();
+    data.put("messageType", message.getMeassgeType());
+    data.put("message", message.getMessage());
+    data.put("fromClientId", message.getFromClientId());
+    data.put("deviceInfo", message.getDeviceInfo());
+    return data;
   }
 }
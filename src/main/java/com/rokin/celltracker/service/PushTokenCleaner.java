@@ -0,0 +1,110 @@
+package com.rokin.celltracker.service;
+
+import com.rokin.celltracker.dto.PushTokenUpdates;
+import com.rokin.celltracker.repository.ClientRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Writes registration ids reported back by FCM to the client table. Reports only collect the ids
+ * here; they are written periodically in one transaction, dead ids cleared with a single update
+ * and canonical ids swapped in with one JDBC batch, so later fan-outs neither pay for dead
+ * devices nor reach a device twice.
+ */
+@Service
+@RequiredArgsConstructor
+public class PushTokenCleaner {
+
+  private final ClientRepository clientRepo;
+  private final JdbcTemplate jdbcTemplate;
+  private final TransactionTemplate transactionTemplate;
+  private final VersionCounters versionCounters;
+  private final MeterRegistry meterRegistry;
+
+  private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+  private final Map<String, String> canonicalIds = new ConcurrentHashMap<>();
+  private final Set<String> deadIds = ConcurrentHashMap.newKeySet();
+  private Counter canonicalCounter;
+  private Counter deadCounter;
+
+  /**
+   * Register the meters.
+   */
+  @PostConstruct
+  public void start() {
+    canonicalCounter = meterRegistry.counter("push.tokens.canonical");
+    deadCounter = meterRegistry.counter("push.tokens.dead");
+  }
+
+  /**
+   * Collect registration ids reported back by FCM.
+   *
+   * @param updates
+   *          canonical and dead ids of one request
+   */
+  @EventListener
+  public void onPushTokenUpdates(PushTokenUpdates updates) {
+    canonicalIds.putAll(updates.getCanonicalIds());
+    deadIds.addAll(updates.getDeadIds());
+  }
+
+  /**
+   * Write collected registration ids back to the client table.
+   */
+  @Scheduled(fixedDelayString = "${push.token-flush-interval-ms:5000}")
+  @PreDestroy
+  public void flush() {
+    if (canonicalIds.isEmpty() && deadIds.isEmpty()) {
+      return;
+    }
+    Set<String> dead = new HashSet<>(deadIds);
+    deadIds.removeAll(dead);
+    List<Object[]> swaps = new ArrayList<>();
+    for (String registrationId : new ArrayList<>(canonicalIds.keySet())) {
+      String canonicalId = canonicalIds.remove(registrationId);
+      if (canonicalId != null && !dead.contains(registrationId)) {
+        swaps.add(new Object[] {canonicalId, registrationId});
+      }
+    }
+    Set<String> changed = new HashSet<>(dead);
+    swaps.forEach(swap -> changed.add((String) swap[1]));
+    try {
+      transactionTemplate.execute(status -> {
+        clientRepo.findIdsByPushNotificationIdIn(changed).forEach(versionCounters::clientChanged);
+        if (!dead.isEmpty()) {
+          clientRepo.clearPushNotificationIds(dead);
+        }
+        if (!swaps.isEmpty()) {
+          jdbcTemplate.batchUpdate(
+              "update client set push_notification_id = ? where push_notification_id = ?", swaps);
+        }
+        return null;
+      });
+      deadCounter.increment(dead.size());
+      canonicalCounter.increment(swaps.size());
+      log.debug("cleared {} dead and replaced {} canonical registration ids", dead.size(),
+          swaps.size());
+    } catch (RuntimeException ex) {
+      deadIds.addAll(dead);
+      swaps.forEach(swap -> canonicalIds.putIfAbsent((String) swap[1], (String) swap[0]));
+      log.error("writing back {} registration ids failed", changed.size(), ex);
+    }
+  }
+}
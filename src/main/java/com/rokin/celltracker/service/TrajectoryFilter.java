@@ -0,0 +1,149 @@
+package com.rokin.celltracker.service;
+
+import com.rokin.celltracker.GeoUtil;
+import com.rokin.celltracker.TrajectoryFilterSettings;
+import com.rokin.celltracker.TrajectoryFilterSettings.Mode;
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+
+/**
+ * Ingest-time filter that drops redundant fixes before they are stored. Decisions are made
+ * online against the last kept fixes of each client, so history stays within the configured
+ * tolerance of the dropped fixes when kept fixes are joined by straight lines.
+ */
+@Service
+@RequiredArgsConstructor
+public class TrajectoryFilter {
+
+  private final TrajectoryFilterSettings settings;
+  private final MeterRegistry meterRegistry;
+
+  private final Map<Long, Track> tracks = new ConcurrentHashMap<>();
+  private Counter keptCounter;
+  private Counter droppedAccuracyCounter;
+  private Counter droppedDistanceCounter;
+  private Counter droppedPredictedCounter;
+
+  private static class Track {
+    private ClientDeviceInfo previous;
+    private ClientDeviceInfo last;
+  }
+
+  /**
+   * Register kept/dropped counters.
+   */
+  @PostConstruct
+  public void init() {
+    keptCounter = meterRegistry.counter("location.filter.kept");
+    droppedAccuracyCounter = meterRegistry.counter("location.filter.dropped", "reason",
+        "accuracy");
+    droppedDistanceCounter = meterRegistry.counter("location.filter.dropped", "reason",
+        "distance");
+    droppedPredictedCounter = meterRegistry.counter("location.filter.dropped", "reason",
+        "predicted");
+  }
+
+  /**
+   * Filter fixes of one client.
+   *
+   * @param clientId
+   *          client id
+   * @param clientDeviceInfos
+   *          fixes with timestamps set
+   * @return kept fixes ordered by timestamp
+   */
+  public List<ClientDeviceInfo> filter(Long clientId, List<ClientDeviceInfo> clientDeviceInfos) {
+    List<ClientDeviceInfo> sorted = new ArrayList<>(clientDeviceInfos);
+    sorted.sort(Comparator.comparing(ClientDeviceInfo::getTimestamp));
+    if (settings.getMode() == Mode.NONE) {
+      return sorted;
+    }
+    List<ClientDeviceInfo> kept = new ArrayList<>(sorted.size());
+    for (ClientDeviceInfo clientDeviceInfo : sorted) {
+      if (accept(clientId, clientDeviceInfo)) {
+        kept.add(clientDeviceInfo);
+      }
+    }
+    return kept;
+  }
+
+  /**
+   * Decide whether a fix should be stored.
+   *
+   * @param clientId
+   *          client id
+   * @param clientDeviceInfo
+   *          fix with timestamp set
+   * @return
+   */
+  public boolean accept(Long clientId, ClientDeviceInfo clientDeviceInfo) {
+    if (settings.getMode() == Mode.NONE) {
+      return true;
+    }
+    Track track = tracks.computeIfAbsent(clientId, id -> new Track());
+    synchronized (track) {
+      ClientDeviceInfo last = track.last;
+      if (last == null || clientDeviceInfo.getLat() == null || clientDeviceInfo.getLon() == null
+          || clientDeviceInfo.getTimestamp() - last.getTimestamp() >= settings.getMaxIntervalMs()) {
+        return keep(track, clientDeviceInfo);
+      }
+      if (clientDeviceInfo.getTimestamp() <= last.getTimestamp()) {
+        // late fix from a replayed batch, keep it without moving the track
+        keptCounter.increment();
+        return true;
+      }
+      double accuracy = clientDeviceInfo.getAccuracy() == null ? 0
+          : clientDeviceInfo.getAccuracy();
+      if (accuracy > settings.getMaxAccuracyMeters()) {
+        droppedAccuracyCounter.increment();
+        return false;
+      }
+      double moved = GeoUtil.distance(last.getLat(), last.getLon(), clientDeviceInfo.getLat(),
+          clientDeviceInfo.getLon());
+      if (moved < Math.max(settings.getMinDistanceMeters(), accuracy)) {
+        droppedDistanceCounter.increment();
+        return false;
+      }
+      if (settings.getMode() == Mode.DEAD_RECKONING && isPredicted(track, clientDeviceInfo)) {
+        droppedPredictedCounter.increment();
+        return false;
+      }
+      return keep(track, clientDeviceInfo);
+    }
+  }
+
+  private boolean keep(Track track, ClientDeviceInfo clientDeviceInfo) {
+    if (clientDeviceInfo.getLat() != null && clientDeviceInfo.getLon() != null) {
+      track.previous = track.last;
+      track.last = clientDeviceInfo;
+    }
+    keptCounter.increment();
+    return true;
+  }
+
+  private boolean isPredicted(Track track, ClientDeviceInfo clientDeviceInfo) {
+    ClientDeviceInfo previous = track.previous;
+    ClientDeviceInfo last = track.last;
+    if (previous == null) {
+      return false;
+    }
+    long span = last.getTimestamp() - previous.getTimestamp();
+    if (span <= 0) {
+      return false;
+    }
+    double ratio = (double) (clientDeviceInfo.getTimestamp() - last.getTimestamp()) / span;
+    double lat = last.getLat() + (last.getLat() - previous.getLat()) * ratio;
+    double lon = last.getLon() + (last.getLon() - previous.getLon()) * ratio;
+    return GeoUtil.distance(lat, lon, clientDeviceInfo.getLat(),
+        clientDeviceInfo.getLon()) < settings.getToleranceMeters();
+  }
+}
@@ -0,0 +1,77 @@
+package com.rokin.celltracker.service;
+
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * In-memory versions of clients and circles for conditional requests. A change takes the next
+ * value of one shared sequence once its transaction commits, so a version read before the change
+ * is visible never matches one read after it. Versions start over on restart; the random epoch
+ * keeps tags from a previous run from matching.
+ *
+ * <p>
+ * Versions are only bumped by changes made on this node. Like the membership index and the latest
+ * location store, this assumes a single application node: behind a load balancer another node
+ * would not see the change and could answer a stale 304 for the old tag.
+ */
+@Service
+public class VersionCounters {
+
+  private final long epoch = new SecureRandom().nextLong();
+  private final AtomicLong sequence = new AtomicLong();
+  private final Map<Long, Long> clientVersions = new ConcurrentHashMap<>();
+  private final Map<String, Long> circleVersions = new ConcurrentHashMap<>();
+
+  public long getEpoch() {
+    return epoch;
+  }
+
+  public long getClientVersion(Long clientId) {
+    return clientVersions.getOrDefault(clientId, 0L);
+  }
+
+  public long getCircleVersion(String circleId) {
+    return circleVersions.getOrDefault(circleId, 0L);
+  }
+
+  /**
+   * Record that a client, its latest location or its favorite places changed, effective when the
+   * current transaction commits.
+   *
+   * @param clientId
+   *          client id
+   */
+  public void clientChanged(Long clientId) {
+    afterCommit(() -> clientVersions.put(clientId, sequence.incrementAndGet()));
+  }
+
+  /**
+   * Record that a circle or its membership changed, effective when the current transaction
+   * commits.
+   *
+   * @param circleId
+   *          circle id
+   */
+  public void circleChanged(String circleId) {
+    afterCommit(() -> circleVersions.put(circleId, sequence.incrementAndGet()));
+  }
+
+  private void afterCommit(Runnable change) {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      change.run();
+      return;
+    }
+    TransactionSynchronizationManager.registerSynchronization(
+        new TransactionSynchronizationAdapter() {
+          @Override
+          public void afterCommit() {
+            change.run();
+          }
+        });
+  }
+}
@@ -0,0 +1,44 @@
+package com.rokin.celltracker.store;
+
+import com.rokin.celltracker.domain.Client;
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import com.rokin.celltracker.repository.ClientDeviceInfoRepository;
+import com.rokin.celltracker.repository.ClientRepository;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Base of location stores that keep fixes outside the device info table. A fix only gets a row
+ * there when an entity has to refer to it: every client reuses one row for its latest device
+ * info, and every message gets a row of its own.
+ */
+@RequiredArgsConstructor
+public abstract class AbstractPinningLocationStore implements LocationStore {
+
+  private final ClientDeviceInfoRepository clientDeviceInfoRepo;
+  private final ClientRepository clientRepo;
+
+  private final Map<Long, Long> latestRowIds = new ConcurrentHashMap<>();
+
+  @Override
+  public ClientDeviceInfo pin(ClientDeviceInfo deviceInfo) {
+    if (deviceInfo == null) {
+      return null;
+    }
+    return clientDeviceInfoRepo.save(deviceInfo.toBuilder().id(null).build());
+  }
+
+  @Override
+  public ClientDeviceInfo pinLatest(Client client, ClientDeviceInfo deviceInfo) {
+    if (deviceInfo == null) {
+      return null;
+    }
+    Long rowId = latestRowIds.computeIfAbsent(client.getId(),
+        id -> clientRepo.findUnsharedLatestDeviceInfoId(id).orElse(null));
+    ClientDeviceInfo row = clientDeviceInfoRepo
+        .save(deviceInfo.toBuilder().id(rowId).client(client).build());
+    latestRowIds.put(client.getId(), row.getId());
+    return row;
+  }
+}
@@ -0,0 +1,74 @@
+package com.rokin.celltracker.store;
+
+import com.rokin.celltracker.domain.Client;
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import com.rokin.celltracker.repository.ClientDeviceInfoRepository;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import javax.persistence.EntityManager;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+/**
+ * Location store on the device info table, the default. Fixes are rows already, so they are
+ * referenced as they are, and archiving and partitioning apply to them. Scans need a surrounding
+ * transaction.
+ */
+@Component
+@ConditionalOnProperty(name = "location.store.type", havingValue = "jpa", matchIfMissing = true)
+@RequiredArgsConstructor
+public class JpaLocationStore implements LocationStore {
+
+  private final ClientDeviceInfoRepository clientDeviceInfoRepo;
+  private final EntityManager entityManager;
+
+  @Override
+  public List<ClientDeviceInfo> append(Client client, List<ClientDeviceInfo> deviceInfos) {
+    for (ClientDeviceInfo deviceInfo : deviceInfos) {
+      deviceInfo.setClient(client);
+    }
+    List<ClientDeviceInfo> stored = new ArrayList<>(deviceInfos.size());
+    clientDeviceInfoRepo.saveAll(deviceInfos).forEach(stored::add);
+    return stored;
+  }
+
+  @Override
+  public void scan(Long clientId, Long afterTimestamp, Long afterId, Long toTime, int limit,
+      Predicate<ClientDeviceInfo> sink) {
+    if (limit < Integer.MAX_VALUE) {
+      for (ClientDeviceInfo deviceInfo : clientDeviceInfoRepo.findHistoryAfter(clientId,
+          afterTimestamp, afterId, toTime, PageRequest.of(0, limit))) {
+        if (!sink.test(deviceInfo)) {
+          return;
+        }
+      }
+      return;
+    }
+    try (Stream<ClientDeviceInfo> history = clientDeviceInfoRepo.streamHistoryAfter(clientId,
+        afterTimestamp, afterId, toTime)) {
+      Iterator<ClientDeviceInfo> deviceInfos = history.iterator();
+      while (deviceInfos.hasNext()) {
+        ClientDeviceInfo deviceInfo = deviceInfos.next();
+        entityManager.detach(deviceInfo);
+        if (!sink.test(deviceInfo)) {
+          return;
+        }
+      }
+    }
+  }
+
+  @Override
+  public ClientDeviceInfo pin(ClientDeviceInfo deviceInfo) {
+    return deviceInfo;
+  }
+
+  @Override
+  public ClientDeviceInfo pinLatest(Client client, ClientDeviceInfo deviceInfo) {
+    return deviceInfo;
+  }
+}
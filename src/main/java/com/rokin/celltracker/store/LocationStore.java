@@ -0,0 +1,71 @@
+package com.rokin.celltracker.store;
+
+import com.rokin.celltracker.domain.Client;
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Storage of location fixes. Ingest appends through it and history reads scan it, so the
+ * backend can be switched with {@code location.store.type} without touching either path.
+ */
+public interface LocationStore {
+
+  /**
+   * Order fixes are scanned in.
+   */
+  Comparator<ClientDeviceInfo> ORDER = Comparator.comparing(ClientDeviceInfo::getTimestamp)
+      .thenComparing(ClientDeviceInfo::getId, Comparator.nullsFirst(Comparator.naturalOrder()));
+
+  /**
+   * Append fixes of a client.
+   *
+   * @param client
+   *          client
+   * @param deviceInfos
+   *          fixes with timestamps set
+   * @return stored fixes with ids assigned, in the given order
+   */
+  List<ClientDeviceInfo> append(Client client, List<ClientDeviceInfo> deviceInfos);
+
+  /**
+   * Hand fixes of a client positioned after (timestamp, id) to a sink in {@link #ORDER}, until
+   * the sink returns false, the limit is reached or the time range ends.
+   *
+   * @param clientId
+   *          client id
+   * @param afterTimestamp
+   *          timestamp of the position, fixes at it are handed when their id is larger
+   * @param afterId
+   *          id of the position, {@link Long#MIN_VALUE} to include the whole timestamp
+   * @param toTime
+   *          to time, inclusive
+   * @param limit
+   *          max number of fixes, {@link Integer#MAX_VALUE} for no limit
+   * @param sink
+   *          receives fixes, returns false to stop
+   */
+  void scan(Long clientId, Long afterTimestamp, Long afterId, Long toTime, int limit,
+      Predicate<ClientDeviceInfo> sink);
+
+  /**
+   * Get a device info row for a stored fix that an entity other than the client refers to.
+   *
+   * @param deviceInfo
+   *          stored fix
+   * @return
+   */
+  ClientDeviceInfo pin(ClientDeviceInfo deviceInfo);
+
+  /**
+   * Get a device info row for a stored fix to become the latest device info of a client.
+   *
+   * @param client
+   *          client
+   * @param deviceInfo
+   *          stored fix
+   * @return
+   */
+  ClientDeviceInfo pinLatest(Client client, ClientDeviceInfo deviceInfo);
+}
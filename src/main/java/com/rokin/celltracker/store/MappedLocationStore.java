@@ -0,0 +1,340 @@
+package com.rokin.celltracker.store;
+
+import com.rokin.celltracker.LocationStoreSettings;
+import com.rokin.celltracker.domain.Client;
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import com.rokin.celltracker.repository.ClientDeviceInfoRepository;
+import com.rokin.celltracker.repository.ClientRepository;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Location store on append-only memory-mapped segment files. Every fix is a fixed size record
+ * appended in arrival order; a per-client index of (timestamp, id, record position) is kept
+ * sorted in memory for range scans and rebuilt from the segments on start. Appends land in the
+ * page cache, so they survive a crash of the process but not of the host unless
+ * {@code force-on-append} is set.
+ */
+@Component
+@ConditionalOnProperty(name = "location.store.type", havingValue = "mmap")
+public class MappedLocationStore extends AbstractPinningLocationStore {
+
+  static final int RECORD_SIZE = 80;
+  private static final int MASK_OFFSET = 78;
+
+  private static final String PROVIDERS_FILE = "providers.txt";
+  private static final String SEGMENT_PATTERN = "segment-\\d{6}\\.dat";
+  private static final int SCAN_CHUNK = 256;
+
+  private static final int HAS_LAT = 1;
+  private static final int HAS_LON = 1 << 1;
+  private static final int HAS_ALTITUDE = 1 << 2;
+  private static final int HAS_ACCURACY = 1 << 3;
+  private static final int HAS_SPEED = 1 << 4;
+  private static final int HAS_BEARING = 1 << 5;
+  private static final int HAS_BATTERY = 1 << 6;
+  private static final int WRITTEN = 1 << 15;
+
+  private final LocationStoreSettings settings;
+
+  private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
+  private final Map<Long, ClientIndex> indexes = new ConcurrentHashMap<>();
+  private final List<String> providers = new CopyOnWriteArrayList<>();
+  private final Map<String, Integer> providerIds = new HashMap<>();
+  private Path directory;
+  private int writeRecord;
+  private long nextId = 1;
+
+  public MappedLocationStore(LocationStoreSettings settings,
+      ClientDeviceInfoRepository clientDeviceInfoRepo, ClientRepository clientRepo) {
+    super(clientDeviceInfoRepo, clientRepo);
+    this.settings = settings;
+  }
+
+  /**
+   * Map the segment files and rebuild the client indexes from them.
+   *
+   * @throws IOException
+   *           when the directory cannot be read or a segment cannot be mapped
+   */
+  @PostConstruct
+  public synchronized void open() throws IOException {
+    directory = Paths.get(settings.getMmap().getDirectory());
+    Files.createDirectories(directory);
+    Path providerFile = directory.resolve(PROVIDERS_FILE);
+    if (Files.exists(providerFile)) {
+      for (String provider : Files.readAllLines(providerFile, StandardCharsets.UTF_8)) {
+        providerIds.put(provider, providers.size());
+        providers.add(provider);
+      }
+    }
+    List<Path> files;
+    try (Stream<Path> list = Files.list(directory)) {
+      files = list.filter(file -> file.getFileName().toString().matches(SEGMENT_PATTERN))
+          .sorted().collect(Collectors.toList());
+    }
+    for (Path file : files) {
+      segments.add(map(file));
+    }
+    if (segments.isEmpty()) {
+      segments.add(map(segmentFile(0)));
+    }
+    for (int segment = 0; segment < segments.size(); segment++) {
+      MappedByteBuffer buffer = segments.get(segment);
+      int record = 0;
+      while (record < buffer.capacity() / RECORD_SIZE
+          && (buffer.getShort(record * RECORD_SIZE + MASK_OFFSET) & WRITTEN) != 0) {
+        int offset = record * RECORD_SIZE;
+        long id = buffer.getLong(offset + 8);
+        indexes.computeIfAbsent(buffer.getLong(offset), clientId -> new ClientIndex())
+            .add(buffer.getLong(offset + 16), id, position(segment, record));
+        nextId = Math.max(nextId, id + 1);
+        record++;
+      }
+      writeRecord = record;
+    }
+  }
+
+  /**
+   * Force the segments to disk.
+   */
+  @PreDestroy
+  public synchronized void close() {
+    for (MappedByteBuffer segment : segments) {
+      segment.force();
+    }
+  }
+
+  @Override
+  public synchronized List<ClientDeviceInfo> append(Client client,
+      List<ClientDeviceInfo> deviceInfos) {
+    ClientIndex index = indexes.computeIfAbsent(client.getId(), clientId -> new ClientIndex());
+    int firstSegment = segments.size() - 1;
+    List<ClientDeviceInfo> stored = new ArrayList<>(deviceInfos.size());
+    for (ClientDeviceInfo deviceInfo : deviceInfos) {
+      MappedByteBuffer buffer = segments.get(segments.size() - 1);
+      if (writeRecord == buffer.capacity() / RECORD_SIZE) {
+        buffer = map(segmentFile(segments.size()));
+        segments.add(buffer);
+        writeRecord = 0;
+      }
+      ClientDeviceInfo fix = deviceInfo.toBuilder().id(nextId++).client(null).build();
+      write(buffer, writeRecord * RECORD_SIZE, client.getId(), fix);
+      index.add(fix.getTimestamp(), fix.getId(), position(segments.size() - 1, writeRecord));
+      writeRecord++;
+      stored.add(fix);
+    }
+    if (settings.getMmap().isForceOnAppend()) {
+      for (int segment = firstSegment; segment < segments.size(); segment++) {
+        segments.get(segment).force();
+      }
+    }
+    return stored;
+  }
+
+  @Override
+  public void scan(Long clientId, Long afterTimestamp, Long afterId, Long toTime, int limit,
+      Predicate<ClientDeviceInfo> sink) {
+    ClientIndex index = indexes.get(clientId);
+    if (index == null) {
+      return;
+    }
+    long[] positions = new long[Math.min(SCAN_CHUNK, limit)];
+    long timestamp = afterTimestamp;
+    long id = afterId;
+    int remaining = limit;
+    while (remaining > 0) {
+      int count = index.next(timestamp, id, toTime, positions, Math.min(positions.length,
+          remaining));
+      if (count == 0) {
+        return;
+      }
+      for (int i = 0; i < count; i++) {
+        ClientDeviceInfo fix = read(positions[i]);
+        if (!sink.test(fix)) {
+          return;
+        }
+        timestamp = fix.getTimestamp();
+        id = fix.getId();
+      }
+      remaining -= count;
+    }
+  }
+
+  private void write(ByteBuffer buffer, int offset, Long clientId, ClientDeviceInfo fix) {
+    buffer.putLong(offset, clientId);
+    buffer.putLong(offset + 8, fix.getId());
+    buffer.putLong(offset + 16, fix.getTimestamp());
+    int mask = WRITTEN
+        | putDouble(buffer, offset + 24, fix.getLat(), HAS_LAT)
+        | putDouble(buffer, offset + 32, fix.getLon(), HAS_LON)
+        | putDouble(buffer, offset + 40, fix.getAltitude(), HAS_ALTITUDE)
+        | putDouble(buffer, offset + 48, fix.getAccuracy(), HAS_ACCURACY)
+        | putDouble(buffer, offset + 56, fix.getSpeed(), HAS_SPEED)
+        | putDouble(buffer, offset + 64, fix.getBearing(), HAS_BEARING);
+    if (fix.getBattery() != null) {
+      buffer.putInt(offset + 72, fix.getBattery());
+      mask |= HAS_BATTERY;
+    }
+    buffer.putShort(offset + 76, (short) providerId(fix.getProvider()));
+    // the mask goes last, a record without the written bit is ignored on recovery
+    buffer.putShort(offset + MASK_OFFSET, (short) mask);
+  }
+
+  private ClientDeviceInfo read(long position) {
+    ByteBuffer buffer = segments.get((int) (position >>> 32));
+    int offset = (int) position * RECORD_SIZE;
+    int mask = buffer.getShort(offset + MASK_OFFSET);
+    ClientDeviceInfo fix = new ClientDeviceInfo();
+    fix.setId(buffer.getLong(offset + 8));
+    fix.setTimestamp(buffer.getLong(offset + 16));
+    fix.setLat(getDouble(buffer, offset + 24, mask, HAS_LAT));
+    fix.setLon(getDouble(buffer, offset + 32, mask, HAS_LON));
+    fix.setAltitude(getDouble(buffer, offset + 40, mask, HAS_ALTITUDE));
+    fix.setAccuracy(getDouble(buffer, offset + 48, mask, HAS_ACCURACY));
+    fix.setSpeed(getDouble(buffer, offset + 56, mask, HAS_SPEED));
+    fix.setBearing(getDouble(buffer, offset + 64, mask, HAS_BEARING));
+    if ((mask & HAS_BATTERY) != 0) {
+      fix.setBattery(buffer.getInt(offset + 72));
+    }
+    int provider = buffer.getShort(offset + 76);
+    if (provider >= 0) {
+      fix.setProvider(providers.get(provider));
+    }
+    return fix;
+  }
+
+  private int providerId(String provider) {
+    if (provider == null) {
+      return -1;
+    }
+    Integer providerId = providerIds.get(provider);
+    if (providerId == null) {
+      if (providers.size() >= Short.MAX_VALUE || provider.contains("\n")) {
+        return -1;
+      }
+      try {
+        Files.write(directory.resolve(PROVIDERS_FILE), Collections.singletonList(provider),
+            StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+      providerId = providers.size();
+      providerIds.put(provider, providerId);
+      providers.add(provider);
+    }
+    return providerId;
+  }
+
+  private MappedByteBuffer map(Path file) {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      long size = channel.size() > 0 ? channel.size() : settings.getMmap().getSegmentSize();
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0,
+          Math.max(RECORD_SIZE, size / RECORD_SIZE * RECORD_SIZE));
+    } catch (IOException ex) {
+      throw new UncheckedIOException("cannot map location segment " + file, ex);
+    }
+  }
+
+  private Path segmentFile(int segment) {
+    return directory.resolve(String.format("segment-%06d.dat", segment));
+  }
+
+  private static long position(int segment, int record) {
+    return (long) segment << 32 | record;
+  }
+
+  private static int putDouble(ByteBuffer buffer, int offset, Double value, int flag) {
+    if (value == null) {
+      return 0;
+    }
+    buffer.putDouble(offset, value);
+    return flag;
+  }
+
+  private static Double getDouble(ByteBuffer buffer, int offset, int mask, int flag) {
+    return (mask & flag) != 0 ? buffer.getDouble(offset) : null;
+  }
+
+  /**
+   * Record positions of one client sorted on (timestamp, id). Fixes mostly arrive in order, so
+   * an append is usually a write at the end; a late fix is inserted in place.
+   */
+  private static class ClientIndex {
+    private long[] timestamps = new long[16];
+    private long[] ids = new long[16];
+    private long[] positions = new long[16];
+    private int size;
+
+    synchronized void add(long timestamp, long id, long position) {
+      if (size == timestamps.length) {
+        timestamps = Arrays.copyOf(timestamps, size * 2);
+        ids = Arrays.copyOf(ids, size * 2);
+        positions = Arrays.copyOf(positions, size * 2);
+      }
+      int i = size;
+      if (size > 0 && compare(timestamp, id, size - 1) < 0) {
+        i = search(timestamp, id);
+        System.arraycopy(timestamps, i, timestamps, i + 1, size - i);
+        System.arraycopy(ids, i, ids, i + 1, size - i);
+        System.arraycopy(positions, i, positions, i + 1, size - i);
+      }
+      timestamps[i] = timestamp;
+      ids[i] = id;
+      positions[i] = position;
+      size++;
+    }
+
+    synchronized int next(long afterTimestamp, long afterId, long toTime, long[] out, int max) {
+      int i = search(afterTimestamp, afterId);
+      int count = 0;
+      while (i < size && count < max && timestamps[i] <= toTime) {
+        out[count++] = positions[i++];
+      }
+      return count;
+    }
+
+    private int search(long timestamp, long id) {
+      int low = 0;
+      int high = size;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (compare(timestamp, id, mid) < 0) {
+          high = mid;
+        } else {
+          low = mid + 1;
+        }
+      }
+      return low;
+    }
+
+    private int compare(long timestamp, long id, int i) {
+      int result = Long.compare(timestamp, timestamps[i]);
+      return result != 0 ? result : Long.compare(id, ids[i]);
+    }
+  }
+}
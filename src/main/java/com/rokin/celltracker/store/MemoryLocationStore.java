@@ -0,0 +1,64 @@
+package com.rokin.celltracker.store;
+
+import com.rokin.celltracker.domain.Client;
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import com.rokin.celltracker.repository.ClientDeviceInfoRepository;
+import com.rokin.celltracker.repository.ClientRepository;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Location store on the heap, for tests and benchmarks. Fixes of a client are kept in a skip
+ * list sorted on (timestamp, id); nothing survives a restart.
+ */
+@Component
+@ConditionalOnProperty(name = "location.store.type", havingValue = "memory")
+public class MemoryLocationStore extends AbstractPinningLocationStore {
+
+  private final Map<Long, NavigableSet<ClientDeviceInfo>> tracks = new ConcurrentHashMap<>();
+  private final AtomicLong ids = new AtomicLong();
+
+  public MemoryLocationStore(ClientDeviceInfoRepository clientDeviceInfoRepo,
+      ClientRepository clientRepo) {
+    super(clientDeviceInfoRepo, clientRepo);
+  }
+
+  @Override
+  public List<ClientDeviceInfo> append(Client client, List<ClientDeviceInfo> deviceInfos) {
+    NavigableSet<ClientDeviceInfo> track = tracks.computeIfAbsent(client.getId(),
+        id -> new ConcurrentSkipListSet<>(ORDER));
+    List<ClientDeviceInfo> stored = new ArrayList<>(deviceInfos.size());
+    for (ClientDeviceInfo deviceInfo : deviceInfos) {
+      ClientDeviceInfo fix = deviceInfo.toBuilder().id(ids.incrementAndGet()).client(null)
+          .build();
+      track.add(fix);
+      stored.add(fix);
+    }
+    return stored;
+  }
+
+  @Override
+  public void scan(Long clientId, Long afterTimestamp, Long afterId, Long toTime, int limit,
+      Predicate<ClientDeviceInfo> sink) {
+    NavigableSet<ClientDeviceInfo> track = tracks.get(clientId);
+    if (track == null) {
+      return;
+    }
+    ClientDeviceInfo after = ClientDeviceInfo.builder().timestamp(afterTimestamp).id(afterId)
+        .build();
+    int count = 0;
+    for (ClientDeviceInfo fix : track.tailSet(after, false)) {
+      if (fix.getTimestamp() > toTime || count++ >= limit || !sink.test(fix)) {
+        return;
+      }
+    }
+  }
+}
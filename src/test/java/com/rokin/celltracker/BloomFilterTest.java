@@ -0,0 +1,37 @@
+package com.rokin.celltracker;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class BloomFilterTest {
+
+  @Test
+  public void mightContain_hasNoFalseNegatives() {
+    BloomFilter filter = new BloomFilter(10000, 0.01);
+    for (int i = 0; i < 10000; i++) {
+      filter.put("code" + i);
+    }
+
+    for (int i = 0; i < 10000; i++) {
+      assertThat(filter.mightContain("code" + i)).isTrue();
+    }
+  }
+
+  @Test
+  public void mightContain_keepsFalsePositiveRateNearTarget() {
+    BloomFilter filter = new BloomFilter(10000, 0.01);
+    for (int i = 0; i < 10000; i++) {
+      filter.put(RandomUtil.createWord(6));
+    }
+
+    int falsePositives = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (filter.mightContain("absent" + i)) {
+        falsePositives++;
+      }
+    }
+
+    assertThat(falsePositives).isLessThan(200);
+  }
+}
@@ -2,6 +2,8 @@ package com.rokin.celltracker;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rokin.celltracker.codec.LocationFixCodec;
 import com.rokin.celltracker.domain.Circle;
 import com.rokin.celltracker.domain.Client;
 import com.rokin.celltracker.domain.Client.Role;
@@ -10,11 +12,21 @@ import com.rokin.celltracker.domain.Message;
 import com.rokin.celltracker.domain.Message.MessageScope;
 import com.rokin.celltracker.domain.Message.MessageType;
 import com.rokin.celltracker.dto.CircleInfo;
+import com.rokin.celltracker.dto.LocationHistoryPage;
+import com.rokin.celltracker.repository.MessageRepository;
+import com.rokin.celltracker.service.LocationArchiveService;
+import com.rokin.celltracker.service.LocationTierStore;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Resource;
 import lombok.Data;
 import lombok.RequiredArgsConstructor;
@@ -24,6 +36,7 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
 import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.http.HttpEntity;
@@ -54,6 +67,12 @@ public class CircleIntegrationTest {
 
   @Resource
   private TestRestTemplate testRestTemplate;
+  @Resource
+  private LocationArchiveService locationArchiveService;
+  @Resource
+  private LocationTierStore locationTierStore;
+  @Resource
+  private MessageRepository messageRepo;
 
   @Test
   public void addCircle() {
@@ -137,6 +156,38 @@ public class CircleIntegrationTest {
     assertThat(circleInfos.size()).isGreaterThan(0);
   }
 
+  @Test
+  public void getCirclesCountsActiveMembers() {
+    CircleWithMember fixture = createCircleWithMember("count.circle", "5522220000");
+    ClientWithHeaders owner = fixture.getOwner();
+    ClientWithHeaders stayer = fixture.getMember();
+    Circle circle = fixture.getCircle();
+    String joinUri = UriComponentsBuilder.fromPath("/api/circles/").path(circle.getCode())
+        .path("/join").toUriString();
+    String leaveUri = UriComponentsBuilder.fromPath("/api/circles/").path(circle.getId())
+        .path("/leave").toUriString();
+    // joining again keeps one membership
+    testRestTemplate.exchange(joinUri, HttpMethod.GET, new HttpEntity<>(stayer.getHeaders()),
+        Circle.class);
+    ClientWithHeaders leaver = createClientAndAuthHeaders("count.circle.leaver@gmail.com",
+        "552222000033", PASSWORD);
+    testRestTemplate.exchange(joinUri, HttpMethod.GET, new HttpEntity<>(leaver.getHeaders()),
+        Circle.class);
+    testRestTemplate.exchange(leaveUri, HttpMethod.GET, new HttpEntity<>(leaver.getHeaders()),
+        Boolean.class);
+    testRestTemplate.exchange(leaveUri, HttpMethod.GET, new HttpEntity<>(leaver.getHeaders()),
+        Boolean.class);
+
+    ResponseEntity<List<CircleInfo>> listResponseEntity = testRestTemplate.exchange("/api/circles/",
+        HttpMethod.GET, new HttpEntity<>(owner.getHeaders()),
+        new ParameterizedTypeReference<List<CircleInfo>>() {
+        });
+
+    assertThat(listResponseEntity.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(listResponseEntity.getBody()).hasSize(1);
+    assertThat(listResponseEntity.getBody().get(0).getMumberCount()).isEqualTo(2);
+  }
+
   @Test
   public void getCircleMembers() {
     ClientWithHeaders cwh = createClientAndAuthHeaders("get.circle.members@gmail.com",
@@ -180,6 +231,296 @@ public class CircleIntegrationTest {
     assertThat(listResponseEntity.getBody().size()).isGreaterThan(0);
   }
 
+  @Test
+  public void getCircleMemberLocationHistoryMergesArchivedFixes() {
+    ClientWithHeaders cwh = createClientAndAuthHeaders(
+        "get.circle.member.location.history.archive@gmail.com", "442222001133", PASSWORD);
+    HttpEntity<?> request = new HttpEntity<>(cwh.getHeaders());
+    String uri = UriComponentsBuilder.fromPath("/api/circles").queryParam("circlename", "circle-1")
+        .toUriString();
+    Circle circle = testRestTemplate.exchange(uri, HttpMethod.POST, request, Circle.class)
+        .getBody();
+    long now = System.currentTimeMillis();
+    long old = now - TimeUnit.DAYS.toMillis(3);
+    List<ClientDeviceInfo> oldFixes = new ArrayList<>();
+    for (int i = 0; i < 30; i++) {
+      oldFixes.add(ClientDeviceInfo.builder().lat(10.0 + i * 0.001).lon(20.0).accuracy(5.0)
+          .battery(50).provider("gps").timestamp(old + i * 5000).build());
+    }
+    HttpHeaders headers = new HttpHeaders();
+    headers.putAll(cwh.getHeaders());
+    headers.setContentType(MediaType.APPLICATION_JSON);
+    testRestTemplate.exchange("/api/clients/" + cwh.getClient().getId() + "/deviceinfo/batch",
+        HttpMethod.POST, new HttpEntity<>(oldFixes, headers), Boolean.class);
+
+    long archived = locationArchiveService.archiveBefore(now - TimeUnit.DAYS.toMillis(1));
+    uri = UriComponentsBuilder.fromPath("/api/circles/").path(circle.getId()).path("/members/")
+        .path(String.valueOf(cwh.getClient().getId())).path("/locationhistory")
+        .queryParam("fromtime", 0).queryParam("totime", System.currentTimeMillis()).toUriString();
+    ResponseEntity<List<ClientDeviceInfo>> listResponseEntity = testRestTemplate.exchange(uri,
+        HttpMethod.GET, request, new ParameterizedTypeReference<List<ClientDeviceInfo>>() {
+        });
+    List<ClientDeviceInfo> history = listResponseEntity.getBody();
+
+    assertThat(archived).isGreaterThanOrEqualTo(30);
+    assertThat(listResponseEntity.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(history).hasSize(31);
+    for (int i = 0; i < 30; i++) {
+      assertThat(history.get(i).getTimestamp()).isEqualTo(old + i * 5000);
+      assertThat(history.get(i).getLat()).isEqualTo(10.0 + i * 0.001);
+      assertThat(history.get(i).getProvider()).isEqualTo("gps");
+    }
+    assertThat(history.get(30).getLat()).isEqualTo(45.0);
+  }
+
+  @Test
+  public void getCircleMemberLocationHistoryAsNdjson() throws IOException {
+    ClientWithHeaders cwh = createClientAndAuthHeaders(
+        "get.circle.member.location.history.ndjson@gmail.com", "442222001144", PASSWORD);
+    HttpEntity<?> request = new HttpEntity<>(cwh.getHeaders());
+    String uri = UriComponentsBuilder.fromPath("/api/circles").queryParam("circlename", "circle-1")
+        .toUriString();
+    Circle circle = testRestTemplate.exchange(uri, HttpMethod.POST, request, Circle.class)
+        .getBody();
+    long now = System.currentTimeMillis();
+    List<ClientDeviceInfo> fixes = new ArrayList<>();
+    for (int i = 0; i < 1200; i++) {
+      fixes.add(ClientDeviceInfo.builder().lat(10.0 + i * 0.001).lon(20.0)
+          .timestamp(now - 3600000 + i * 1000).build());
+    }
+    HttpHeaders headers = new HttpHeaders();
+    headers.putAll(cwh.getHeaders());
+    headers.setContentType(MediaType.APPLICATION_JSON);
+    testRestTemplate.exchange("/api/clients/" + cwh.getClient().getId() + "/deviceinfo/batch",
+        HttpMethod.POST, new HttpEntity<>(fixes, headers), Boolean.class);
+    headers = new HttpHeaders();
+    headers.putAll(cwh.getHeaders());
+    headers.setAccept(Arrays.asList(MediaType.valueOf("application/x-ndjson")));
+    uri = UriComponentsBuilder.fromPath("/api/circles/").path(circle.getId()).path("/members/")
+        .path(String.valueOf(cwh.getClient().getId())).path("/locationhistory")
+        .queryParam("fromtime", 0).queryParam("totime", System.currentTimeMillis()).toUriString();
+
+    ResponseEntity<String> ndjsonResponseEntity = testRestTemplate.exchange(uri, HttpMethod.GET,
+        new HttpEntity<>(headers), String.class);
+    ObjectMapper objectMapper = new ObjectMapper();
+    List<ClientDeviceInfo> history = new ArrayList<>();
+    for (String line : ndjsonResponseEntity.getBody().split("\n")) {
+      history.add(objectMapper.readValue(line, ClientDeviceInfo.class));
+    }
+
+    assertThat(ndjsonResponseEntity.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(ndjsonResponseEntity.getHeaders().getContentType().toString())
+        .isEqualTo("application/x-ndjson");
+    assertThat(history).hasSize(1201);
+    assertThat(history.get(0).getLat()).isEqualTo(10.0);
+    assertThat(history.get(1199).getTimestamp()).isEqualTo(now - 3600000 + 1199 * 1000);
+    assertThat(history.get(1200).getLat()).isEqualTo(45.0);
+  }
+
+  @Test
+  public void flowCircleMemberLocationHistory() throws IOException {
+    ClientWithHeaders cwh = createClientAndAuthHeaders(
+        "flow.location.history@gmail.com", "442222001177", PASSWORD);
+    HttpEntity<?> request = new HttpEntity<>(cwh.getHeaders());
+    String uri = UriComponentsBuilder.fromPath("/api/circles").queryParam("circlename", "circle-1")
+        .toUriString();
+    Circle circle = testRestTemplate.exchange(uri, HttpMethod.POST, request, Circle.class)
+        .getBody();
+    long now = System.currentTimeMillis();
+    List<ClientDeviceInfo> fixes = new ArrayList<>();
+    for (int i = 0; i < 2500; i++) {
+      fixes.add(ClientDeviceInfo.builder().lat(10.0 + i * 0.001).lon(20.0)
+          .timestamp(now - 3600000 + i * 1000).build());
+    }
+    HttpHeaders headers = new HttpHeaders();
+    headers.putAll(cwh.getHeaders());
+    headers.setContentType(MediaType.APPLICATION_JSON);
+    testRestTemplate.exchange("/api/clients/" + cwh.getClient().getId() + "/deviceinfo/batch",
+        HttpMethod.POST, new HttpEntity<>(fixes, headers), Boolean.class);
+    headers = new HttpHeaders();
+    headers.putAll(cwh.getHeaders());
+    headers.setAccept(Arrays.asList(MediaType.APPLICATION_STREAM_JSON));
+    uri = UriComponentsBuilder.fromPath("/api/circles/").path(circle.getId()).path("/members/")
+        .path(String.valueOf(cwh.getClient().getId())).path("/locationhistory/stream")
+        .queryParam("fromtime", 0).queryParam("totime", System.currentTimeMillis())
+        .queryParam("pagesize", 1000).toUriString();
+
+    ResponseEntity<String> streamResponseEntity = testRestTemplate.exchange(uri, HttpMethod.GET,
+        new HttpEntity<>(headers), String.class);
+    ObjectMapper objectMapper = new ObjectMapper();
+    List<ClientDeviceInfo> history = new ArrayList<>();
+    String[] pages = streamResponseEntity.getBody().split("\n");
+    for (String page : pages) {
+      history.addAll(Arrays.asList(objectMapper.readValue(page, ClientDeviceInfo[].class)));
+    }
+
+    assertThat(streamResponseEntity.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(pages).hasSize(3);
+    assertThat(streamResponseEntity.getHeaders().getContentType()
+        .isCompatibleWith(MediaType.APPLICATION_STREAM_JSON)).isTrue();
+    assertThat(history).hasSize(2501);
+    assertThat(history).extracting(ClientDeviceInfo::getTimestamp).isSorted();
+    assertThat(history.get(2499).getTimestamp()).isEqualTo(now - 3600000 + 2499 * 1000);
+    assertThat(history.get(2500).getLat()).isEqualTo(45.0);
+  }
+
+  @Test
+  public void flowCircleMembers() throws IOException {
+    CircleWithMember fixture = createCircleWithMember("flow.circle", "4400660022");
+    ClientWithHeaders owner = fixture.getOwner();
+    ClientWithHeaders member = fixture.getMember();
+    Circle circle = fixture.getCircle();
+    HttpHeaders headers = new HttpHeaders();
+    headers.putAll(owner.getHeaders());
+    headers.setAccept(Arrays.asList(MediaType.APPLICATION_STREAM_JSON));
+
+    ResponseEntity<String> streamResponseEntity = testRestTemplate.exchange(
+        "/api/circles/" + circle.getId() + "/members/stream", HttpMethod.GET,
+        new HttpEntity<>(headers), String.class);
+    List<Map<?, ?>> members = new ArrayList<>();
+    for (String line : streamResponseEntity.getBody().split("\n")) {
+      members.add(new ObjectMapper().readValue(line, Map.class));
+    }
+
+    assertThat(streamResponseEntity.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(members).hasSize(1);
+    assertThat(((Number) members.get(0).get("id")).longValue())
+        .isEqualTo(member.getClient().getId());
+  }
+
+  @Test
+  public void getCircleMemberLocationHistoryPages() {
+    ClientWithHeaders cwh = createClientAndAuthHeaders(
+        "get.circle.member.location.history.pages@gmail.com", "442222001155", PASSWORD);
+    HttpEntity<?> request = new HttpEntity<>(cwh.getHeaders());
+    String uri = UriComponentsBuilder.fromPath("/api/circles").queryParam("circlename", "circle-1")
+        .toUriString();
+    Circle circle = testRestTemplate.exchange(uri, HttpMethod.POST, request, Circle.class)
+        .getBody();
+    long now = System.currentTimeMillis();
+    List<ClientDeviceInfo> fixes = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      long base = i < 25 ? now - TimeUnit.DAYS.toMillis(3) : now - 3600000;
+      // pairs of fixes share a timestamp
+      fixes.add(ClientDeviceInfo.builder().lat(10.0 + i).lon(20.0).timestamp(base + i / 2 * 1000)
+          .build());
+    }
+    HttpHeaders headers = new HttpHeaders();
+    headers.putAll(cwh.getHeaders());
+    headers.setContentType(MediaType.APPLICATION_JSON);
+    testRestTemplate.exchange("/api/clients/" + cwh.getClient().getId() + "/deviceinfo/batch",
+        HttpMethod.POST, new HttpEntity<>(fixes, headers), Boolean.class);
+    locationArchiveService.archiveBefore(now - TimeUnit.DAYS.toMillis(1));
+
+    List<ClientDeviceInfo> history = new ArrayList<>();
+    String cursor = null;
+    int pages = 0;
+    do {
+      UriComponentsBuilder builder = UriComponentsBuilder.fromPath("/api/circles/")
+          .path(circle.getId()).path("/members/").path(String.valueOf(cwh.getClient().getId()))
+          .path("/locationhistory/page").queryParam("fromtime", 0)
+          .queryParam("totime", System.currentTimeMillis()).queryParam("pagesize", 7);
+      if (cursor != null) {
+        builder.queryParam("cursor", cursor);
+      }
+      ResponseEntity<LocationHistoryPage> pageResponseEntity = testRestTemplate.exchange(
+          builder.toUriString(), HttpMethod.GET, request, LocationHistoryPage.class);
+      assertThat(pageResponseEntity.getStatusCode()).isEqualTo(HttpStatus.OK);
+      assertThat(pageResponseEntity.getBody().getDeviceInfos().size()).isLessThanOrEqualTo(7);
+      history.addAll(pageResponseEntity.getBody().getDeviceInfos());
+      cursor = pageResponseEntity.getBody().getNextCursor();
+      pages++;
+    } while (cursor != null);
+    ResponseEntity<String> invalidResponseEntity = testRestTemplate.exchange(UriComponentsBuilder
+        .fromPath("/api/circles/").path(circle.getId()).path("/members/")
+        .path(String.valueOf(cwh.getClient().getId())).path("/locationhistory/page")
+        .queryParam("fromtime", 0).queryParam("totime", now).queryParam("cursor", "not-a-cursor")
+        .toUriString(), HttpMethod.GET, request, String.class);
+
+    assertThat(pages).isEqualTo(8);
+    assertThat(history).hasSize(51);
+    for (int i = 0; i < 50; i++) {
+      assertThat(history.get(i).getLat()).isEqualTo(10.0 + i);
+    }
+    assertThat(history.get(50).getLat()).isEqualTo(45.0);
+    assertThat(invalidResponseEntity.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+  }
+
+  @Test
+  public void getCircleMemberLocationHistoryWithinPointBudget() {
+    ClientWithHeaders cwh = createClientAndAuthHeaders(
+        "get.circle.member.location.history.tiers@gmail.com", "442222001166", PASSWORD);
+    HttpEntity<?> request = new HttpEntity<>(cwh.getHeaders());
+    String uri = UriComponentsBuilder.fromPath("/api/circles").queryParam("circlename", "circle-1")
+        .toUriString();
+    Circle circle = testRestTemplate.exchange(uri, HttpMethod.POST, request, Circle.class)
+        .getBody();
+    long now = System.currentTimeMillis();
+    List<ClientDeviceInfo> fixes = new ArrayList<>();
+    for (int i = 0; i < 600; i++) {
+      fixes.add(ClientDeviceInfo.builder().lat(10.0 + i * 0.001).lon(20.0)
+          .timestamp(now - 18000000 + i * 30000).build());
+    }
+    HttpHeaders headers = new HttpHeaders();
+    headers.putAll(cwh.getHeaders());
+    headers.setContentType(MediaType.APPLICATION_JSON);
+    testRestTemplate.exchange("/api/clients/" + cwh.getClient().getId() + "/deviceinfo/batch",
+        HttpMethod.POST, new HttpEntity<>(fixes, headers), Boolean.class);
+    UriComponentsBuilder builder = UriComponentsBuilder.fromPath("/api/circles/")
+        .path(circle.getId()).path("/members/").path(String.valueOf(cwh.getClient().getId()))
+        .path("/locationhistory").queryParam("fromtime", 0)
+        .queryParam("totime", System.currentTimeMillis());
+
+    List<ClientDeviceInfo> budgeted = testRestTemplate.exchange(
+        builder.cloneBuilder().queryParam("maxpoints", 100).toUriString(), HttpMethod.GET,
+        request, new ParameterizedTypeReference<List<ClientDeviceInfo>>() {
+        }).getBody();
+    locationTierStore.flush();
+    List<ClientDeviceInfo> hourly = testRestTemplate.exchange(
+        builder.cloneBuilder().queryParam("resolution", "HOUR").toUriString(), HttpMethod.GET,
+        request, new ParameterizedTypeReference<List<ClientDeviceInfo>>() {
+        }).getBody();
+    List<ClientDeviceInfo> raw = testRestTemplate.exchange(builder.toUriString(), HttpMethod.GET,
+        request, new ParameterizedTypeReference<List<ClientDeviceInfo>>() {
+        }).getBody();
+
+    assertThat(raw).hasSize(601);
+    assertThat(budgeted.size()).isBetween(30, 32);
+    assertThat(budgeted.get(budgeted.size() - 1).getLat()).isEqualTo(45.0);
+    assertThat(hourly.size()).isBetween(5, 7);
+    assertThat(hourly.get(hourly.size() - 1).getLat()).isEqualTo(45.0);
+  }
+
+  @Test
+  public void getCircleMemberLocationHistoryAsBinary() throws IOException {
+    ClientWithHeaders cwh = createClientAndAuthHeaders(
+        "get.circle.member.location.history.binary@gmail.com", "442222001122", PASSWORD);
+    HttpEntity<?> request = new HttpEntity<>(cwh.getHeaders());
+    String uri = UriComponentsBuilder.fromPath("/api/circles").queryParam("circlename", "circle-1")
+        .toUriString();
+    ResponseEntity<Circle> responseEntity = testRestTemplate.exchange(uri, HttpMethod.POST, request,
+        Circle.class);
+    Circle circle = responseEntity.getBody();
+    HttpHeaders headers = new HttpHeaders();
+    headers.putAll(cwh.getHeaders());
+    headers.setAccept(Arrays.asList(MediaType.valueOf(LocationFixCodec.MEDIA_TYPE_VALUE)));
+    request = new HttpEntity<>(headers);
+    uri = UriComponentsBuilder.fromPath("/api/circles/").path(circle.getId()).path("/members/")
+        .path(String.valueOf(cwh.getClient().getId())).path("/locationhistory")
+        .queryParam("fromtime", 0).queryParam("totime", System.currentTimeMillis()).toUriString();
+
+    ResponseEntity<byte[]> binaryResponseEntity = testRestTemplate.exchange(uri, HttpMethod.GET,
+        request, byte[].class);
+    List<ClientDeviceInfo> history = LocationFixCodec
+        .decode(new ByteArrayInputStream(binaryResponseEntity.getBody()));
+
+    assertThat(binaryResponseEntity.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(binaryResponseEntity.getHeaders().getContentType().toString())
+        .isEqualTo(LocationFixCodec.MEDIA_TYPE_VALUE);
+    assertThat(history.size()).isGreaterThan(0);
+    assertThat(history.get(0).getLat()).isEqualTo(45.0);
+  }
+
   @Test
   public void joinCircle() {
     ClientWithHeaders cwh = createClientAndAuthHeaders("join.circle.owner@gmail.com",
@@ -227,6 +568,151 @@ public class CircleIntegrationTest {
     assertThat(listResponseEntity.getBody()).isTrue();
   }
 
+  @Test
+  public void leaveCircleRevokesMemberAccess() {
+    CircleWithMember fixture = createCircleWithMember("revoke.circle", "4400770022");
+    ClientWithHeaders owner = fixture.getOwner();
+    ClientWithHeaders member = fixture.getMember();
+    Circle circle = fixture.getCircle();
+    String membersUri = "/api/circles/" + circle.getId() + "/members";
+    String historyUri = UriComponentsBuilder.fromPath("/api/circles/").path(circle.getId())
+        .path("/members/").path(String.valueOf(owner.getClient().getId()))
+        .path("/locationhistory").queryParam("fromtime", 0)
+        .queryParam("totime", System.currentTimeMillis()).toUriString();
+    ParameterizedTypeReference<List<Client>> clientListType =
+        new ParameterizedTypeReference<List<Client>>() {
+        };
+    ResponseEntity<List<Client>> membersBefore = testRestTemplate.exchange(membersUri,
+        HttpMethod.GET, new HttpEntity<>(owner.getHeaders()), clientListType);
+    ResponseEntity<String> historyBefore = testRestTemplate.exchange(historyUri, HttpMethod.GET,
+        new HttpEntity<>(member.getHeaders()), String.class);
+
+    testRestTemplate.exchange(UriComponentsBuilder.fromPath("/api/circles/").path(circle.getId())
+        .path("/leave").toUriString(), HttpMethod.GET, new HttpEntity<>(member.getHeaders()),
+        Boolean.class);
+    ResponseEntity<List<Client>> membersAfter = testRestTemplate.exchange(membersUri,
+        HttpMethod.GET, new HttpEntity<>(owner.getHeaders()), clientListType);
+    ResponseEntity<String> historyAfter = testRestTemplate.exchange(historyUri, HttpMethod.GET,
+        new HttpEntity<>(member.getHeaders()), String.class);
+
+    assertThat(membersBefore.getBody()).extracting(Client::getId)
+        .containsExactly(member.getClient().getId());
+    assertThat(historyBefore.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(membersAfter.getBody()).isEmpty();
+    assertThat(historyAfter.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+  }
+
+  @Test
+  public void getCircleLocations() {
+    CircleWithMember fixture = createCircleWithMember("locations.circle", "4400880022");
+    ClientWithHeaders owner = fixture.getOwner();
+    ClientWithHeaders member = fixture.getMember();
+    Circle circle = fixture.getCircle();
+    ClientWithHeaders outsider = createClientAndAuthHeaders("locations.circle.outsider@gmail.com",
+        "440088002233", PASSWORD);
+    String locationsUri = "/api/circles/" + circle.getId() + "/locations";
+
+    ResponseEntity<List<Map<String, Object>>> responseEntity = testRestTemplate.exchange(
+        locationsUri, HttpMethod.GET, new HttpEntity<>(owner.getHeaders()),
+        new ParameterizedTypeReference<List<Map<String, Object>>>() {
+        });
+    ResponseEntity<String> outsiderResponse = testRestTemplate.exchange(locationsUri,
+        HttpMethod.GET, new HttpEntity<>(outsider.getHeaders()), String.class);
+
+    assertThat(responseEntity.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(responseEntity.getBody()).hasSize(1);
+    Map<String, Object> location = responseEntity.getBody().get(0);
+    assertThat(((Number) location.get("memberId")).longValue())
+        .isEqualTo(member.getClient().getId());
+    assertThat(location.get("lat")).isEqualTo(45.0);
+    assertThat(location.get("lon")).isEqualTo(90.0);
+    assertThat(location.get("battery")).isEqualTo(1);
+    assertThat(outsiderResponse.getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+  }
+
+  @Test
+  public void streamCircleLocations() {
+    CircleWithMember fixture = createCircleWithMember("stream.circle", "4400990022");
+    ClientWithHeaders owner = fixture.getOwner();
+    ClientWithHeaders member = fixture.getMember();
+    Circle circle = fixture.getCircle();
+    HttpHeaders deviceInfoHeaders = new HttpHeaders();
+    deviceInfoHeaders.putAll(member.getHeaders());
+    deviceInfoHeaders.setContentType(MediaType.APPLICATION_JSON);
+    HttpEntity<?> deviceInfoRequest = new HttpEntity<>(
+        ClientDeviceInfo.builder().lat(46.0).lon(91.0).accuracy(2.0).battery(2).build(),
+        deviceInfoHeaders);
+    TestRestTemplate streamTemplate = new TestRestTemplate(new RestTemplateBuilder()
+        .rootUri(testRestTemplate.getRootUri()).setReadTimeout(10000));
+
+    List<String> events = streamTemplate.execute("/api/circles/" + circle.getId()
+        + "/locations/stream", HttpMethod.GET, request -> {
+          request.getHeaders().putAll(owner.getHeaders());
+          request.getHeaders().setAccept(Arrays.asList(MediaType.TEXT_EVENT_STREAM));
+        }, response -> {
+          List<String> data = new ArrayList<>();
+          BufferedReader reader = new BufferedReader(
+              new InputStreamReader(response.getBody(), StandardCharsets.UTF_8));
+          String line;
+          while (data.size() < 2 && (line = reader.readLine()) != null) {
+            if (line.startsWith("data:")) {
+              data.add(line.substring(5));
+              // the first event is the snapshot, move the member once it arrived
+              testRestTemplate.exchange("/api/clients/" + member.getClient().getId()
+                  + "/deviceinfo", HttpMethod.POST, deviceInfoRequest, Boolean.class);
+            }
+          }
+          return data;
+        });
+
+    assertThat(events).hasSize(2);
+    assertThat(events.get(0)).contains("\"lat\":45.0");
+    assertThat(events.get(1)).contains("\"memberId\":" + member.getClient().getId())
+        .contains("\"lat\":46.0").contains("\"battery\":2");
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void getDashboard() {
+    CircleWithMember fixture = createCircleWithMember("dashboard.circle", "4401110022");
+    ClientWithHeaders owner = fixture.getOwner();
+    ClientWithHeaders member = fixture.getMember();
+    Circle circle = fixture.getCircle();
+
+    ResponseEntity<Map<String, Object>> responseEntity = testRestTemplate.exchange(
+        "/api/clients/dashboard", HttpMethod.GET, new HttpEntity<>(owner.getHeaders()),
+        new ParameterizedTypeReference<Map<String, Object>>() {
+        });
+    String tag = responseEntity.getHeaders().getETag();
+    HttpHeaders conditionalHeaders = new HttpHeaders();
+    conditionalHeaders.putAll(owner.getHeaders());
+    conditionalHeaders.setIfNoneMatch(tag);
+    ResponseEntity<String> notModified = testRestTemplate.exchange("/api/clients/dashboard",
+        HttpMethod.GET, new HttpEntity<>(conditionalHeaders), String.class);
+    testRestTemplate.exchange("/api/circles/" + circle.getId() + "/leave", HttpMethod.GET,
+        new HttpEntity<>(member.getHeaders()), Boolean.class);
+    ResponseEntity<Map<String, Object>> modified = testRestTemplate.exchange(
+        "/api/clients/dashboard", HttpMethod.GET, new HttpEntity<>(conditionalHeaders),
+        new ParameterizedTypeReference<Map<String, Object>>() {
+        });
+
+    assertThat(responseEntity.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(tag).isNotEmpty();
+    List<Map<String, Object>> circles = (List<Map<String, Object>>) responseEntity.getBody()
+        .get("circles");
+    assertThat(circles).hasSize(1);
+    assertThat(circles.get(0).get("memberCount")).isEqualTo(2);
+    List<Map<String, Object>> members = (List<Map<String, Object>>) circles.get(0)
+        .get("members");
+    assertThat(((Number) members.get(0).get("id")).longValue())
+        .isEqualTo(member.getClient().getId());
+    assertThat(notModified.getStatusCode()).isEqualTo(HttpStatus.NOT_MODIFIED);
+    assertThat(modified.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(modified.getHeaders().getETag()).isNotEqualTo(tag);
+    assertThat((List<?>) ((List<Map<String, Object>>) modified.getBody().get("circles")).get(0)
+        .get("members")).isEmpty();
+  }
+
   @Test
   public void refreshCode() {
     ClientWithHeaders cwh = createClientAndAuthHeaders("refresh.code@gmail.com", "442222991111",
@@ -270,6 +756,68 @@ public class CircleIntegrationTest {
     assertThat(listResponseEntity.getStatusCode()).isEqualTo(HttpStatus.OK);
   }
 
+  @Test
+  public void pushHelpAlertIsDeliveredFromOutbox() throws InterruptedException {
+    ClientWithHeaders cwh = createClientAndAuthHeaders("push.outbox@gmail.com", "442222841122",
+        PASSWORD);
+    String uri = UriComponentsBuilder.fromPath("/api/circles").queryParam("circlename", "circle-1")
+        .toUriString();
+    Circle circle = testRestTemplate.exchange(uri, HttpMethod.POST,
+        new HttpEntity<>(cwh.getHeaders()), Circle.class).getBody();
+    Message message = Message.builder().deviceInfo(cwh.getClient().getLatestDeviceInfo())
+        .meassgeType(MessageType.HELPALERT).messageScope(MessageScope.CIRCLE)
+        .toCircleId(circle.getId()).build();
+
+    ResponseEntity<String> responseEntity = testRestTemplate.exchange("/api/circles/push",
+        HttpMethod.POST, new HttpEntity<>(message, cwh.getHeaders()), String.class);
+
+    assertThat(responseEntity.getStatusCode()).isEqualTo(HttpStatus.OK);
+    long deadline = System.currentTimeMillis() + 5000;
+    Message saved = findMessageFrom(cwh.getClient().getId());
+    while (!Boolean.TRUE.equals(saved.getIsSent()) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+      saved = findMessageFrom(cwh.getClient().getId());
+    }
+    assertThat(saved.getIsSent()).isTrue();
+    assertThat(saved.getAttempts()).isEqualTo(1);
+    assertThat(saved.getNextAttemptAt()).isNull();
+  }
+
+  @Test
+  public void broadcastIsDeliveredFromOutboxToAllowedSendersOnly() throws InterruptedException {
+    ClientWithHeaders sender = createClientAndAuthHeaders("broadcast.sender@gmail.com",
+        "442222841133", PASSWORD);
+    ClientWithHeaders other = createClientAndAuthHeaders("broadcast.other@gmail.com",
+        "442222841144", PASSWORD);
+    Message message = Message.builder().deviceInfo(sender.getClient().getLatestDeviceInfo())
+        .meassgeType(MessageType.HELPALERT).messageScope(MessageScope.BROADCAST).build();
+
+    ResponseEntity<String> forbidden = testRestTemplate.exchange("/api/circles/push",
+        HttpMethod.POST, new HttpEntity<>(message, other.getHeaders()), String.class);
+    ResponseEntity<String> responseEntity = testRestTemplate.exchange("/api/circles/push",
+        HttpMethod.POST, new HttpEntity<>(message, sender.getHeaders()), String.class);
+
+    assertThat(forbidden.getStatusCode()).isEqualTo(HttpStatus.FORBIDDEN);
+    assertThat(responseEntity.getStatusCode()).isEqualTo(HttpStatus.OK);
+    long deadline = System.currentTimeMillis() + 5000;
+    Message saved = findMessageFrom(sender.getClient().getId());
+    while (!Boolean.TRUE.equals(saved.getIsSent()) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+      saved = findMessageFrom(sender.getClient().getId());
+    }
+    assertThat(saved.getIsSent()).isTrue();
+    assertThat(saved.getBroadcastCursor()).isGreaterThanOrEqualTo(other.getClient().getId());
+  }
+
+  private Message findMessageFrom(Long clientId) {
+    for (Message message : messageRepo.findAll()) {
+      if (clientId.equals(message.getFromClientId())) {
+        return message;
+      }
+    }
+    throw new AssertionError("no message from client " + clientId);
+  }
+
   @Data
   @RequiredArgsConstructor
   static class ClientWithHeaders {
@@ -277,14 +825,56 @@ public class CircleIntegrationTest {
     private final Client client;
   }
 
-  @SuppressWarnings("rawtypes")
+  @Data
+  @RequiredArgsConstructor
+  static class CircleWithMember {
+    private final ClientWithHeaders owner;
+    private final ClientWithHeaders member;
+    private final Circle circle;
+  }
+
   private ClientWithHeaders createClientAndAuthHeaders(String email, String cellNo,
       String password) {
+    return createClientAndAuthHeaders(testRestTemplate, clientId, clientSecret, email, cellNo,
+        password);
+  }
+
+  private CircleWithMember createCircleWithMember(String name, String cellNoPrefix) {
+    return createCircleWithMember(testRestTemplate, clientId, clientSecret, name, cellNoPrefix);
+  }
+
+  /**
+   * Sign up an owner and a member, named and numbered after the given prefixes, and let the owner
+   * create a circle the member joins.
+   */
+  static CircleWithMember createCircleWithMember(TestRestTemplate testRestTemplate,
+      String clientId, String clientSecret, String name, String cellNoPrefix) {
+    ClientWithHeaders owner = createClientAndAuthHeaders(testRestTemplate, clientId,
+        clientSecret, name + ".owner@gmail.com", cellNoPrefix + "11", PASSWORD);
+    String uri = UriComponentsBuilder.fromPath("/api/circles").queryParam("circlename", "circle-1")
+        .toUriString();
+    Circle circle = testRestTemplate.exchange(uri, HttpMethod.POST,
+        new HttpEntity<>(owner.getHeaders()), Circle.class).getBody();
+    ClientWithHeaders member = createClientAndAuthHeaders(testRestTemplate, clientId,
+        clientSecret, name + ".member@gmail.com", cellNoPrefix + "22", PASSWORD);
+    testRestTemplate.exchange(UriComponentsBuilder.fromPath("/api/circles/")
+        .path(circle.getCode()).path("/join").toUriString(), HttpMethod.GET,
+        new HttpEntity<>(member.getHeaders()), Circle.class);
+    return new CircleWithMember(owner, member, circle);
+  }
+
+  /**
+   * Sign up a client with a device info and log it in, shared with the other integration tests.
+   */
+  @SuppressWarnings("rawtypes")
+  static ClientWithHeaders createClientAndAuthHeaders(TestRestTemplate testRestTemplate,
+      String clientId, String clientSecret, String email, String cellNo, String password) {
     Client client = buildClient(email, cellNo, password, true);
     HttpEntity<?> request = buildClientRequest(client, new HttpHeaders(), "pervez.jpg");
     Client createdClient = testRestTemplate.postForObject("/api/clients", request, Client.class);
 
-    ResponseEntity<Map> responseEntity = login(email, password);
+    ResponseEntity<Map> responseEntity = login(testRestTemplate, clientId, clientSecret, email,
+        password);
     Map jwtMap = responseEntity.getBody();
     HttpHeaders headers = new HttpHeaders();
     headers.set("Authorization", "Bearer " + jwtMap.get("access_token"));
@@ -292,7 +882,8 @@ public class CircleIntegrationTest {
   }
 
   @SuppressWarnings("rawtypes")
-  private ResponseEntity<Map> login(String username, String password) {
+  static ResponseEntity<Map> login(TestRestTemplate testRestTemplate, String clientId,
+      String clientSecret, String username, String password) {
     MultiValueMap<String, String> body = new LinkedMultiValueMap<>();
     body.set("username", username);
     body.set(PASSWORD, password);
@@ -303,7 +894,7 @@ public class CircleIntegrationTest {
         request, Map.class);
   }
 
-  private HttpEntity<?> buildClientRequest(Client client, HttpHeaders headers, String imageName) {
+  static HttpEntity<?> buildClientRequest(Client client, HttpHeaders headers, String imageName) {
     MultipartBodyBuilder multipartBuilder = new MultipartBodyBuilder();
     multipartBuilder.part("email", client.getEmail(), MediaType.TEXT_PLAIN);
     multipartBuilder.part("cellNo", client.getCellNo(), MediaType.TEXT_PLAIN);
@@ -339,7 +930,7 @@ public class CircleIntegrationTest {
     return new HttpEntity<>(multipartBuilder.build(), headers);
   }
 
-  private Client buildClient(String email, String cellNo, String password,
+  static Client buildClient(String email, String cellNo, String password,
       Boolean isDeviceInfoAdded) {
     List<Role> roles = new ArrayList<>(Arrays.asList(Role.CLIENT));
     ClientDeviceInfo clientDeviceInfo = null;
@@ -5,16 +5,25 @@ import static org.assertj.core.api.Assertions.assertThat;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rokin.celltracker.codec.LocationFixCodec;
 import com.rokin.celltracker.domain.Client;
 import com.rokin.celltracker.domain.Client.Role;
 import com.rokin.celltracker.domain.ClientDeviceInfo;
 import com.rokin.celltracker.domain.ClientFavoritePlace;
+import com.rokin.celltracker.dto.PushTokenUpdates;
+import com.rokin.celltracker.repository.ClientRepository;
+import com.rokin.celltracker.service.LatestLocationStore;
+import com.rokin.celltracker.service.PushTokenCleaner;
+import com.rokin.celltracker.store.LocationStore;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.sql.ResultSet;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import javax.annotation.Resource;
@@ -34,10 +43,13 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.client.MultipartBodyBuilder;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.security.jwt.Jwt;
 import org.springframework.security.jwt.JwtHelper;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.util.UriComponentsBuilder;
@@ -57,6 +69,18 @@ public class ClientIntegrationTests {
 
   @Resource
   private TestRestTemplate testRestTemplate;
+  @Resource
+  private ClientRepository clientRepo;
+  @Resource
+  private PushTokenCleaner pushTokenCleaner;
+  @Resource
+  private LocationStore locationStore;
+  @Resource
+  private TransactionTemplate transactionTemplate;
+  @Resource
+  private JdbcTemplate jdbcTemplate;
+  @Resource
+  private LatestLocationStore latestLocationStore;
 
   @Test
   public void addClient() {
@@ -250,6 +274,34 @@ public class ClientIntegrationTests {
         .isEqualTo(clientToUpdate.getPushNotificationId());
   }
 
+  @SuppressWarnings("rawtypes")
+  @Test
+  public void updateClientAfterDroppedFix_returnsDroppedFixWithoutWritingIt() {
+    Client client = buildClient("update.client.dropped@gmail.com", "910167798711", PASSWORD,
+        true);
+    HttpEntity<?> request = buildClientRequest(client, new HttpHeaders(), "pervez.jpg");
+    Client clientToUpdate = testRestTemplate.postForEntity("/api/clients", request, Client.class)
+        .getBody();
+    ClientDeviceInfo dropped = ClientDeviceInfo.builder().lat(46.0).lon(90.0).battery(5)
+        .timestamp(System.currentTimeMillis()).build();
+    latestLocationStore.move(clientToUpdate, dropped);
+    Map jwtMap = login(client.getEmail(), PASSWORD).getBody();
+    HttpHeaders headers = new HttpHeaders();
+    headers.set("Authorization", "Bearer " + jwtMap.get("access_token"));
+    Client update = buildClient(client.getEmail(), client.getCellNo(), PASSWORD, false);
+    update.setPushNotificationId("new_push_not");
+    HttpEntity<?> updateRequest = buildClientRequest(update, headers, "pervez.jpg");
+
+    ResponseEntity<Client> responseEntity = testRestTemplate.exchange(
+        "/api/clients/" + clientToUpdate.getId(), HttpMethod.PUT, updateRequest, Client.class);
+
+    assertThat(responseEntity.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(responseEntity.getBody().getPushNotificationId()).isEqualTo("new_push_not");
+    assertThat(responseEntity.getBody().getLatestDeviceInfo().getLat()).isEqualTo(46.0);
+    assertThat(latestLocationStore.get(clientToUpdate)).isSameAs(dropped);
+    assertThat(dropped.getId()).isNull();
+  }
+
   @SuppressWarnings("rawtypes")
   @Test
   public void deleteClient() {
@@ -291,6 +343,87 @@ public class ClientIntegrationTests {
     assertThat(responseEntity.getBody()).isTrue();
   }
 
+  @SuppressWarnings("rawtypes")
+  @Test
+  public void addClientDeviceInfoBatch() {
+    Client c = buildClient("add.device.info.batch@gmail.com", "910000098711", PASSWORD, true);
+    HttpEntity<?> req = buildClientRequest(c, new HttpHeaders(), "pervez.jpg");
+    Client client = testRestTemplate.postForEntity("/api/clients", req, Client.class).getBody();
+    Map jwtMap = login(c.getEmail(), PASSWORD).getBody();
+    HttpHeaders headers = new HttpHeaders();
+    headers.set("Authorization", "Bearer " + jwtMap.get("access_token"));
+    headers.setContentType(MediaType.APPLICATION_JSON);
+    long now = System.currentTimeMillis();
+    List<ClientDeviceInfo> clientDeviceInfos = new ArrayList<>();
+    for (int i = 0; i < 60; i++) {
+      clientDeviceInfos.add(ClientDeviceInfo.builder().lat(1.0 + i).lon(1.0).altitude(1.0)
+          .speed(1.0).accuracy(1.0).bearing(1.0).battery(1).provider("1")
+          .timestamp(now - 59000 + i * 1000).build());
+    }
+    Collections.shuffle(clientDeviceInfos);
+    HttpEntity<List<ClientDeviceInfo>> request = new HttpEntity<>(clientDeviceInfos, headers);
+
+    ResponseEntity<Boolean> responseEntity = testRestTemplate.exchange(
+        "/api/clients/" + client.getId() + "/deviceinfo/batch", HttpMethod.POST, request,
+        Boolean.class);
+    Client updatedClient = testRestTemplate.exchange("/api/clients/details", HttpMethod.GET,
+        new HttpEntity<>(headers), Client.class).getBody();
+
+    assertThat(responseEntity.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(responseEntity.getBody()).isTrue();
+    assertThat(updatedClient.getLatestDeviceInfo().getLat()).isEqualTo(60.0);
+    assertThat(updatedClient.getLatestDeviceInfo().getTimestamp()).isEqualTo(now);
+  }
+
+  @SuppressWarnings("rawtypes")
+  @Test
+  public void addClientDeviceInfoAsBinary() throws IOException {
+    Client c = buildClient("add.device.info.binary@gmail.com", "910000098722", PASSWORD, true);
+    HttpEntity<?> req = buildClientRequest(c, new HttpHeaders(), "pervez.jpg");
+    Client client = testRestTemplate.postForEntity("/api/clients", req, Client.class).getBody();
+    Map jwtMap = login(c.getEmail(), PASSWORD).getBody();
+    HttpHeaders headers = new HttpHeaders();
+    headers.set("Authorization", "Bearer " + jwtMap.get("access_token"));
+    headers.setContentType(MediaType.valueOf(LocationFixCodec.MEDIA_TYPE_VALUE));
+    ClientDeviceInfo clientDeviceInfo = ClientDeviceInfo.builder().lat(23.8103).lon(90.4125)
+        .altitude(1.0).speed(1.0).accuracy(1.0).bearing(1.0).battery(1).provider("gps").build();
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    LocationFixCodec.encode(Arrays.asList(clientDeviceInfo), body);
+    HttpEntity<byte[]> request = new HttpEntity<>(body.toByteArray(), headers);
+
+    ResponseEntity<Boolean> responseEntity = testRestTemplate.exchange(
+        "/api/clients/" + client.getId() + "/deviceinfo", HttpMethod.POST, request, Boolean.class);
+    Client updatedClient = testRestTemplate.exchange("/api/clients/details", HttpMethod.GET,
+        new HttpEntity<>(headers), Client.class).getBody();
+
+    assertThat(responseEntity.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(responseEntity.getBody()).isTrue();
+    assertThat(updatedClient.getLatestDeviceInfo().getLat()).isEqualTo(23.8103);
+    assertThat(updatedClient.getLatestDeviceInfo().getProvider()).isEqualTo("gps");
+  }
+
+  @SuppressWarnings("rawtypes")
+  @Test
+  public void addClientDeviceInfoAsBinaryWithOversizedProvider_returnsBadRequest() {
+    Client c = buildClient("add.device.info.binary.bad@gmail.com", "910000098733", PASSWORD,
+        true);
+    HttpEntity<?> req = buildClientRequest(c, new HttpHeaders(), "pervez.jpg");
+    Client client = testRestTemplate.postForEntity("/api/clients", req, Client.class).getBody();
+    Map jwtMap = login(c.getEmail(), PASSWORD).getBody();
+    HttpHeaders headers = new HttpHeaders();
+    headers.set("Authorization", "Bearer " + jwtMap.get("access_token"));
+    headers.setContentType(MediaType.valueOf(LocationFixCodec.MEDIA_TYPE_VALUE));
+    // one fix with a new provider declared 2^32 - 1 bytes long
+    byte[] body = {1, 1, (byte) 0x80, 0x02, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+        (byte) 0xFF, 0x0F};
+
+    ResponseEntity<String> responseEntity = testRestTemplate.exchange(
+        "/api/clients/" + client.getId() + "/deviceinfo", HttpMethod.POST,
+        new HttpEntity<>(body, headers), String.class);
+
+    assertThat(responseEntity.getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+  }
+
   @SuppressWarnings("rawtypes")
   @Test
   public void addClientFavoritePlace() {
@@ -414,6 +547,137 @@ public class ClientIntegrationTests {
     assertThat(cfpList.size()).isEqualTo(1);
   }
 
+  @Test
+  public void writeBackPushTokenUpdates() {
+    Client dead = createClientWithPushToken("push.token.dead@gmail.com", "910000044411",
+        "push-token-dead");
+    Client moved = createClientWithPushToken("push.token.moved@gmail.com", "910000044422",
+        "push-token-old");
+
+    pushTokenCleaner.onPushTokenUpdates(new PushTokenUpdates(
+        Collections.singletonMap("push-token-old", "push-token-new"),
+        Collections.singleton("push-token-dead")));
+    pushTokenCleaner.flush();
+
+    assertThat(clientRepo.findById(dead.getId()).get().getPushNotificationId()).isNull();
+    assertThat(clientRepo.findById(moved.getId()).get().getPushNotificationId())
+        .isEqualTo("push-token-new");
+    assertThat(clientRepo.findPushNotificationIds(Arrays.asList(dead.getId(), moved.getId())))
+        .containsExactly("push-token-new");
+  }
+
+  @Test
+  public void latestDeviceInfoIsWrittenBackOnFlushAndSurvivesRestart() {
+    Client client = createClientWithPushToken("latest.location@gmail.com", "910000055511",
+        "latest-location-token");
+    LatestLocationStore node = new LatestLocationStore(clientRepo, transactionTemplate,
+        locationStore);
+    ClientDeviceInfo first = storeFix(client, 7.0);
+    node.update(client, first);
+
+    // what @PreDestroy runs when the node shuts down
+    node.flush();
+    LatestLocationStore restarted = new LatestLocationStore(clientRepo, transactionTemplate,
+        locationStore);
+
+    assertThat(restarted.getAll(Collections.singleton(client.getId())).get(client.getId())
+        .getId()).isEqualTo(first.getId());
+    Client reloaded = restarted.applyTo(clientRepo.findById(client.getId()).get());
+    assertThat(reloaded.getLatestDeviceInfo().getLat()).isEqualTo(7.0);
+  }
+
+  @Test
+  public void latestDeviceInfoFlushWritesOnlyChangedClients() {
+    Client client = createClientWithPushToken("latest.location.dirty@gmail.com", "910000055522",
+        "latest-location-dirty-token");
+    LatestLocationStore node = new LatestLocationStore(clientRepo, transactionTemplate,
+        locationStore);
+    LatestLocationStore otherNode = new LatestLocationStore(clientRepo, transactionTemplate,
+        locationStore);
+    node.update(client, storeFix(client, 7.0));
+    node.flush();
+    ClientDeviceInfo moved = storeFix(client, 9.0);
+    otherNode.update(client, moved);
+    otherNode.flush();
+
+    // nothing changed on this node since its last flush, so the newer row stays
+    node.flush();
+
+    assertThat(clientRepo.findLatestDeviceInfos(Collections.singleton(client.getId())).get(0)[1])
+        .isEqualTo(moved.getId());
+  }
+
+  @Test
+  public void latestDeviceInfoMovesToDroppedFixButRowKeepsStoredFix() {
+    Client client = createClientWithPushToken("latest.location.dropped@gmail.com",
+        "910000055533", "latest-location-dropped-token");
+    LatestLocationStore node = new LatestLocationStore(clientRepo, transactionTemplate,
+        locationStore);
+    ClientDeviceInfo stored = storeFix(client, 7.0);
+    node.update(client, stored);
+    ClientDeviceInfo dropped = ClientDeviceInfo.builder().lat(7.00001).lon(1.0).battery(5)
+        .timestamp(stored.getTimestamp() + 1000).build();
+
+    node.move(client, dropped);
+    node.flush();
+
+    assertThat(node.get(client)).isSameAs(dropped);
+    assertThat(clientRepo.findLatestDeviceInfos(Collections.singleton(client.getId())).get(0)[1])
+        .isEqualTo(stored.getId());
+  }
+
+  @SuppressWarnings("rawtypes")
+  @Test
+  public void actuatorMetricsNeedAuthentication() {
+    Client c = buildClient("actuator.metrics@gmail.com", "910000055544", PASSWORD, true);
+    testRestTemplate.postForEntity("/api/clients",
+        buildClientRequest(c, new HttpHeaders(), "pervez.jpg"), Client.class);
+    Map jwtMap = login(c.getEmail(), PASSWORD).getBody();
+    HttpHeaders headers = new HttpHeaders();
+    headers.set("Authorization", "Bearer " + jwtMap.get("access_token"));
+
+    ResponseEntity<String> health = testRestTemplate.getForEntity("/actuator/health",
+        String.class);
+    ResponseEntity<String> anonymous = testRestTemplate.getForEntity("/actuator/metrics",
+        String.class);
+    ResponseEntity<String> authenticated = testRestTemplate.exchange("/actuator/metrics",
+        HttpMethod.GET, new HttpEntity<>(headers), String.class);
+
+    assertThat(health.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(anonymous.getStatusCode()).isEqualTo(HttpStatus.UNAUTHORIZED);
+    assertThat(authenticated.getStatusCode()).isEqualTo(HttpStatus.OK);
+  }
+
+  @Test
+  public void schemaKeepsForeignKeysIntoLocationHistoryWithoutPartitioning() {
+    List<String> referencing = jdbcTemplate.execute((ConnectionCallback<List<String>>) c -> {
+      List<String> tables = new ArrayList<>();
+      try (ResultSet rs = c.getMetaData().getExportedKeys(null, null, "CLIENT_DEVICE_INFO")) {
+        while (rs.next()) {
+          tables.add(rs.getString("FKTABLE_NAME"));
+        }
+      }
+      return tables;
+    });
+
+    assertThat(referencing).contains("CLIENT", "MESSAGE");
+  }
+
+  private ClientDeviceInfo storeFix(Client client, double lat) {
+    return locationStore.append(client, Collections.singletonList(ClientDeviceInfo.builder()
+        .lat(lat).lon(1.0).altitude(1.0).speed(1.0).accuracy(1.0).bearing(1.0).battery(1)
+        .provider("1").timestamp(System.currentTimeMillis()).build())).get(0);
+  }
+
+  private Client createClientWithPushToken(String email, String cellNo, String pushToken) {
+    Client c = buildClient(email, cellNo, PASSWORD, true);
+    HttpEntity<?> req = buildClientRequest(c, new HttpHeaders(), "pervez.jpg");
+    Client client = testRestTemplate.postForEntity("/api/clients", req, Client.class).getBody();
+    Client saved = clientRepo.findById(client.getId()).get();
+    saved.setPushNotificationId(pushToken);
+    return clientRepo.save(saved);
+  }
+
   @SuppressWarnings("rawtypes")
   private HttpHeaders createLoginAndLoadAuthorizationOfUser(String email, String cellNo,
       String password) {
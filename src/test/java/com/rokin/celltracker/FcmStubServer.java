@@ -0,0 +1,235 @@
+package com.rokin.celltracker;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for the FCM legacy HTTP endpoint, for load tests of the push path. Every request is
+ * answered after a configurable latency; each registration id in it fails with the configured
+ * error code at the error rate and otherwise succeeds, at the canonical rate with a canonical id.
+ * Messages whose text is {@code loadtest:<nanoTime>} are timed from that instant to their arrival
+ * here. Embed it with {@link #start()} or run the main method and point {@code fcm.fcm-url} at
+ * it, e.g. with the loadtest profile.
+ */
+public class FcmStubServer {
+
+  public static final String MESSAGE_PREFIX = "loadtest:";
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong results = new AtomicLong();
+  private final AtomicLong multicastId = new AtomicLong();
+  private final ConcurrentLinkedQueue<Long> latenciesNanos = new ConcurrentLinkedQueue<>();
+
+  private final int port;
+  private final int threads;
+  private final long latencyMs;
+  private final double errorRate;
+  private final String errorCode;
+  private final double canonicalRate;
+  private HttpServer server;
+  private ExecutorService executor;
+
+  /**
+   * Create stub server.
+   *
+   * @param port
+   *          port to listen on, 0 for any free port
+   * @param threads
+   *          number of requests handled at the same time
+   * @param latencyMs
+   *          mean response latency, the actual one is uniform in [latency/2, latency*3/2]
+   * @param errorRate
+   *          fraction of registration ids that fail
+   * @param errorCode
+   *          FCM error code of failed ids, e.g. Unavailable or NotRegistered
+   * @param canonicalRate
+   *          fraction of successful ids answered with a canonical id
+   */
+  public FcmStubServer(int port, int threads, long latencyMs, double errorRate, String errorCode,
+      double canonicalRate) {
+    this.port = port;
+    this.threads = threads;
+    this.latencyMs = latencyMs;
+    this.errorRate = errorRate;
+    this.errorCode = errorCode;
+    this.canonicalRate = canonicalRate;
+  }
+
+  /**
+   * Run stub server until killed, configured by system properties.
+   *
+   * @param args
+   *          unused
+   * @throws IOException
+   *           when the port is taken
+   */
+  public static void main(String[] args) throws IOException {
+    FcmStubServer server = fromSystemProperties(Integer.getInteger("fcm.stub.port", 9099));
+    server.start();
+    System.out.println("FCM stub listening on " + server.getUrl());
+  }
+
+  /**
+   * Create stub server configured by the fcm.stub.* system properties.
+   *
+   * @param port
+   *          port to listen on, 0 for any free port
+   * @return
+   */
+  public static FcmStubServer fromSystemProperties(int port) {
+    return new FcmStubServer(port, Integer.getInteger("fcm.stub.threads", 64),
+        Long.getLong("fcm.stub.latency-ms", 50),
+        Double.parseDouble(System.getProperty("fcm.stub.error-rate", "0")),
+        System.getProperty("fcm.stub.error-code", "Unavailable"),
+        Double.parseDouble(System.getProperty("fcm.stub.canonical-rate", "0")));
+  }
+
+  /**
+   * Start listening.
+   *
+   * @throws IOException
+   *           when the port is taken
+   */
+  public void start() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+    executor = Executors.newFixedThreadPool(threads);
+    server.setExecutor(executor);
+    server.createContext("/fcm/send", this::handle);
+    server.start();
+  }
+
+  /**
+   * Stop listening.
+   */
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  public String getUrl() {
+    return "http://localhost:" + server.getAddress().getPort() + "/fcm/send";
+  }
+
+  public long getRequests() {
+    return requests.get();
+  }
+
+  public long getResults() {
+    return results.get();
+  }
+
+  /**
+   * Get latencies of timed messages from their send instant to their arrival, sorted.
+   *
+   * @return
+   */
+  public List<Long> getLatenciesNanos() {
+    List<Long> latencies = new ArrayList<>(latenciesNanos);
+    Collections.sort(latencies);
+    return latencies;
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    long arrivedAt = System.nanoTime();
+    try {
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        respond(exchange, 405, "");
+        return;
+      }
+      JsonNode request;
+      try (InputStream body = exchange.getRequestBody()) {
+        request = objectMapper.readTree(body);
+      }
+      requests.incrementAndGet();
+      recordLatencies(request.path("data"), arrivedAt);
+      List<String> registrationIds = new ArrayList<>();
+      if (request.has("registration_ids")) {
+        request.get("registration_ids").forEach(id -> registrationIds.add(id.asText()));
+      } else if (request.has("to")) {
+        registrationIds.add(request.get("to").asText());
+      }
+      sleep();
+      respond(exchange, 200, objectMapper.writeValueAsString(response(registrationIds)));
+    } catch (IOException | RuntimeException ex) {
+      respond(exchange, 400, String.valueOf(ex.getMessage()));
+    }
+  }
+
+  private ObjectNode response(List<String> registrationIds) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    ObjectNode response = objectMapper.createObjectNode();
+    ArrayNode resultItems = response.putArray("results");
+    int success = 0;
+    int failure = 0;
+    int canonical = 0;
+    for (String registrationId : registrationIds) {
+      ObjectNode result = resultItems.addObject();
+      if (random.nextDouble() < errorRate) {
+        result.put("error", errorCode);
+        failure++;
+        continue;
+      }
+      result.put("message_id", "0:" + random.nextLong(Long.MAX_VALUE));
+      if (random.nextDouble() < canonicalRate) {
+        result.put("registration_id", registrationId + "-canonical");
+        canonical++;
+      }
+      success++;
+    }
+    results.addAndGet(registrationIds.size());
+    response.put("multicast_id", multicastId.incrementAndGet());
+    response.put("success", success);
+    response.put("failure", failure);
+    response.put("canonical_ids", canonical);
+    return response;
+  }
+
+  private void recordLatencies(JsonNode data, long arrivedAt) {
+    if (data.has("messages")) {
+      data.get("messages").forEach(message -> recordLatencies(message, arrivedAt));
+      return;
+    }
+    String text = data.path("message").asText("");
+    if (text.startsWith(MESSAGE_PREFIX)) {
+      latenciesNanos.add(arrivedAt - Long.parseLong(text.substring(MESSAGE_PREFIX.length())));
+    }
+  }
+
+  private void sleep() {
+    if (latencyMs <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(latencyMs / 2 + ThreadLocalRandom.current().nextLong(latencyMs + 1));
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
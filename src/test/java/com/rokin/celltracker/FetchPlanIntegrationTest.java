@@ -0,0 +1,151 @@
+package com.rokin.celltracker;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.rokin.celltracker.CircleIntegrationTest.ClientWithHeaders;
+import com.rokin.celltracker.domain.Circle;
+import com.rokin.celltracker.domain.ClientFavoritePlace;
+import com.rokin.celltracker.service.LatestLocationStore;
+import com.rokin.celltracker.service.LocationTierStore;
+import javax.annotation.Resource;
+import javax.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.web.util.UriComponentsBuilder;
+
+/**
+ * Number of SQL statements per read endpoint, so a mapping falling back to eager loading or an
+ * endpoint loading per member shows up as a failure. Every endpoint is called once to warm the
+ * in-memory stores, the second call is counted.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT)
+@ActiveProfiles("test")
+public class FetchPlanIntegrationTest {
+
+  private static final String PASSWORD = "password";
+  private static final int MEMBERS = 3;
+
+  @Value("${security.jwt.client-id}")
+  private String clientId;
+  @Value("${security.jwt.client-secret}")
+  private String clientSecret;
+
+  @Resource
+  private TestRestTemplate testRestTemplate;
+  @Resource
+  private EntityManagerFactory entityManagerFactory;
+  @Resource
+  private LatestLocationStore latestLocationStore;
+  @Resource
+  private LocationTierStore locationTierStore;
+
+  private static ClientWithHeaders owner;
+  private static Circle circle;
+
+  /**
+   * Create a circle with a few members and a favorite place of the owner, once.
+   */
+  @Before
+  public void setUp() {
+    if (owner != null) {
+      return;
+    }
+    owner = createClientAndAuthHeaders("fetchplan.owner@gmail.com", "440122002200", PASSWORD);
+    String uri = UriComponentsBuilder.fromPath("/api/circles").queryParam("circlename", "circle-1")
+        .toUriString();
+    circle = testRestTemplate.exchange(uri, HttpMethod.POST,
+        new HttpEntity<>(owner.getHeaders()), Circle.class).getBody();
+    for (int i = 1; i <= MEMBERS; i++) {
+      ClientWithHeaders member = createClientAndAuthHeaders("fetchplan.member" + i + "@gmail.com",
+          "44012200221" + i, PASSWORD);
+      testRestTemplate.exchange(UriComponentsBuilder.fromPath("/api/circles/")
+          .path(circle.getCode()).path("/join").toUriString(), HttpMethod.GET,
+          new HttpEntity<>(member.getHeaders()), Circle.class);
+    }
+    HttpHeaders headers = new HttpHeaders();
+    headers.putAll(owner.getHeaders());
+    headers.setContentType(MediaType.APPLICATION_JSON);
+    ClientFavoritePlace favoritePlace = ClientFavoritePlace.builder().lat(23.8103).lon(90.4125)
+        .tagName("Home").active(true).build();
+    testRestTemplate.exchange("/api/clients/" + owner.getClient().getId() + "/favoriteplaces",
+        HttpMethod.POST, new HttpEntity<>(favoritePlace, headers), ClientFavoritePlace.class);
+  }
+
+  @Test
+  public void getClientDetails() {
+    assertThat(countStatements("/api/clients/details")).isEqualTo(1);
+  }
+
+  @Test
+  public void getClient() {
+    assertThat(countStatements("/api/clients/" + owner.getClient().getId())).isEqualTo(1);
+  }
+
+  @Test
+  public void getClients() {
+    // page of ids, count, clients with roles
+    assertThat(countStatements("/api/clients?page=0&size=10")).isEqualTo(3);
+  }
+
+  @Test
+  public void getCircles() {
+    // client, memberships with circles and owners
+    assertThat(countStatements("/api/circles")).isEqualTo(2);
+  }
+
+  @Test
+  public void getCircleMembers() {
+    // client, members with roles
+    assertThat(countStatements("/api/circles/" + circle.getId() + "/members")).isEqualTo(2);
+  }
+
+  @Test
+  public void getCircleLocations() {
+    assertThat(countStatements("/api/circles/" + circle.getId() + "/locations")).isEqualTo(1);
+  }
+
+  @Test
+  public void getDashboard() {
+    // client with roles, circles with owners, members with roles, favorite places
+    assertThat(countStatements("/api/clients/dashboard")).isEqualTo(4);
+  }
+
+  private long countStatements(String uri) {
+    ResponseEntity<String> warmUp = testRestTemplate.exchange(uri, HttpMethod.GET,
+        new HttpEntity<>(owner.getHeaders()), String.class);
+    assertThat(warmUp.getStatusCode()).isEqualTo(HttpStatus.OK);
+    // write back pending work now, so no background flush is counted
+    latestLocationStore.flush();
+    locationTierStore.flush();
+    Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+    statistics.clear();
+    ResponseEntity<String> responseEntity = testRestTemplate.exchange(uri, HttpMethod.GET,
+        new HttpEntity<>(owner.getHeaders()), String.class);
+    long statements = statistics.getPrepareStatementCount();
+    assertThat(responseEntity.getStatusCode()).isEqualTo(HttpStatus.OK);
+    assertThat(responseEntity.getBody()).doesNotContain("hibernateLazyInitializer");
+    return statements;
+  }
+
+  private ClientWithHeaders createClientAndAuthHeaders(String email, String cellNo,
+      String password) {
+    return CircleIntegrationTest.createClientAndAuthHeaders(testRestTemplate, clientId,
+        clientSecret, email, cellNo, password);
+  }
+}
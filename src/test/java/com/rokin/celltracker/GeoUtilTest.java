@@ -0,0 +1,32 @@
+package com.rokin.celltracker;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import org.junit.Test;
+
+public class GeoUtilTest {
+
+  @Test
+  public void distance_isZeroForSamePoint() {
+    assertThat(GeoUtil.distance(23.81, 90.41, 23.81, 90.41)).isEqualTo(0.0);
+  }
+
+  @Test
+  public void distance_ofOneDegreeAlongEquatorAndMeridian() {
+    assertThat(GeoUtil.distance(0, 0, 0, 1)).isCloseTo(111195.08, within(0.1));
+    assertThat(GeoUtil.distance(0, 0, 1, 0)).isCloseTo(111195.08, within(0.1));
+  }
+
+  @Test
+  public void distance_shrinksWithLatitudeAlongParallel() {
+    assertThat(GeoUtil.distance(60, 0, 60, 1)).isCloseTo(111195.08 / 2, within(100.0));
+  }
+
+  @Test
+  public void distance_isSymmetricAndHandlesAntipodes() {
+    assertThat(GeoUtil.distance(23.81, 90.41, 22.36, 91.78))
+        .isEqualTo(GeoUtil.distance(22.36, 91.78, 23.81, 90.41));
+    assertThat(GeoUtil.distance(0, 0, 0, 180)).isCloseTo(Math.PI * 6371008.8, within(0.1));
+  }
+}
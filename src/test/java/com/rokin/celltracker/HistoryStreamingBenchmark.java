@@ -0,0 +1,178 @@
+package com.rokin.celltracker;
+
+import com.rokin.celltracker.domain.Circle;
+import com.rokin.celltracker.domain.Client;
+import com.rokin.celltracker.domain.Client.Role;
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import com.rokin.celltracker.service.CircleService;
+import com.rokin.celltracker.service.ClientService;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.support.BasicAuthorizationInterceptor;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Compares the blocking list history endpoint against the backpressured stream endpoint under
+ * concurrent readers: throughput with fast readers and peak server heap with fast and slow
+ * readers. Client and server share the JVM, readers discard what they read so the heap is the
+ * server's. Not a unit test, run the main method with a fixed heap, e.g. -Xmx1g.
+ */
+public class HistoryStreamingBenchmark {
+
+  private static final int FIXES = 50000;
+  private static final int READERS = 16;
+  private static final int ROUNDS = 5;
+  private static final int SLOW_READ_DELAY_MS = 5;
+  private static final String EMAIL = "history.streaming.benchmark@gmail.com";
+  private static final String PASSWORD = "password";
+
+  /**
+   * Run benchmark.
+   *
+   * @param args
+   *          unused
+   * @throws Exception
+   *           when a reader fails
+   */
+  public static void main(String[] args) throws Exception {
+    ConfigurableApplicationContext context = new SpringApplicationBuilder(
+        CelltrackerApplication.class).profiles("test").run("--server.port=0");
+    try {
+      Environment env = context.getEnvironment();
+      String root = "http://localhost:" + env.getProperty("local.server.port")
+          + env.getProperty("server.servlet.context-path", "");
+      String historyUri = root + setUp(context);
+      String range = "?fromtime=0&totime=" + System.currentTimeMillis();
+      HttpHeaders headers = new HttpHeaders();
+      headers.set("Authorization", "Bearer " + login(root, env));
+
+      String listUri = historyUri + range;
+      String streamUri = historyUri + "/stream" + range + "&pagesize=1000";
+
+      run("list", listUri, MediaType.APPLICATION_JSON, headers, 0);
+      run("stream", streamUri, MediaType.APPLICATION_STREAM_JSON, headers, 0);
+      run("list", listUri, MediaType.APPLICATION_JSON, headers, SLOW_READ_DELAY_MS);
+      run("stream", streamUri, MediaType.APPLICATION_STREAM_JSON, headers, SLOW_READ_DELAY_MS);
+    } finally {
+      context.close();
+    }
+  }
+
+  private static String setUp(ConfigurableApplicationContext context) {
+    ClientService clientService = context.getBean(ClientService.class);
+    Client client = clientService.addClient(Client.builder().email(EMAIL).cellNo("449999000001")
+        .password(PASSWORD).roles(new ArrayList<>(Arrays.asList(Role.CLIENT))).enabled(true)
+        .deviceId("deviceId").pushNotificationId("notId").build(), null);
+    Circle circle = context.getBean(CircleService.class).addCircle(EMAIL, "benchmark");
+    long start = System.currentTimeMillis() - FIXES * 1000L;
+    for (int offset = 0; offset < FIXES; offset += 1000) {
+      List<ClientDeviceInfo> fixes = new ArrayList<>();
+      for (int i = offset; i < offset + 1000; i++) {
+        fixes.add(ClientDeviceInfo.builder().lat(10.0 + i * 0.0001).lon(20.0).altitude(1.0)
+            .accuracy(5.0).speed(1.0).bearing(90.0).provider("gps").battery(50)
+            .timestamp(start + i * 1000L).build());
+      }
+      clientService.updateClientDeviceInfos(client, fixes);
+    }
+    return "/api/circles/" + circle.getId() + "/members/" + client.getId() + "/locationhistory";
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static String login(String root, Environment env) {
+    RestTemplate restTemplate = new RestTemplate();
+    restTemplate.getInterceptors().add(new BasicAuthorizationInterceptor(
+        env.getProperty("security.jwt.client-id"), env.getProperty("security.jwt.client-secret")));
+    Map token = restTemplate.postForObject(root
+        + "/oauth/token?grant_type=password&username={username}&password={password}", null,
+        Map.class, EMAIL, PASSWORD);
+    return (String) token.get("access_token");
+  }
+
+  private static void run(String name, String uri, MediaType accept, HttpHeaders headers,
+      int readDelayMs) throws Exception {
+    RestTemplate restTemplate = new RestTemplate();
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    System.gc();
+    long baseline = memory.getHeapMemoryUsage().getUsed();
+    AtomicLong peak = new AtomicLong(baseline);
+    AtomicBoolean running = new AtomicBoolean(true);
+    Thread sampler = new Thread(() -> {
+      while (running.get()) {
+        peak.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+        try {
+          Thread.sleep(5);
+        } catch (InterruptedException ex) {
+          return;
+        }
+      }
+    });
+    sampler.setDaemon(true);
+    sampler.start();
+
+    ExecutorService readers = Executors.newFixedThreadPool(READERS);
+    List<Future<Long>> results = new ArrayList<>();
+    long start = System.nanoTime();
+    for (int reader = 0; reader < READERS; reader++) {
+      results.add(readers.submit(() -> {
+        long bytes = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+          bytes += restTemplate.execute(uri, HttpMethod.GET, request -> {
+            request.getHeaders().putAll(headers);
+            request.getHeaders().setAccept(Arrays.asList(accept));
+          }, response -> drain(response.getBody(), readDelayMs));
+        }
+        return bytes;
+      }));
+    }
+    long bytes = 0;
+    for (Future<Long> result : results) {
+      bytes += result.get();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    readers.shutdown();
+    readers.awaitTermination(1, TimeUnit.MINUTES);
+    running.set(false);
+    sampler.join();
+
+    long fixes = (long) READERS * ROUNDS * (FIXES + 1);
+    System.out.printf("%-6s %s readers: %9.0f fixes/s, %6.1f MB read, peak heap +%6.1f MB%n",
+        name, readDelayMs > 0 ? "slow" : "fast", fixes / seconds, bytes / 1e6,
+        (peak.get() - baseline) / 1e6);
+  }
+
+  private static long drain(InputStream body, int readDelayMs) throws IOException {
+    byte[] buffer = new byte[16384];
+    long bytes = 0;
+    int read;
+    while ((read = body.read(buffer)) != -1) {
+      bytes += read;
+      if (readDelayMs > 0) {
+        try {
+          Thread.sleep(readDelayMs);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+    return bytes;
+  }
+}
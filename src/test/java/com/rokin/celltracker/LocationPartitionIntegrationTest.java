@@ -0,0 +1,132 @@
+package com.rokin.celltracker;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.rokin.celltracker.domain.Client;
+import com.rokin.celltracker.domain.Client.Role;
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import com.rokin.celltracker.domain.ClientLocationRollup.Resolution;
+import com.rokin.celltracker.domain.Message;
+import com.rokin.celltracker.domain.Message.MessageScope;
+import com.rokin.celltracker.domain.Message.MessageType;
+import com.rokin.celltracker.repository.ClientDeviceInfoRepository;
+import com.rokin.celltracker.repository.ClientRepository;
+import com.rokin.celltracker.repository.MessageRepository;
+import com.rokin.celltracker.service.LocationPartitionManager;
+import com.rokin.celltracker.service.LocationTierStore;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.Resource;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+
+/**
+ * Partition lifecycle on the emulated H2 partitioning, in a database of its own so the
+ * partitioned schema does not leak into the other integration tests.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT, properties = {
+    "spring.datasource.url=jdbc:h2:mem:partitioned;DB_CLOSE_DELAY=-1;DB_CLOSE_ON_EXIT=FALSE",
+    "location.partitioning.enabled=true", "location.partitioning.interval=DAY",
+    "location.partitioning.precreate=1", "location.partitioning.retention=2" })
+@ActiveProfiles("test")
+public class LocationPartitionIntegrationTest {
+
+  private static final long HOUR = 3600 * 1000L;
+
+  @Resource
+  private LocationPartitionManager locationPartitionManager;
+  @Resource
+  private ClientRepository clientRepo;
+  @Resource
+  private ClientDeviceInfoRepository clientDeviceInfoRepo;
+  @Resource
+  private MessageRepository messageRepo;
+  @Resource
+  private LocationTierStore locationTierStore;
+  @Resource
+  private JdbcTemplate jdbcTemplate;
+
+  @Test
+  public void schemaHasNoForeignKeysIntoLocationHistory() {
+    List<String> referencing = jdbcTemplate.execute((ConnectionCallback<List<String>>) c -> {
+      DatabaseMetaData metaData = c.getMetaData();
+      List<String> tables = new ArrayList<>();
+      try (ResultSet rs = metaData.getExportedKeys(null, null, "CLIENT_DEVICE_INFO")) {
+        while (rs.next()) {
+          tables.add(rs.getString("FKTABLE_NAME"));
+        }
+      }
+      return tables;
+    });
+
+    assertThat(referencing).isEmpty();
+  }
+
+  @Test
+  public void partitionsAreCreatedAheadAndDroppedPastRetention() {
+    LocalDate today = LocalDate.of(2030, 1, 10);
+    Client client = clientRepo.save(Client.builder().email("partition@gmail.com")
+        .cellNo("930000011111").password("password").enabled(true)
+        .roles(new ArrayList<>(Arrays.asList(Role.CLIENT))).build());
+    locationPartitionManager.maintain(today);
+    ClientDeviceInfo expired = clientDeviceInfoRepo.save(fix(client, startOf(today) + HOUR));
+    ClientDeviceInfo kept = clientDeviceInfoRepo
+        .save(fix(client, startOf(today.plusDays(4)) + HOUR));
+    Message message = messageRepo.save(Message.builder().fromClientId(client.getId())
+        .meassgeType(MessageType.HELPALERT).messageScope(MessageScope.CIRCLE)
+        .deviceInfo(expired).isSent(false).build());
+    client.setLatestDeviceInfo(expired);
+    clientRepo.save(client);
+    locationTierStore.record(client.getId(), Arrays.asList(expired, kept));
+    locationTierStore.flush();
+    locationTierStore.record(client.getId(),
+        Arrays.asList(fix(client, startOf(today) + 2 * HOUR)));
+
+    assertThat(partitionNames()).contains("client_device_info_p20300110",
+        "client_device_info_p20300111");
+
+    locationPartitionManager.maintain(today.plusDays(5));
+
+    assertThat(partitionNames()).doesNotContain("client_device_info_p20300110",
+        "client_device_info_p20300111").contains("client_device_info_p20300115",
+            "client_device_info_p20300116");
+    assertThat(clientDeviceInfoRepo.existsById(expired.getId())).isFalse();
+    assertThat(clientDeviceInfoRepo.existsById(kept.getId())).isTrue();
+    assertThat(messageRepo.existsById(message.getId())).isTrue();
+    assertThat(jdbcTemplate.queryForObject(
+        "select device_info_id from message where id = ?", Long.class, message.getId())).isNull();
+    assertThat(jdbcTemplate.queryForObject(
+        "select latest_device_info_id from client where id = ?", Long.class, client.getId()))
+            .isNull();
+    assertThat(locationTierStore.getTier(client.getId(), Resolution.HOUR, startOf(today),
+        startOf(today.plusDays(1)))).isEmpty();
+    assertThat(locationTierStore.getTier(client.getId(), Resolution.HOUR,
+        startOf(today.plusDays(4)), startOf(today.plusDays(5)))).hasSize(1);
+  }
+
+  private List<String> partitionNames() {
+    return jdbcTemplate.queryForList("select name from client_device_info_partition",
+        String.class);
+  }
+
+  private static ClientDeviceInfo fix(Client client, long timestamp) {
+    return ClientDeviceInfo.builder().client(client).lat(23.81).lon(90.41).accuracy(5.0)
+        .provider("gps").battery(50).timestamp(timestamp).build();
+  }
+
+  private static long startOf(LocalDate day) {
+    return day.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+  }
+}
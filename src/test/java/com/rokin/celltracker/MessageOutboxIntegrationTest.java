@@ -0,0 +1,123 @@
+package com.rokin.celltracker;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.rokin.celltracker.CircleIntegrationTest.ClientWithHeaders;
+import com.rokin.celltracker.domain.Circle;
+import com.rokin.celltracker.domain.Message;
+import com.rokin.celltracker.domain.Message.MessageScope;
+import com.rokin.celltracker.domain.Message.MessageType;
+import com.rokin.celltracker.repository.MessageRepository;
+import de.bytefish.fcmjava.client.FcmClient;
+import de.bytefish.fcmjava.http.client.IFcmClient;
+import de.bytefish.fcmjava.requests.data.DataMulticastMessage;
+import de.bytefish.fcmjava.requests.data.DataUnicastMessage;
+import de.bytefish.fcmjava.responses.FcmMessageResponse;
+import javax.annotation.Resource;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.web.util.UriComponentsBuilder;
+
+/**
+ * Outbox delivery against an FCM that fails every request, in a database of its own so the
+ * failing client does not leak into the other integration tests.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT, properties = {
+    "spring.datasource.url=jdbc:h2:mem:outbox;DB_CLOSE_DELAY=-1;DB_CLOSE_ON_EXIT=FALSE" })
+@ActiveProfiles("test")
+public class MessageOutboxIntegrationTest {
+
+  private static final String PASSWORD = "password";
+
+  @Value("${security.jwt.client-id}")
+  private String clientId;
+  @Value("${security.jwt.client-secret}")
+  private String clientSecret;
+
+  @Resource
+  private TestRestTemplate testRestTemplate;
+  @Resource
+  private MessageRepository messageRepo;
+
+  @TestConfiguration
+  static class FailingFcmConfig {
+
+    @Bean
+    @Primary
+    public IFcmClient failingFcmClient(FcmSettings settings) {
+      return new FcmClient(settings) {
+        @Override
+        public FcmMessageResponse send(DataMulticastMessage message) {
+          throw new IllegalStateException("fcm unavailable");
+        }
+
+        @Override
+        public FcmMessageResponse send(DataUnicastMessage message) {
+          throw new IllegalStateException("fcm unavailable");
+        }
+      };
+    }
+  }
+
+  @Test
+  public void failedPushIsRecordedWithBackoff() throws InterruptedException {
+    ClientWithHeaders owner = createClientAndAuthHeaders("outbox.owner@gmail.com",
+        "552222841122");
+    ClientWithHeaders member = createClientAndAuthHeaders("outbox.member@gmail.com",
+        "552222841133");
+    String uri = UriComponentsBuilder.fromPath("/api/circles").queryParam("circlename", "circle-1")
+        .toUriString();
+    Circle circle = testRestTemplate.exchange(uri, HttpMethod.POST,
+        new HttpEntity<>(owner.getHeaders()), Circle.class).getBody();
+    testRestTemplate.exchange(UriComponentsBuilder.fromPath("/api/circles/")
+        .path(circle.getCode()).path("/join").toUriString(), HttpMethod.GET,
+        new HttpEntity<>(member.getHeaders()), Circle.class);
+    Message message = Message.builder().deviceInfo(owner.getClient().getLatestDeviceInfo())
+        .meassgeType(MessageType.REACHEDHOME).messageScope(MessageScope.CIRCLE)
+        .toCircleId(circle.getId()).build();
+    long pushedAt = System.currentTimeMillis();
+
+    ResponseEntity<String> responseEntity = testRestTemplate.exchange("/api/circles/push",
+        HttpMethod.POST, new HttpEntity<>(message, owner.getHeaders()), String.class);
+
+    assertThat(responseEntity.getStatusCode()).isEqualTo(HttpStatus.OK);
+    long deadline = System.currentTimeMillis() + 5000;
+    Message saved = findMessageFrom(owner.getClient().getId());
+    while (saved.getLastError() == null && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+      saved = findMessageFrom(owner.getClient().getId());
+    }
+    assertThat(saved.getLastError()).contains("fcm unavailable");
+    assertThat(saved.getIsSent()).isFalse();
+    assertThat(saved.getAttempts()).isEqualTo(1);
+    assertThat(saved.getNextAttemptAt()).isGreaterThan(pushedAt);
+  }
+
+  private ClientWithHeaders createClientAndAuthHeaders(String email, String cellNo) {
+    return CircleIntegrationTest.createClientAndAuthHeaders(testRestTemplate, clientId,
+        clientSecret, email, cellNo, PASSWORD);
+  }
+
+  private Message findMessageFrom(Long clientId) {
+    for (Message message : messageRepo.findAll()) {
+      if (clientId.equals(message.getFromClientId())) {
+        return message;
+      }
+    }
+    throw new AssertionError("no message from client " + clientId);
+  }
+}
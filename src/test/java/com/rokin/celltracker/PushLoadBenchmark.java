@@ -0,0 +1,206 @@
+package com.rokin.celltracker;
+
+import com.rokin.celltracker.domain.Circle;
+import com.rokin.celltracker.domain.Client;
+import com.rokin.celltracker.domain.Client.Role;
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import com.rokin.celltracker.domain.Message;
+import com.rokin.celltracker.domain.Message.MessageScope;
+import com.rokin.celltracker.domain.Message.MessageType;
+import com.rokin.celltracker.service.CircleService;
+import com.rokin.celltracker.service.ClientService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Data;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Drives {@link CircleService#sendMessage} at a fixed rate against an {@link FcmStubServer} and
+ * reports push throughput, time queued for a push thread and latency percentiles: accepting a
+ * message, delivering it once dispatched, and end to end from the intended send instant to its
+ * arrival at the stub. Messages are sent from a pool at their scheduled instants and timed from
+ * those, so a stalled sender does not hide the delay it causes. Not a unit test, run the main
+ * method and tune it with system properties, e.g. -Dloadtest.rate=500 -Dfcm.stub.latency-ms=100.
+ */
+public class PushLoadBenchmark {
+
+  private static final String PASSWORD = "password";
+
+  private static final int RATE = Integer.getInteger("loadtest.rate", 200);
+  private static final int SECONDS = Integer.getInteger("loadtest.seconds", 30);
+  private static final int CIRCLES = Integer.getInteger("loadtest.circles", 10);
+  private static final int MEMBERS = Integer.getInteger("loadtest.members", 10);
+  private static final int SENDERS = Integer.getInteger("loadtest.senders", 32);
+  private static final MessageType TYPE = MessageType
+      .valueOf(System.getProperty("loadtest.type", "HELPALERT"));
+  private static final long DRAIN_TIMEOUT_MS = 60000;
+
+  /**
+   * Run load test.
+   *
+   * @param args
+   *          unused
+   * @throws Exception
+   *           when the stub cannot start
+   */
+  public static void main(String[] args) throws Exception {
+    FcmStubServer stub = FcmStubServer.fromSystemProperties(0);
+    stub.start();
+    ConfigurableApplicationContext context = new SpringApplicationBuilder(
+        CelltrackerApplication.class).profiles("test", "loadtest")
+            .run("--server.port=0", "--fcm.fcm-url=" + stub.getUrl());
+    try {
+      run(context, stub, setUp(context));
+    } finally {
+      context.close();
+      stub.stop();
+    }
+  }
+
+  @Data
+  private static class Sender {
+    private final String username;
+    private final String circleId;
+  }
+
+  /**
+   * Create circles with members, every member with its own registration id.
+   *
+   * @return owner of every circle
+   */
+  private static List<Sender> setUp(ConfigurableApplicationContext context) {
+    ClientService clientService = context.getBean(ClientService.class);
+    CircleService circleService = context.getBean(CircleService.class);
+    List<Sender> senders = new ArrayList<>();
+    for (int c = 0; c < CIRCLES; c++) {
+      String owner = addClient(clientService, c, 0);
+      Circle circle = circleService.addCircle(owner, "loadtest");
+      for (int m = 1; m < MEMBERS; m++) {
+        circleService.joinCircle(addClient(clientService, c, m), circle.getCode());
+      }
+      senders.add(new Sender(owner, circle.getId()));
+    }
+    return senders;
+  }
+
+  private static String addClient(ClientService clientService, int circle, int member) {
+    String email = "push.loadtest." + circle + "." + member + "@gmail.com";
+    clientService.addClient(Client.builder().email(email)
+        .cellNo(String.format("4488%04d%04d", circle, member)).password(PASSWORD)
+        .roles(new ArrayList<>(Arrays.asList(Role.CLIENT))).enabled(true).deviceId("deviceId")
+        .pushNotificationId("loadtest-token-" + circle + "-" + member).build(), null);
+    return email;
+  }
+
+  private static void run(ConfigurableApplicationContext context, FcmStubServer stub,
+      List<Sender> circleOwners) throws InterruptedException {
+    CircleService circleService = context.getBean(CircleService.class);
+    MeterRegistry meterRegistry = context.getBean(MeterRegistry.class);
+    double sentBefore = meterRegistry.counter("push.sent").count();
+    ConcurrentLinkedQueue<Long> acceptNanos = new ConcurrentLinkedQueue<>();
+    AtomicLong rejected = new AtomicLong();
+    AtomicInteger next = new AtomicInteger();
+    ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+    ExecutorService senders = Executors.newFixedThreadPool(SENDERS);
+    int total = RATE * SECONDS;
+    long periodNanos = TimeUnit.SECONDS.toNanos(1) / RATE;
+
+    long start = System.nanoTime();
+    ticker.scheduleAtFixedRate(() -> {
+      int index = next.getAndIncrement();
+      if (index >= total) {
+        return;
+      }
+      long intendedAt = start + index * periodNanos;
+      senders.execute(() -> {
+        Sender sender = circleOwners.get(index % circleOwners.size());
+        Message message = Message.builder().toCircleId(sender.getCircleId())
+            .messageScope(MessageScope.CIRCLE).meassgeType(TYPE)
+            .message(FcmStubServer.MESSAGE_PREFIX + intendedAt)
+            .deviceInfo(ClientDeviceInfo.builder().lat(23.81).lon(90.41).accuracy(5.0)
+                .provider("gps").battery(50).timestamp(System.currentTimeMillis()).build())
+            .build();
+        try {
+          circleService.sendMessage(sender.getUsername(), message);
+          acceptNanos.add(System.nanoTime() - intendedAt);
+        } catch (RuntimeException ex) {
+          rejected.incrementAndGet();
+        }
+      });
+    }, 0, periodNanos, TimeUnit.NANOSECONDS);
+
+    Thread.sleep(TimeUnit.SECONDS.toMillis(SECONDS));
+    while (next.get() < total) {
+      Thread.sleep(10);
+    }
+    ticker.shutdown();
+    senders.shutdown();
+    senders.awaitTermination(1, TimeUnit.MINUTES);
+    double offeredSeconds = (System.nanoTime() - start) / 1e9;
+
+    long accepted = acceptNanos.size();
+    long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+    while (meterRegistry.counter("push.sent").count() - sentBefore < accepted
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    double sent = meterRegistry.counter("push.sent").count() - sentBefore;
+
+    List<Long> accept = new ArrayList<>(acceptNanos);
+    Collections.sort(accept);
+    System.out.printf("offered  %8.0f msg/s, %d accepted, %d rejected, %d recipients per msg%n",
+        total / offeredSeconds, accepted, rejected.get(), MEMBERS - 1);
+    System.out.printf("pushed   %8.0f msg/s, %.0f sent, %.0f failed, %.0f timed out,"
+        + " %d FCM requests%n", sent / seconds, sent,
+        meterRegistry.counter("push.failed").count(),
+        meterRegistry.counter("push.timedout").count(), stub.getRequests());
+    System.out.printf("accept      p50 %8.1f ms  p99 %8.1f ms%n", percentile(accept, 0.5),
+        percentile(accept, 0.99));
+    report("queued", meterRegistry.timer("push.queue.wait"));
+    report("send", meterRegistry.timer("push.send"));
+    report("delivery", meterRegistry.timer("push.delivery"));
+    List<Long> endToEnd = stub.getLatenciesNanos();
+    if (endToEnd.isEmpty()) {
+      System.out.println("end-to-end  no timed message reached the stub");
+    } else {
+      System.out.printf("end-to-end  p50 %8.1f ms  p99 %8.1f ms  (%d messages)%n",
+          percentile(endToEnd, 0.5), percentile(endToEnd, 0.99), endToEnd.size());
+    }
+  }
+
+  private static void report(String name, Timer timer) {
+    double p50 = Double.NaN;
+    double p99 = Double.NaN;
+    for (ValueAtPercentile value : timer.takeSnapshot().percentileValues()) {
+      if (value.percentile() == 0.5) {
+        p50 = value.value(TimeUnit.MILLISECONDS);
+      } else if (value.percentile() == 0.99) {
+        p99 = value.value(TimeUnit.MILLISECONDS);
+      }
+    }
+    System.out.printf("%-11s p50 %8.1f ms  p99 %8.1f ms  max %8.1f ms%n", name, p50, p99,
+        timer.max(TimeUnit.MILLISECONDS));
+  }
+
+  private static double percentile(List<Long> sortedNanos, double percentile) {
+    if (sortedNanos.isEmpty()) {
+      return Double.NaN;
+    }
+    int index = (int) Math.ceil(percentile * sortedNanos.size()) - 1;
+    return sortedNanos.get(Math.max(0, index)) / 1e6;
+  }
+}
@@ -0,0 +1,56 @@
+package com.rokin.celltracker.codec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class LocationArchiveCodecTest {
+
+  @Test
+  public void encodeDecode_isLossless() throws IOException {
+    List<ClientDeviceInfo> fixes = LocationFixCodecTest.buildFixes(500);
+    fixes.get(3).setAltitude(null);
+    fixes.get(7).setProvider(null);
+    fixes.get(9).setBattery(null);
+    fixes.get(11).setId(null);
+    fixes.get(13).setLat(-0.0);
+    fixes.get(17).setSpeed(Double.NaN);
+
+    List<ClientDeviceInfo> decoded = LocationArchiveCodec.decode(LocationArchiveCodec
+        .encode(fixes));
+
+    assertThat(decoded).isEqualTo(fixes);
+  }
+
+  @Test
+  public void encodeDecode_handlesEmptyAndSingleFix() throws IOException {
+    ClientDeviceInfo fix = ClientDeviceInfo.builder().id(Long.MIN_VALUE).timestamp(Long.MAX_VALUE)
+        .lat(Double.MIN_VALUE).build();
+
+    assertThat(LocationArchiveCodec.decode(LocationArchiveCodec.encode(Arrays.asList())))
+        .isEmpty();
+    assertThat(LocationArchiveCodec.decode(LocationArchiveCodec.encode(Arrays.asList(fix))))
+        .containsExactly(fix);
+  }
+
+  @Test
+  public void encode_isMuchSmallerThanRows() {
+    List<ClientDeviceInfo> fixes = LocationFixCodecTest.buildFixes(1000);
+
+    int archiveSize = LocationArchiveCodec.encode(fixes).length;
+
+    // a client_device_info row holds 11 eight byte wide columns before any row overhead
+    assertThat(archiveSize * 4).isLessThan(fixes.size() * 11 * 8);
+  }
+
+  @Test(expected = IOException.class)
+  public void decode_truncatedInput_throws() throws IOException {
+    byte[] bytes = LocationArchiveCodec.encode(LocationFixCodecTest.buildFixes(10));
+
+    LocationArchiveCodec.decode(Arrays.copyOf(bytes, bytes.length / 2));
+  }
+}
@@ -0,0 +1,72 @@
+package com.rokin.celltracker.codec;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Compares payload size and encode/decode cost of {@link LocationFixCodec} against the Jackson
+ * JSON path. Not a unit test, run the main method.
+ */
+public class LocationFixCodecBenchmark {
+
+  private static final int FIXES = 1000;
+  private static final int WARMUP_ROUNDS = 2000;
+  private static final int ROUNDS = 5000;
+
+  /**
+   * Run benchmark.
+   * 
+   * @param args
+   *          unused
+   * @throws IOException
+   *           never
+   */
+  public static void main(String[] args) throws IOException {
+    ObjectMapper objectMapper = new ObjectMapper();
+    TypeReference<List<ClientDeviceInfo>> listType = new TypeReference<List<ClientDeviceInfo>>() {
+    };
+    List<ClientDeviceInfo> fixes = LocationFixCodecTest.buildFixes(FIXES);
+    byte[] binary = LocationFixCodecTest.encode(fixes);
+    byte[] json = objectMapper.writeValueAsBytes(fixes);
+    System.out.printf("payload for %d fixes: binary %d bytes, json %d bytes (%.1fx)%n", FIXES,
+        binary.length, json.length, (double) json.length / binary.length);
+
+    long sink = 0;
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      sink += LocationFixCodecTest.encode(fixes).length;
+      sink += LocationFixCodecTest.decode(binary).size();
+      sink += objectMapper.writeValueAsBytes(fixes).length;
+      sink += objectMapper.<List<ClientDeviceInfo>>readValue(json, listType).size();
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      sink += LocationFixCodecTest.encode(fixes).length;
+    }
+    report("binary encode", start);
+    start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      sink += LocationFixCodecTest.decode(binary).size();
+    }
+    report("binary decode", start);
+    start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      sink += objectMapper.writeValueAsBytes(fixes).length;
+    }
+    report("json encode", start);
+    start = System.nanoTime();
+    for (int i = 0; i < ROUNDS; i++) {
+      sink += objectMapper.<List<ClientDeviceInfo>>readValue(json, listType).size();
+    }
+    report("json decode", start);
+    System.out.println("(" + sink + ")");
+  }
+
+  private static void report(String name, long start) {
+    double nanosPerFix = (double) (System.nanoTime() - start) / ROUNDS / FIXES;
+    System.out.printf("%-14s %8.1f ns/fix%n", name, nanosPerFix);
+  }
+}
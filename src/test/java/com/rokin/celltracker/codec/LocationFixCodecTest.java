@@ -0,0 +1,106 @@
+package com.rokin.celltracker.codec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class LocationFixCodecTest {
+
+  @Test
+  public void encodeDecode_roundTripsWithinFixedPointPrecision() throws IOException {
+    List<ClientDeviceInfo> fixes = buildFixes(100);
+    fixes.add(ClientDeviceInfo.builder().lat(-33.8688197).lon(151.2092955).build());
+
+    List<ClientDeviceInfo> decoded = decode(encode(fixes));
+
+    assertThat(decoded).hasSize(fixes.size());
+    for (int i = 0; i < fixes.size(); i++) {
+      ClientDeviceInfo fix = fixes.get(i);
+      ClientDeviceInfo decodedFix = decoded.get(i);
+      assertThat(decodedFix.getId()).isEqualTo(fix.getId());
+      assertThat(decodedFix.getTimestamp()).isEqualTo(fix.getTimestamp());
+      assertThat(decodedFix.getLat()).isCloseTo(fix.getLat(), within(1e-7));
+      assertThat(decodedFix.getLon()).isCloseTo(fix.getLon(), within(1e-7));
+      assertThat(decodedFix.getProvider()).isEqualTo(fix.getProvider());
+      assertThat(decodedFix.getBattery()).isEqualTo(fix.getBattery());
+      if (fix.getAccuracy() == null) {
+        assertThat(decodedFix.getAccuracy()).isNull();
+      } else {
+        assertThat(decodedFix.getAccuracy()).isCloseTo(fix.getAccuracy(), within(0.05));
+      }
+    }
+  }
+
+  @Test
+  public void encode_isMuchSmallerThanJson() throws IOException {
+    List<ClientDeviceInfo> fixes = buildFixes(1000);
+
+    int binarySize = encode(fixes).length;
+    int jsonSize = new ObjectMapper().writeValueAsBytes(fixes).length;
+
+    assertThat(binarySize * 5).isLessThan(jsonSize);
+  }
+
+  @Test(expected = IOException.class)
+  public void decode_truncatedInput_throws() throws IOException {
+    byte[] bytes = encode(buildFixes(10));
+    byte[] truncated = new byte[bytes.length / 2];
+    System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+
+    decode(truncated);
+  }
+
+  @Test(expected = IOException.class)
+  public void decode_oversizedProviderLength_throws() throws IOException {
+    decode(providerWithLength(256));
+  }
+
+  @Test(expected = IOException.class)
+  public void decode_negativeProviderLength_throws() throws IOException {
+    decode(providerWithLength(-1));
+  }
+
+  /**
+   * One fix with only a new provider whose declared length is the given one, and no name bytes.
+   */
+  private static byte[] providerWithLength(long length) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(1);
+    LocationFixCodec.writeVarLong(out, 1);
+    LocationFixCodec.writeVarLong(out, 1 << 8);
+    LocationFixCodec.writeVarLong(out, 0);
+    LocationFixCodec.writeVarLong(out, length);
+    return out.toByteArray();
+  }
+
+  static List<ClientDeviceInfo> buildFixes(int count) {
+    List<ClientDeviceInfo> fixes = new ArrayList<>();
+    long timestamp = 1537982494311L;
+    for (int i = 0; i < count; i++) {
+      timestamp += 5000 + i % 7;
+      fixes.add(ClientDeviceInfo.builder().id(1000L + i).lat(23.8103 + i * 0.00013)
+          .lon(90.4125 - i * 0.00007).altitude(12.5).accuracy(8.0 + i % 5).speed(1.25)
+          .bearing(187.4).battery(90 - i % 90).provider(i % 10 == 0 ? "network" : "gps")
+          .timestamp(timestamp).build());
+    }
+    return fixes;
+  }
+
+  static byte[] encode(List<ClientDeviceInfo> fixes) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    LocationFixCodec.encode(fixes, out);
+    return out.toByteArray();
+  }
+
+  static List<ClientDeviceInfo> decode(byte[] bytes) throws IOException {
+    return LocationFixCodec.decode(new ByteArrayInputStream(bytes));
+  }
+}
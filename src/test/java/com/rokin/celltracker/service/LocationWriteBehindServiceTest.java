@@ -0,0 +1,146 @@
+package com.rokin.celltracker.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.rokin.celltracker.LocationWriteBehindSettings;
+import com.rokin.celltracker.domain.Client;
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import com.rokin.celltracker.exception.LocationQueueFullException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Test;
+
+public class LocationWriteBehindServiceTest {
+
+  private static final Long POISONED_CLIENT_ID = 13L;
+
+  private final RecordingClientService clientService = new RecordingClientService();
+  private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final LocationWriteBehindSettings settings = new LocationWriteBehindSettings();
+  private LocationWriteBehindService writeBehind;
+
+  @After
+  public void tearDown() throws InterruptedException {
+    writeBehind.stop();
+  }
+
+  @Test
+  public void addClientDeviceInfos_groupCommitsFixesOfSeveralClients() throws Exception {
+    start(10, 3, 60000);
+
+    writeBehind.addClientDeviceInfos("1", fixes(2));
+    writeBehind.addClientDeviceInfos("2", fixes(1));
+
+    awaitWritten(3);
+    assertThat(clientService.commits).hasSize(1);
+    assertThat(clientService.commits.get(0)).containsOnlyKeys(1L, 2L);
+    assertThat(meterRegistry.summary("location.writebehind.batch.size").max()).isEqualTo(3);
+  }
+
+  @Test
+  public void addClientDeviceInfos_rejectsWhenQueueIsFull() throws Exception {
+    start(2, 100, 60000);
+    writeBehind.addClientDeviceInfos("1", fixes(2));
+
+    assertThatThrownBy(() -> writeBehind.addClientDeviceInfos("2", fixes(1)))
+        .isInstanceOf(LocationQueueFullException.class);
+    assertThat(meterRegistry.counter("location.writebehind.rejected").count()).isEqualTo(1);
+  }
+
+  @Test
+  public void stop_drainsQueuedFixesBeforeDurabilityWindow() throws Exception {
+    start(10, 100, 60000);
+    writeBehind.addClientDeviceInfos("1", fixes(2));
+    writeBehind.addClientDeviceInfos("2", fixes(3));
+
+    long start = System.currentTimeMillis();
+    writeBehind.stop();
+
+    assertThat(System.currentTimeMillis() - start).isLessThan(5000);
+    assertThat(written()).isEqualTo(5);
+    assertThatThrownBy(() -> writeBehind.addClientDeviceInfos("1", fixes(1)))
+        .isInstanceOf(LocationQueueFullException.class);
+  }
+
+  @Test
+  public void flush_retriesFailedGroupCommitClientByClient() throws Exception {
+    start(10, 3, 60000);
+
+    writeBehind.addClientDeviceInfos("1", fixes(2));
+    writeBehind.addClientDeviceInfos(String.valueOf(POISONED_CLIENT_ID), fixes(1));
+
+    awaitWritten(2);
+    assertThat(clientService.commits).extracting(Map::keySet)
+        .contains(Collections.singleton(1L));
+    assertThat(meterRegistry.counter("location.writebehind.written").count()).isEqualTo(2);
+    assertThat(meterRegistry.counter("location.writebehind.failed").count()).isEqualTo(1);
+  }
+
+  private void start(int queueCapacity, int batchSize, long maxDelayMs) {
+    settings.setEnabled(true);
+    settings.setQueueCapacity(queueCapacity);
+    settings.setBatchSize(batchSize);
+    settings.setMaxDelayMs(maxDelayMs);
+    settings.setWriterThreads(1);
+    writeBehind = new LocationWriteBehindService(settings, clientService, meterRegistry);
+    writeBehind.start();
+  }
+
+  private void awaitWritten(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (written() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(written()).isEqualTo(count);
+  }
+
+  private int written() {
+    synchronized (clientService.commits) {
+      return clientService.commits.stream()
+          .mapToInt(commit -> commit.values().stream().mapToInt(List::size).sum()).sum();
+    }
+  }
+
+  private static List<ClientDeviceInfo> fixes(int count) {
+    List<ClientDeviceInfo> fixes = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      fixes.add(ClientDeviceInfo.builder().lat(23.81).lon(90.41).accuracy(5.0).provider("gps")
+          .battery(50).timestamp(System.currentTimeMillis()).build());
+    }
+    return fixes;
+  }
+
+  /**
+   * Client service that records committed fixes instead of writing them, and fails every commit
+   * touching the poisoned client.
+   */
+  private static class RecordingClientService extends ClientService {
+
+    private final List<Map<Long, List<ClientDeviceInfo>>> commits = Collections
+        .synchronizedList(new ArrayList<>());
+
+    RecordingClientService() {
+      super(null, null, null, null, null, null, null, null, null, null);
+    }
+
+    @Override
+    public Client getClientByUserName(String username) {
+      return Client.builder().id(Long.valueOf(username)).build();
+    }
+
+    @Override
+    public void updateClientsDeviceInfos(Map<Long, List<ClientDeviceInfo>> clientDeviceInfos) {
+      if (clientDeviceInfos.containsKey(POISONED_CLIENT_ID)) {
+        throw new IllegalStateException("client " + POISONED_CLIENT_ID + " cannot be written");
+      }
+      commits.add(new HashMap<>(clientDeviceInfos));
+    }
+  }
+}
@@ -0,0 +1,279 @@
+package com.rokin.celltracker.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.rokin.celltracker.PushSettings;
+import com.rokin.celltracker.domain.Message;
+import com.rokin.celltracker.domain.Message.MessageScope;
+import com.rokin.celltracker.domain.Message.MessageType;
+import com.rokin.celltracker.dto.PushTokenUpdates;
+import de.bytefish.fcmjava.http.client.IFcmClient;
+import de.bytefish.fcmjava.model.enums.ErrorCodeEnum;
+import de.bytefish.fcmjava.requests.data.DataMulticastMessage;
+import de.bytefish.fcmjava.requests.data.DataUnicastMessage;
+import de.bytefish.fcmjava.requests.groups.AddDeviceGroupMessage;
+import de.bytefish.fcmjava.requests.groups.CreateDeviceGroupMessage;
+import de.bytefish.fcmjava.requests.groups.RemoveDeviceGroupMessage;
+import de.bytefish.fcmjava.requests.notification.NotificationMulticastMessage;
+import de.bytefish.fcmjava.requests.notification.NotificationUnicastMessage;
+import de.bytefish.fcmjava.requests.topic.TopicMulticastMessage;
+import de.bytefish.fcmjava.requests.topic.TopicUnicastMessage;
+import de.bytefish.fcmjava.responses.CreateDeviceGroupMessageResponse;
+import de.bytefish.fcmjava.responses.FcmMessageResponse;
+import de.bytefish.fcmjava.responses.FcmMessageResultItem;
+import de.bytefish.fcmjava.responses.TopicMessageResponse;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Test;
+
+public class PushServiceTest {
+
+  private static final List<String> REGISTRATION_IDS = Arrays.asList("token-1", "token-2");
+
+  private final BlockingFcmClient fcmClient = new BlockingFcmClient();
+  private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final List<Object> events = Collections.synchronizedList(new ArrayList<>());
+  private PushService pushService;
+
+  @After
+  public void tearDown() throws InterruptedException {
+    fcmClient.release.countDown();
+    pushService.stop();
+  }
+
+  @Test
+  public void sendMessage_runsCallbackOnPushThread() throws Exception {
+    start(1, 1, 10000);
+    fcmClient.release.countDown();
+    AtomicReference<String> callbackThread = new AtomicReference<>();
+
+    Message sent = pushService.sendMessage(message(), REGISTRATION_IDS,
+        msg -> callbackThread.set(Thread.currentThread().getName())).get(5, TimeUnit.SECONDS);
+
+    assertThat(sent.getMeassgeType()).isEqualTo(MessageType.HELPALERT);
+    assertThat(callbackThread.get()).startsWith("push-");
+    assertThat(meterRegistry.counter("push.sent").count()).isEqualTo(1);
+    assertThat(meterRegistry.timer("push.send").count()).isEqualTo(1);
+  }
+
+  @Test
+  public void sendMessage_rejectsWhenQueueIsFull() throws Exception {
+    start(1, 1, 10000);
+    pushService.sendMessage(message(), REGISTRATION_IDS);
+    fcmClient.started.await(5, TimeUnit.SECONDS);
+    pushService.sendMessage(message(), REGISTRATION_IDS);
+
+    CompletableFuture<Message> rejected = pushService.sendMessage(message(), REGISTRATION_IDS);
+
+    assertThat(rejected).isCompletedExceptionally();
+    assertThat(causeOf(rejected)).isInstanceOf(RejectedExecutionException.class);
+    assertThat(meterRegistry.counter("push.rejected").count()).isEqualTo(1);
+  }
+
+  @Test
+  public void sendMessage_failsWhenNotSentInTime() throws Exception {
+    start(1, 1, 100);
+    List<String> callbacks = new ArrayList<>();
+
+    CompletableFuture<Message> delivery = pushService.sendMessage(message(), REGISTRATION_IDS,
+        msg -> callbacks.add("sent"));
+
+    assertThat(causeOf(delivery)).isInstanceOf(TimeoutException.class);
+    assertThat(callbacks).isEmpty();
+    assertThat(meterRegistry.counter("push.timedout").count()).isEqualTo(1);
+  }
+
+  @Test
+  public void sendMessage_splitsLargeRecipientLists() throws Exception {
+    start(2, 10, 10000);
+    fcmClient.release.countDown();
+    List<String> registrationIds = new ArrayList<>();
+    for (int i = 0; i < 2500; i++) {
+      registrationIds.add("token-" + i);
+    }
+
+    pushService.sendMessage(message(), registrationIds).get(5, TimeUnit.SECONDS);
+
+    assertThat(fcmClient.sent).hasSize(3);
+    assertThat(fcmClient.sent).allSatisfy(
+        request -> assertThat(request.getRegistrationIds().size()).isLessThanOrEqualTo(1000));
+    assertThat(fcmClient.sent.stream().mapToInt(request -> request.getRegistrationIds().size())
+        .sum()).isEqualTo(2500);
+    assertThat(meterRegistry.counter("push.sent").count()).isEqualTo(1);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void sendMessage_coalescesMessagesToSameRecipients() throws Exception {
+    start(1, 10, 10000);
+    fcmClient.release.countDown();
+    List<CompletableFuture<Message>> deliveries = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      deliveries.add(pushService.sendMessage(message(MessageType.REACHEDHOME), REGISTRATION_IDS));
+    }
+    deliveries.add(pushService.sendMessage(message(), REGISTRATION_IDS));
+
+    CompletableFuture.allOf(deliveries.toArray(new CompletableFuture[0])).get(5,
+        TimeUnit.SECONDS);
+
+    // the help alert right away, the three reached home messages together
+    assertThat(fcmClient.sent).hasSize(2);
+    Map<String, Object> coalesced = (Map<String, Object>) fcmClient.sent.get(1).getPayload();
+    assertThat((List<Object>) coalesced.get("messages")).hasSize(3);
+    assertThat(meterRegistry.counter("push.sent").count()).isEqualTo(4);
+    assertThat(meterRegistry.counter("push.coalesced").count()).isEqualTo(3);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void sendMessage_sendsEachMessageWhenCoalescingIsOff() throws Exception {
+    start(1, 10, 10000, new PushSettings().getCoalesceWindowMs());
+    fcmClient.release.countDown();
+    List<CompletableFuture<Message>> deliveries = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      deliveries.add(pushService.sendMessage(message(MessageType.REACHEDHOME), REGISTRATION_IDS));
+    }
+
+    CompletableFuture.allOf(deliveries.toArray(new CompletableFuture[0])).get(5,
+        TimeUnit.SECONDS);
+
+    assertThat(fcmClient.sent).hasSize(3);
+    assertThat((Map<String, Object>) fcmClient.sent.get(0).getPayload())
+        .doesNotContainKey("messages");
+    assertThat(meterRegistry.counter("push.coalesced").count()).isEqualTo(0);
+  }
+
+  @Test
+  public void sendMessage_publishesCanonicalAndDeadRegistrationIds() throws Exception {
+    start(1, 1, 10000);
+    fcmClient.results = Arrays.asList(new FcmMessageResultItem("1", null, null),
+        new FcmMessageResultItem(null, null, ErrorCodeEnum.NotRegistered),
+        new FcmMessageResultItem("3", "token-3-new", null));
+    fcmClient.release.countDown();
+
+    pushService.sendMessage(message(), Arrays.asList("token-1", "token-2", "token-3")).get(5,
+        TimeUnit.SECONDS);
+
+    assertThat(events).hasSize(1);
+    PushTokenUpdates updates = (PushTokenUpdates) events.get(0);
+    assertThat(updates.getDeadIds()).containsExactly("token-2");
+    assertThat(updates.getCanonicalIds()).containsOnlyKeys("token-3")
+        .containsEntry("token-3", "token-3-new");
+  }
+
+  private void start(int threads, int queueCapacity, long sendTimeoutMs) {
+    start(threads, queueCapacity, sendTimeoutMs, 200);
+  }
+
+  private void start(int threads, int queueCapacity, long sendTimeoutMs, long coalesceWindowMs) {
+    PushSettings settings = new PushSettings();
+    settings.setThreads(threads);
+    settings.setQueueCapacity(queueCapacity);
+    settings.setSendTimeoutMs(sendTimeoutMs);
+    settings.setShutdownTimeoutMs(1000);
+    settings.setCoalesceWindowMs(coalesceWindowMs);
+    pushService = new PushService(fcmClient, settings, meterRegistry, events::add);
+    pushService.start();
+  }
+
+  private Message message() {
+    return message(MessageType.HELPALERT);
+  }
+
+  private Message message(MessageType messageType) {
+    return Message.builder().fromClientId(1L).meassgeType(messageType)
+        .messageScope(MessageScope.CIRCLE).message("help").build();
+  }
+
+  private Throwable causeOf(CompletableFuture<Message> future) throws InterruptedException {
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      return null;
+    } catch (ExecutionException ex) {
+      return ex.getCause();
+    } catch (TimeoutException ex) {
+      return ex;
+    }
+  }
+
+  /**
+   * FCM client whose multicast sends block until released.
+   */
+  private static class BlockingFcmClient implements IFcmClient {
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<DataMulticastMessage> sent = Collections.synchronizedList(
+        new ArrayList<>());
+    private volatile List<FcmMessageResultItem> results = new ArrayList<>();
+
+    @Override
+    public FcmMessageResponse send(DataMulticastMessage message) {
+      sent.add(message);
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(ex);
+      }
+      return new FcmMessageResponse(1L, message.getRegistrationIds().size(), 0, 0, results);
+    }
+
+    @Override
+    public FcmMessageResponse send(NotificationMulticastMessage message) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FcmMessageResponse send(DataUnicastMessage message) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FcmMessageResponse send(NotificationUnicastMessage message) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public CreateDeviceGroupMessageResponse send(CreateDeviceGroupMessage message) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public TopicMessageResponse send(TopicUnicastMessage message) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public TopicMessageResponse send(TopicMulticastMessage message) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void send(RemoveDeviceGroupMessage message) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void send(AddDeviceGroupMessage message) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
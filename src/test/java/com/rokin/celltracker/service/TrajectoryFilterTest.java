@@ -0,0 +1,110 @@
+package com.rokin.celltracker.service;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.rokin.celltracker.TrajectoryFilterSettings;
+import com.rokin.celltracker.TrajectoryFilterSettings.Mode;
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class TrajectoryFilterTest {
+
+  private static final Long CLIENT_ID = 1L;
+  // about 111 m along the equator
+  private static final double STEP = 0.001;
+
+  private final TrajectoryFilterSettings settings = new TrajectoryFilterSettings();
+  private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  @Test
+  public void filter_keepsEverythingSortedWhenDisabled() {
+    TrajectoryFilter filter = filter(Mode.NONE);
+    ClientDeviceInfo first = fix(0, 0, 0);
+    ClientDeviceInfo second = fix(10000, 0, 0);
+
+    assertThat(filter.filter(CLIENT_ID, Arrays.asList(second, first))).containsExactly(first,
+        second);
+  }
+
+  @Test
+  public void accept_dropsFixesThatDidNotMoveOrAreInaccurate() {
+    TrajectoryFilter filter = filter(Mode.DISTANCE);
+
+    assertThat(filter.accept(CLIENT_ID, fix(0, 0, 0))).isTrue();
+    assertThat(filter.accept(CLIENT_ID, fix(10000, 0, 0.00005))).isFalse();
+    assertThat(filter.accept(CLIENT_ID, fix(20000, 0, STEP).toBuilder().accuracy(500.0)
+        .build())).isFalse();
+    assertThat(filter.accept(CLIENT_ID, fix(30000, 0, STEP))).isTrue();
+    assertThat(meterRegistry.counter("location.filter.dropped", "reason", "distance").count())
+        .isEqualTo(1);
+    assertThat(meterRegistry.counter("location.filter.dropped", "reason", "accuracy").count())
+        .isEqualTo(1);
+  }
+
+  @Test
+  public void accept_dropsFixesWithinTheirOwnAccuracy() {
+    TrajectoryFilter filter = filter(Mode.DISTANCE);
+    filter.accept(CLIENT_ID, fix(0, 0, 0));
+
+    assertThat(filter.accept(CLIENT_ID, fix(10000, 0, STEP).toBuilder().accuracy(90.0).build()))
+        .isTrue();
+    assertThat(filter.accept(CLIENT_ID, fix(20000, 0, STEP * 1.5).toBuilder().accuracy(90.0)
+        .build())).isFalse();
+  }
+
+  @Test
+  public void accept_keepsStationaryFixOnceMaxIntervalPassed() {
+    TrajectoryFilter filter = filter(Mode.DISTANCE);
+    filter.accept(CLIENT_ID, fix(0, 0, 0));
+
+    assertThat(filter.accept(CLIENT_ID, fix(settings.getMaxIntervalMs() - 1, 0, 0))).isFalse();
+    assertThat(filter.accept(CLIENT_ID, fix(settings.getMaxIntervalMs(), 0, 0))).isTrue();
+  }
+
+  @Test
+  public void accept_keepsLateFixesAndFixesWithoutPosition() {
+    TrajectoryFilter filter = filter(Mode.DISTANCE);
+    filter.accept(CLIENT_ID, fix(10000, 0, 0));
+
+    assertThat(filter.accept(CLIENT_ID, fix(5000, 0, 0))).isTrue();
+    assertThat(filter.accept(CLIENT_ID, fix(20000, 0, 0).toBuilder().lat(null).build()))
+        .isTrue();
+  }
+
+  @Test
+  public void filter_reducesStraightRunToItsEndPoints() {
+    TrajectoryFilter filter = filter(Mode.DEAD_RECKONING);
+    List<ClientDeviceInfo> run = Arrays.asList(fix(0, 0, 0), fix(10000, 0, STEP),
+        fix(20000, 0, STEP * 2), fix(30000, 0, STEP * 3), fix(40000, STEP, STEP * 3));
+
+    assertThat(filter.filter(CLIENT_ID, run)).containsExactly(run.get(0), run.get(1),
+        run.get(4));
+    assertThat(meterRegistry.counter("location.filter.dropped", "reason", "predicted").count())
+        .isEqualTo(2);
+    assertThat(meterRegistry.counter("location.filter.kept").count()).isEqualTo(3);
+  }
+
+  @Test
+  public void filter_tracksClientsSeparately() {
+    TrajectoryFilter filter = filter(Mode.DISTANCE);
+    filter.accept(CLIENT_ID, fix(0, 0, 0));
+
+    assertThat(filter.accept(2L, fix(10000, 0, 0))).isTrue();
+  }
+
+  private TrajectoryFilter filter(Mode mode) {
+    settings.setMode(mode);
+    TrajectoryFilter filter = new TrajectoryFilter(settings, meterRegistry);
+    filter.init();
+    return filter;
+  }
+
+  private static ClientDeviceInfo fix(long timestamp, double lat, double lon) {
+    return ClientDeviceInfo.builder().lat(lat).lon(lon).accuracy(5.0).provider("gps")
+        .timestamp(timestamp).build();
+  }
+}
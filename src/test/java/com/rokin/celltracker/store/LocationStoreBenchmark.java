@@ -0,0 +1,77 @@
+package com.rokin.celltracker.store;
+
+import com.rokin.celltracker.LocationStoreSettings;
+import com.rokin.celltracker.domain.Client;
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares append and range scan cost of the in-memory and memory-mapped location stores. The
+ * JPA store needs a database and is left to the load tests. Not a unit test, run the main
+ * method.
+ */
+public class LocationStoreBenchmark {
+
+  private static final int CLIENTS = 100;
+  private static final int BATCHES = 100;
+  private static final int BATCH_SIZE = 50;
+  private static final int SCANS = 2000;
+
+  /**
+   * Run benchmark.
+   *
+   * @param args
+   *          unused
+   * @throws IOException
+   *           when the segment directory cannot be created
+   */
+  public static void main(String[] args) throws IOException {
+    List<ClientDeviceInfo> fixes = LocationStoreTest.buildFixes(BATCHES * BATCH_SIZE);
+    Path directory = Files.createTempDirectory("location-store-benchmark");
+    LocationStoreSettings settings = new LocationStoreSettings();
+    settings.getMmap().setDirectory(directory.toString());
+    MappedLocationStore mappedStore = new MappedLocationStore(settings, null, null);
+    mappedStore.open();
+
+    run("memory", new MemoryLocationStore(null, null), fixes);
+    run("mmap", mappedStore, fixes);
+    mappedStore.close();
+    System.out.println("segments left in " + directory);
+  }
+
+  private static void run(String name, LocationStore store, List<ClientDeviceInfo> fixes) {
+    List<Client> clients = new ArrayList<>();
+    for (long id = 1; id <= CLIENTS; id++) {
+      clients.add(Client.builder().id(id).build());
+    }
+    long start = System.nanoTime();
+    for (int batch = 0; batch < BATCHES; batch++) {
+      List<ClientDeviceInfo> fixBatch = fixes.subList(batch * BATCH_SIZE,
+          (batch + 1) * BATCH_SIZE);
+      for (Client client : clients) {
+        store.append(client, fixBatch);
+      }
+    }
+    long appended = (long) CLIENTS * BATCHES * BATCH_SIZE;
+    System.out.printf("%-6s append %8.1f ns/fix%n", name,
+        (double) (System.nanoTime() - start) / appended);
+
+    long fromTime = fixes.get(fixes.size() / 4).getTimestamp();
+    long toTime = fixes.get(fixes.size() * 3 / 4).getTimestamp();
+    long[] scanned = { 0 };
+    start = System.nanoTime();
+    for (int i = 0; i < SCANS; i++) {
+      store.scan((long) (i % CLIENTS + 1), fromTime, Long.MIN_VALUE, toTime, Integer.MAX_VALUE,
+          fix -> {
+            scanned[0]++;
+            return true;
+          });
+    }
+    System.out.printf("%-6s scan   %8.1f ns/fix (%d fixes)%n", name,
+        (double) (System.nanoTime() - start) / scanned[0], scanned[0]);
+  }
+}
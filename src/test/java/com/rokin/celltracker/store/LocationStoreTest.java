@@ -0,0 +1,136 @@
+package com.rokin.celltracker.store;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.rokin.celltracker.LocationStoreSettings;
+import com.rokin.celltracker.domain.Client;
+import com.rokin.celltracker.domain.ClientDeviceInfo;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LocationStoreTest {
+
+  private static final long START = 1537982494311L;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void memoryStore_scansInOrderWithinRange() {
+    assertScansInOrderWithinRange(new MemoryLocationStore(null, null));
+  }
+
+  @Test
+  public void mappedStore_scansInOrderWithinRange() throws IOException {
+    assertScansInOrderWithinRange(openMappedStore(1 << 20));
+  }
+
+  @Test
+  public void memoryStore_scanResumesAfterPosition() {
+    assertScanResumesAfterPosition(new MemoryLocationStore(null, null));
+  }
+
+  @Test
+  public void mappedStore_scanResumesAfterPosition() throws IOException {
+    assertScanResumesAfterPosition(openMappedStore(1 << 20));
+  }
+
+  @Test
+  public void mappedStore_rollsSegmentsAndRecoversOnReopen() throws IOException {
+    // room for 7 records per segment, so 100 fixes span 15 segments
+    MappedLocationStore store = openMappedStore(MappedLocationStore.RECORD_SIZE * 7);
+    List<ClientDeviceInfo> stored = store.append(client(1L), buildFixes(100));
+    store.append(client(2L), buildFixes(3));
+    ClientDeviceInfo sparse = ClientDeviceInfo.builder().timestamp(START).build();
+    ClientDeviceInfo storedSparse = store.append(client(3L), Arrays.asList(sparse)).get(0);
+    store.close();
+
+    MappedLocationStore reopened = openMappedStore(MappedLocationStore.RECORD_SIZE * 7);
+
+    assertThat(scan(reopened, 1L, START, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE))
+        .isEqualTo(stored);
+    assertThat(scan(reopened, 3L, START, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE))
+        .containsExactly(storedSparse);
+    assertThat(reopened.append(client(2L), buildFixes(1)).get(0).getId())
+        .isGreaterThan(storedSparse.getId());
+  }
+
+  private void assertScansInOrderWithinRange(LocationStore store) {
+    List<ClientDeviceInfo> fixes = buildFixes(600);
+    List<ClientDeviceInfo> stored = new ArrayList<>(store.append(client(1L),
+        fixes.subList(0, 300)));
+    // a replayed batch arrives after newer fixes were stored
+    stored.addAll(store.append(client(1L), fixes.subList(400, 600)));
+    stored.addAll(store.append(client(1L), fixes.subList(300, 400)));
+    store.append(client(2L), buildFixes(50));
+    stored.sort(LocationStore.ORDER);
+    long fromTime = stored.get(10).getTimestamp();
+    long toTime = stored.get(589).getTimestamp();
+
+    List<ClientDeviceInfo> scanned = scan(store, 1L, fromTime, Long.MIN_VALUE, toTime,
+        Integer.MAX_VALUE);
+
+    assertThat(scanned).isEqualTo(stored.subList(10, 590));
+    assertThat(scan(store, 3L, fromTime, Long.MIN_VALUE, toTime, Integer.MAX_VALUE)).isEmpty();
+  }
+
+  private void assertScanResumesAfterPosition(LocationStore store) {
+    List<ClientDeviceInfo> fixes = buildFixes(500);
+    // two fixes on one timestamp are told apart by id
+    fixes.get(251).setTimestamp(fixes.get(250).getTimestamp());
+    List<ClientDeviceInfo> stored = store.append(client(1L), fixes);
+
+    List<ClientDeviceInfo> pages = new ArrayList<>();
+    long afterTimestamp = START;
+    long afterId = Long.MIN_VALUE;
+    List<ClientDeviceInfo> page;
+    do {
+      page = scan(store, 1L, afterTimestamp, afterId, Long.MAX_VALUE, 50);
+      pages.addAll(page);
+      if (!page.isEmpty()) {
+        afterTimestamp = page.get(page.size() - 1).getTimestamp();
+        afterId = page.get(page.size() - 1).getId();
+      }
+    } while (page.size() == 50);
+
+    assertThat(pages).isEqualTo(stored);
+  }
+
+  private MappedLocationStore openMappedStore(int segmentSize) throws IOException {
+    LocationStoreSettings settings = new LocationStoreSettings();
+    settings.getMmap().setDirectory(folder.getRoot().getPath());
+    settings.getMmap().setSegmentSize(segmentSize);
+    MappedLocationStore store = new MappedLocationStore(settings, null, null);
+    store.open();
+    return store;
+  }
+
+  private static List<ClientDeviceInfo> scan(LocationStore store, Long clientId,
+      long afterTimestamp, long afterId, long toTime, int limit) {
+    List<ClientDeviceInfo> scanned = new ArrayList<>();
+    store.scan(clientId, afterTimestamp, afterId, toTime, limit, scanned::add);
+    return scanned;
+  }
+
+  private static Client client(Long id) {
+    return Client.builder().id(id).build();
+  }
+
+  static List<ClientDeviceInfo> buildFixes(int count) {
+    List<ClientDeviceInfo> fixes = new ArrayList<>();
+    long timestamp = START;
+    for (int i = 0; i < count; i++) {
+      timestamp += 5000 + i % 7;
+      fixes.add(ClientDeviceInfo.builder().lat(23.8103 + i * 0.00013).lon(90.4125 - i * 0.00007)
+          .altitude(i % 3 == 0 ? null : 12.5).accuracy(8.0 + i % 5).speed(1.25).bearing(187.4)
+          .battery(90 - i % 90).provider(i % 10 == 0 ? "network" : "gps").timestamp(timestamp)
+          .build());
+    }
+    return fixes;
+  }
+}